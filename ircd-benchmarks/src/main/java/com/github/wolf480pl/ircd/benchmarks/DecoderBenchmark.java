@@ -0,0 +1,108 @@
+/*
+ * This file is part of IRCd4j.
+ *
+ * Copyright (c) 2014 Wolf480pl <wolf480@interia.pl>
+ * IRCd4j is licensed under the GNU Lesser General Public License.
+ *
+ * IRCd4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * IRCd4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.wolf480pl.ircd.benchmarks;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.github.wolf480pl.ircd.Message;
+import com.github.wolf480pl.ircd.netty.IRCChannelInitializer;
+import com.github.wolf480pl.ircd.netty.codec.MessageDecoder;
+import com.github.wolf480pl.ircd.util.StringCache;
+
+// Throughput in lines per second
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DecoderBenchmark {
+    @Param({ "false", "true" })
+    public boolean strict;
+
+    // Slots in the shared StringCache, 0 for none
+    @Param({ "0", "4096" })
+    public int stringCache;
+
+    private EmbeddedChannel channel;
+    private ByteBuf input;
+
+    @Setup
+    public void setup() {
+        StringCache cache = stringCache > 0 ? new StringCache(stringCache, IRCChannelInitializer.MAX_CACHED_STRING_LENGTH) : null;
+        channel = new EmbeddedChannel(new MessageDecoder(IRCChannelInitializer.MAX_LINE_LENGTH, StandardCharsets.UTF_8, strict, cache));
+        input = Unpooled.directBuffer().writeBytes(Samples.clientTraffic());
+    }
+
+    @TearDown
+    public void tearDown() {
+        channel.finish();
+        input.release();
+    }
+
+    // Framing only, DecodedMessage doesn't make Strings until asked
+    @Benchmark
+    @OperationsPerInvocation(Samples.LINES)
+    public void frame(Blackhole bh) {
+        channel.writeInbound(input.duplicate().retain());
+        Object msg;
+        while ((msg = channel.readInbound()) != null) {
+            bh.consume(msg);
+        }
+    }
+
+    // What the command handlers end up looking at
+    @Benchmark
+    @OperationsPerInvocation(Samples.LINES)
+    public void frameAndRead(Blackhole bh) {
+        channel.writeInbound(input.duplicate().retain());
+        Object obj;
+        while ((obj = channel.readInbound()) != null) {
+            Message msg = (Message) obj;
+            bh.consume(msg.getPrefix());
+            bh.consume(msg.getCommand());
+            List<String> params = msg.getParams();
+            for (int i = 0; i < params.size(); ++i) {
+                bh.consume(params.get(i));
+            }
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * This file is part of IRCd4j.
+ *
+ * Copyright (c) 2014 Wolf480pl <wolf480@interia.pl>
+ * IRCd4j is licensed under the GNU Lesser General Public License.
+ *
+ * IRCd4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * IRCd4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.wolf480pl.ircd.benchmarks;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.github.wolf480pl.ircd.Message;
+import com.github.wolf480pl.ircd.impl.IRCSessionHandler;
+
+// From a decoded Message to the command handler and its reply
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatchBenchmark {
+    private static final Message PING = Message.withoutPrefix("PING", "token");
+    private static final Message UNKNOWN = Message.withoutPrefix("FOO", "bar");
+    private static final Message PRIVMSG = Message.withoutPrefix("PRIVMSG", "#bench", "hello there");
+    private static final Message LOWERCASE = Message.withoutPrefix("ping", "token");
+
+    private IRCSessionHandler handler;
+    private NullSession session;
+
+    @Setup
+    public void setup() {
+        handler = new IRCSessionHandler((address) -> CompletableFuture.completedFuture("bench.example.org"));
+        session = new NullSession();
+        handler.onConnect(session);
+        handler.messageReceived(session, Message.withoutPrefix("NICK", "bench"));
+        handler.messageReceived(session, Message.withoutPrefix("USER", "bench", "0", "*", "Bench User"));
+        handler.messageReceived(session, Message.withoutPrefix("JOIN", "#bench"));
+    }
+
+    @Benchmark
+    public long ping() {
+        handler.messageReceived(session, PING);
+        return session.sent;
+    }
+
+    @Benchmark
+    public long pingLowercase() {
+        handler.messageReceived(session, LOWERCASE);
+        return session.sent;
+    }
+
+    @Benchmark
+    public long unknownCommand() {
+        handler.messageReceived(session, UNKNOWN);
+        return session.sent;
+    }
+
+    // The sender is alone on the channel, so it's just the lookups
+    @Benchmark
+    public long channelMessage() {
+        handler.messageReceived(session, PRIVMSG);
+        return session.sent;
+    }
+}
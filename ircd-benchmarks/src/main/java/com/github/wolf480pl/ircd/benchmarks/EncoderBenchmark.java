@@ -0,0 +1,93 @@
+/*
+ * This file is part of IRCd4j.
+ *
+ * Copyright (c) 2014 Wolf480pl <wolf480@interia.pl>
+ * IRCd4j is licensed under the GNU Lesser General Public License.
+ *
+ * IRCd4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * IRCd4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.wolf480pl.ircd.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.github.wolf480pl.ircd.Message;
+import com.github.wolf480pl.ircd.netty.codec.EncodedMessage;
+import com.github.wolf480pl.ircd.netty.codec.MessageEncoder;
+
+// Throughput in messages per second
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EncoderBenchmark {
+    private static final int MESSAGES = 8;
+
+    private List<Message> messages;
+    private ByteBuf out;
+
+    @Setup
+    public void setup() {
+        messages = Samples.SERVER_MESSAGES;
+        if (messages.size() != MESSAGES) {
+            throw new IllegalStateException("Update EncoderBenchmark.MESSAGES");
+        }
+        out = PooledByteBufAllocator.DEFAULT.directBuffer(4096);
+    }
+
+    @TearDown
+    public void tearDown() {
+        out.release();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public void encode(Blackhole bh) {
+        out.clear();
+        for (int i = 0; i < MESSAGES; ++i) {
+            MessageEncoder.encode(messages.get(i), out);
+        }
+        bh.consume(out.writerIndex());
+    }
+
+    // What a broadcast pays once: sizing, allocating and encoding into its own buffer
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public void encodeToNewBuffer(Blackhole bh) {
+        for (int i = 0; i < MESSAGES; ++i) {
+            EncodedMessage encoded = EncodedMessage.encode(messages.get(i), PooledByteBufAllocator.DEFAULT);
+            bh.consume(encoded);
+            encoded.release();
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * This file is part of IRCd4j.
+ *
+ * Copyright (c) 2014 Wolf480pl <wolf480@interia.pl>
+ * IRCd4j is licensed under the GNU Lesser General Public License.
+ *
+ * IRCd4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * IRCd4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.wolf480pl.ircd.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.github.wolf480pl.ircd.ChannelRegistry;
+import com.github.wolf480pl.ircd.IRCChannel;
+import com.github.wolf480pl.ircd.Message;
+import com.github.wolf480pl.ircd.User;
+
+// One channel message delivered to every member; the message is encoded once and shared
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FanoutBenchmark {
+    @Param({ "10", "1000", "10000" })
+    public int members;
+
+    private IRCChannel channel;
+    private User sender;
+    private Message message;
+
+    @Setup
+    public void setup() {
+        ChannelRegistry channels = new ChannelRegistry();
+        for (int i = 0; i < members; ++i) {
+            User user = new User(new NullSession(), "irc.example.org");
+            user.setNick("user" + i);
+            channel = channels.join(user, "#fanout");
+            if (sender == null) {
+                sender = user;
+            }
+        }
+        message = Message.withPrefix(sender.getHostmask(), "PRIVMSG", "#fanout", "hello everyone");
+    }
+
+    @Benchmark
+    public IRCChannel broadcast() {
+        channel.broadcast(message, sender);
+        return channel;
+    }
+}
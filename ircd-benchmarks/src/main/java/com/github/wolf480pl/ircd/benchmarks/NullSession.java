@@ -0,0 +1,93 @@
+/*
+ * This file is part of IRCd4j.
+ *
+ * Copyright (c) 2014 Wolf480pl <wolf480@interia.pl>
+ * IRCd4j is licensed under the GNU Lesser General Public License.
+ *
+ * IRCd4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * IRCd4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.wolf480pl.ircd.benchmarks;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.concurrent.Executor;
+import java.util.function.Function;
+
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.wolf480pl.ircd.BroadcastMessage;
+import com.github.wolf480pl.ircd.Message;
+import com.github.wolf480pl.ircd.Session;
+import com.github.wolf480pl.ircd.netty.codec.EncodedMessage;
+
+// A session that runs everything in the calling thread and throws away what it's sent
+public class NullSession implements Session {
+    private static final Logger logger = LoggerFactory.getLogger(NullSession.class);
+    private static final ByteBufAllocator ALLOC = PooledByteBufAllocator.DEFAULT;
+    private static final Function<Message, EncodedMessage> ENCODER = (msg) -> EncodedMessage.encode(msg, ALLOC);
+
+    private final SocketAddress address;
+    // Keeps the JIT from proving the messages are never used
+    public long sent;
+    public Object last;
+
+    public NullSession() {
+        this(new InetSocketAddress("192.0.2.1", 40000));
+    }
+
+    public NullSession(SocketAddress address) {
+        this.address = address;
+    }
+
+    @Override
+    public void send(Message msg) {
+        ++sent;
+        last = msg;
+    }
+
+    @Override
+    public void sendEncoded(BroadcastMessage msg) {
+        ++sent;
+        // Same work a NettySession does, minus the socket
+        msg.getEncoded(ENCODER).retainedDuplicate().release();
+    }
+
+    @Override
+    public void disconnect() {
+    }
+
+    @Override
+    public SocketAddress getRemoteAddress() {
+        return address;
+    }
+
+    @Override
+    public Logger getLogger() {
+        return logger;
+    }
+
+    @Override
+    public Executor getExecutor() {
+        return Runnable::run;
+    }
+
+    @Override
+    public boolean inExecutor() {
+        return true;
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * This file is part of IRCd4j.
+ *
+ * Copyright (c) 2014 Wolf480pl <wolf480@interia.pl>
+ * IRCd4j is licensed under the GNU Lesser General Public License.
+ *
+ * IRCd4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * IRCd4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.wolf480pl.ircd.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.github.wolf480pl.ircd.IRCNumerics;
+import com.github.wolf480pl.ircd.Message;
+import com.github.wolf480pl.ircd.User;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NumericsBenchmark {
+    private IRCNumerics numerics;
+    private User user;
+
+    @Setup
+    public void setup() {
+        numerics = new IRCNumerics("irc.example.org", "someone");
+        user = new User(new NullSession(), "irc.example.org");
+        user.setNick("someone");
+    }
+
+    @Benchmark
+    public Message numeric() {
+        return numerics.numeric(IRCNumerics.RPL_NAMREPLY, "=", "#java", "alice bob carol dave");
+    }
+
+    @Benchmark
+    public Message errNoSuchNick() {
+        return numerics.errNoSuchNick("nobody");
+    }
+
+    @Benchmark
+    public Message rplLuserClient() {
+        return numerics.rplLuserClient(1000, 10, 3);
+    }
+
+    // Includes the per-user numerics lookup the command handlers do
+    @Benchmark
+    public Message viaUser() {
+        return user.numerics().errUnknownCommand("FOO");
+    }
+}
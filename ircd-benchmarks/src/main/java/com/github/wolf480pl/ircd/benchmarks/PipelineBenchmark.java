@@ -0,0 +1,104 @@
+/*
+ * This file is part of IRCd4j.
+ *
+ * Copyright (c) 2014 Wolf480pl <wolf480@interia.pl>
+ * IRCd4j is licensed under the GNU Lesser General Public License.
+ *
+ * IRCd4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * IRCd4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.wolf480pl.ircd.benchmarks;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.ReferenceCountUtil;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.github.wolf480pl.ircd.impl.IRCSessionHandler;
+import com.github.wolf480pl.ircd.netty.IRCChannelInitializer;
+import com.github.wolf480pl.ircd.netty.codec.MessageDecoder;
+import com.github.wolf480pl.ircd.netty.codec.MessageEncoder;
+import com.github.wolf480pl.ircd.netty.codec.MessageHandler;
+
+/*
+ * Bytes in, bytes out, through the same handlers IRCChannelInitializer sets up, in lines per second.
+ * The idle handler is left out, EmbeddedChannel can't schedule its timeouts.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PipelineBenchmark {
+    @Param({ "true", "false" })
+    public boolean batchWrites;
+
+    private EmbeddedChannel channel;
+    private ByteBuf input;
+
+    @Setup
+    public void setup() {
+        IRCSessionHandler handler = new IRCSessionHandler((address) -> CompletableFuture.completedFuture("bench.example.org"));
+        channel = new EmbeddedChannel(new MessageDecoder(IRCChannelInitializer.MAX_LINE_LENGTH, StandardCharsets.UTF_8),
+                new MessageHandler(handler, batchWrites), new MessageEncoder());
+        channel.writeInbound(Unpooled.copiedBuffer("NICK bench\r\nUSER bench 0 * :Bench User\r\nJOIN #java\r\n", StandardCharsets.UTF_8));
+        drain();
+        input = Unpooled.directBuffer().writeBytes(Samples.clientTraffic());
+    }
+
+    @TearDown
+    public void tearDown() {
+        channel.finish();
+        drain();
+        input.release();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Samples.LINES)
+    public int roundTrip() {
+        channel.writeInbound(input.duplicate().retain());
+        return drain();
+    }
+
+    private int drain() {
+        channel.runPendingTasks();
+        int bytes = 0;
+        Object out;
+        while ((out = channel.readOutbound()) != null) {
+            if (out instanceof ByteBuf) {
+                bytes += ((ByteBuf) out).readableBytes();
+            }
+            ReferenceCountUtil.release(out);
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * This file is part of IRCd4j.
+ *
+ * Copyright (c) 2014 Wolf480pl <wolf480@interia.pl>
+ * IRCd4j is licensed under the GNU Lesser General Public License.
+ *
+ * IRCd4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * IRCd4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.wolf480pl.ircd.benchmarks;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import com.github.wolf480pl.ircd.Message;
+
+// Roughly what a busy client connection looks like
+public final class Samples {
+
+    public static final List<String> CLIENT_LINES = Arrays.asList(
+            "PRIVMSG #java :does anyone know why my ByteBuf leaks?",
+            "PING :irc.example.org",
+            "PRIVMSG #java :it only happens under load",
+            "PRIVMSG someone :hey, got a minute?",
+            "NOTICE #ops :restarting the bouncer",
+            "JOIN #netty",
+            "PRIVMSG #netty :\u0001ACTION waves\u0001",
+            "PONG :irc.example.org",
+            "MODE #java +o someone",
+            "PRIVMSG #java :za\u017c\u00f3\u0142\u0107 g\u0119\u015bl\u0105 ja\u017a\u0144",
+            "TOPIC #netty :Netty 4.0 support channel | no pastes",
+            "PART #netty :bye",
+            "WHO #java",
+            "PRIVMSG #java,#netty :cross-post",
+            ":nick!~user@host.example.org PRIVMSG #java :with a prefix",
+            "AWAY :lunch");
+
+    // A constant, so it can go in @OperationsPerInvocation
+    public static final int LINES = 16;
+
+    static {
+        if (CLIENT_LINES.size() != LINES) {
+            throw new AssertionError("Update Samples.LINES");
+        }
+    }
+
+    public static final List<Message> SERVER_MESSAGES = Arrays.asList(
+            Message.withPrefix("alice!~alice@host.example.org", "PRIVMSG", "#java", "does anyone know why my ByteBuf leaks?"),
+            Message.withPrefix("irc.example.org", "PONG", "irc.example.org", "token"),
+            Message.withPrefix("irc.example.org", "353", "bob", "=", "#java", "alice bob carol dave eve mallory trent"),
+            Message.withPrefix("irc.example.org", "366", "bob", "#java", "End of /NAMES list"),
+            Message.withPrefix("carol!~carol@192.0.2.17", "JOIN", "#java"),
+            Message.withPrefix("dave!~dave@2001-db8--1.example.net", "QUIT", "Ping timeout: 240 seconds"),
+            Message.withPrefix("eve!~eve@host.example.org", "PRIVMSG", "#java", "za\u017c\u00f3\u0142\u0107 g\u0119\u015bl\u0105 ja\u017a\u0144"),
+            Message.withoutPrefix("PING", "irc.example.org"));
+
+    private Samples() {
+    }
+
+    public static byte[] clientTraffic() {
+        return (String.join("\r\n", CLIENT_LINES) + "\r\n").getBytes(StandardCharsets.UTF_8);
+    }
+}
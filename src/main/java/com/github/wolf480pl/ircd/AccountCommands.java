@@ -0,0 +1,109 @@
+/*
+ * This file is part of IRCd4j.
+ *
+ * Copyright (c) 2014 Wolf480pl <wolf480@interia.pl>
+ * IRCd4j is licensed under the GNU Lesser General Public License.
+ *
+ * IRCd4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * IRCd4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.wolf480pl.ircd;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.github.wolf480pl.ircd.store.NickAccounts;
+import com.github.wolf480pl.ircd.util.SerialExecutor;
+import com.github.wolf480pl.ircd.util.Util;
+
+/*
+ * REGISTER <password> registers the nick you're using, IDENTIFY [nick] <password> lets you use a registered one.
+ * IDENTIFY also works before registering the connection, so a client can get its own registered nick right away.
+ */
+public class AccountCommands {
+    private final NickAccounts accounts;
+
+    public AccountCommands(NickAccounts accounts) {
+        this.accounts = accounts;
+    }
+
+    public void register(CommandRegistry handler) {
+        handler.putCommand("REGISTER", this::registerNick);
+        handler.putCommand("IDENTIFY", this::identify);
+    }
+
+    public void registerNick(User user, List<String> args) {
+        if (!user.isRegistered()) {
+            user.send(user.numerics().errNotRegistered());
+            return;
+        }
+        if (args.size() < 1 || args.get(0).isEmpty()) {
+            user.send(user.numerics().errNeedMoreParams("REGISTER"));
+            return;
+        }
+        final String nick = user.getNick();
+        // Replies once it's on disk, without holding up the rest of the user's commands
+        accounts.register(nick, args.get(0)).whenCompleteAsync((registered, t) -> {
+            if (t != null) {
+                user.getSession().getLogger().warn("Couldn't register " + nick, Util.unwrapCompletion(t));
+                user.send(user.numerics().rplTryAgain("REGISTER"));
+            } else if (!registered) {
+                notice(user, "Nick " + nick + " is already registered");
+            } else {
+                accounts.setIdentified(user, nick);
+                user.send(user.numerics().rplLoggedIn(user.getHostmask(), nick));
+            }
+        }, user.getExecutor());
+    }
+
+    public void identify(User user, List<String> args) {
+        if (args.size() < 1) {
+            user.send(user.numerics().errNeedMoreParams("IDENTIFY"));
+            return;
+        }
+        final String nick = args.size() >= 2 ? args.get(0) : user.getNick();
+        final String password = args.get(args.size() - 1);
+        if (nick == null) {
+            user.send(user.numerics().errNoNickNameGiven());
+            return;
+        }
+        if (!accounts.isRegistered(nick)) {
+            notice(user, "Nick " + nick + " isn't registered");
+            return;
+        }
+        long locked = accounts.lockedFor(nick);
+        if (locked > 0) {
+            notice(user, "Too many failed attempts for " + nick + ", try again in " + TimeUnit.MILLISECONDS.toSeconds(locked + 999) + " seconds");
+            return;
+        }
+        // Whatever the client sent next, e.g. the NICK it identified for, waits for the hash
+        SerialExecutor executor = user.getExecutor();
+        executor.suspend();
+        accounts.checkPassword(nick, password).whenComplete((ok, t) -> executor.resume(() -> {
+            if (t != null) {
+                user.getSession().getLogger().warn("Couldn't check the password for " + nick, Util.unwrapCompletion(t));
+                user.send(user.numerics().rplTryAgain("IDENTIFY"));
+            } else if (!ok) {
+                user.send(user.numerics().errPasswdMismatch());
+            } else {
+                accounts.setIdentified(user, nick);
+                user.send(user.numerics().rplLoggedIn(user.getHostmask(), nick));
+            }
+        }));
+    }
+
+    private static void notice(User user, String text) {
+        String target = user.getNick();
+        user.send(Message.withPrefix(user.getServer(), "NOTICE", target == null ? "*" : target, text));
+    }
+}
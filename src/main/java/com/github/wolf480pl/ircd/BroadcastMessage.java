@@ -0,0 +1,88 @@
+/*
+ * This file is part of IRCd4j.
+ *
+ * Copyright (c) 2014 Wolf480pl <wolf480@interia.pl>
+ * IRCd4j is licensed under the GNU Lesser General Public License.
+ *
+ * IRCd4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * IRCd4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.wolf480pl.ircd;
+
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+/*
+ * A message going to many recipients. The transport serializes it the first time it's sent
+ * and every other recipient gets the same bytes. Close it once it's been sent to everyone.
+ */
+public class BroadcastMessage implements AutoCloseable {
+    private static final Encoded CLOSED = () -> {};
+
+    private final Message message;
+    private final boolean droppable;
+    private final AtomicReference<Encoded> encoded = new AtomicReference<>(null);
+
+    public BroadcastMessage(Message message) {
+        this(message, false);
+    }
+
+    public BroadcastMessage(Message message, boolean droppable) {
+        this.message = message;
+        this.droppable = droppable;
+    }
+
+    public Message getMessage() {
+        return message;
+    }
+
+    // See Session.sendDroppable
+    public boolean isDroppable() {
+        return droppable;
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T extends Encoded> T getEncoded(Function<Message, T> encoder) {
+        Encoded enc = encoded.get();
+        if (enc == null) {
+            T fresh = encoder.apply(message);
+            if (encoded.compareAndSet(null, fresh)) {
+                return fresh;
+            }
+            // Someone else was faster
+            fresh.release();
+            enc = encoded.get();
+        }
+        if (enc == CLOSED) {
+            throw new IllegalStateException("Broadcast message already closed");
+        }
+        return (T) enc;
+    }
+
+    @Override
+    public void close() {
+        Encoded enc = encoded.getAndSet(CLOSED);
+        if (enc != null) {
+            enc.release();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return message.toString();
+    }
+
+    public static interface Encoded {
+        void release();
+    }
+}
@@ -0,0 +1,309 @@
+/*
+ * This file is part of IRCd4j.
+ *
+ * Copyright (c) 2014 Wolf480pl <wolf480@interia.pl>
+ * IRCd4j is licensed under the GNU Lesser General Public License.
+ *
+ * IRCd4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * IRCd4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.wolf480pl.ircd;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import com.github.wolf480pl.ircd.link.LinkManager;
+import com.github.wolf480pl.ircd.util.SerialExecutor;
+
+public class ChannelCommands {
+    // Leaves room for the prefix, numeric, target nick and channel name in a 512-byte line
+    private static final int NAMES_LINE_LENGTH = 400;
+
+    private final ChannelRegistry channels;
+    private final UserRegistry users;
+    private final LinkManager links;
+    private final HistoryCommands history;
+
+    public ChannelCommands(ChannelRegistry channels) {
+        this(channels, null);
+    }
+
+    public ChannelCommands(ChannelRegistry channels, UserRegistry users) {
+        this(channels, users, null);
+    }
+
+    public ChannelCommands(ChannelRegistry channels, UserRegistry users, LinkManager links) {
+        this(channels, users, links, null);
+    }
+
+    // links can be null if this server doesn't link with others, history if it doesn't keep any
+    public ChannelCommands(ChannelRegistry channels, UserRegistry users, LinkManager links, HistoryCommands history) {
+        this.channels = channels;
+        this.users = users;
+        this.links = links;
+        this.history = history;
+    }
+
+    public void register(CommandRegistry handler) {
+        handler.putCommand("JOIN", registered(this::join));
+        handler.putCommand("PART", registered(this::part));
+        handler.putCommand("PRIVMSG", registered((user, args) -> message(user, args, "PRIVMSG")));
+        handler.putCommand("NOTICE", registered((user, args) -> message(user, args, "NOTICE")));
+        handler.putCommand("NAMES", registered(this::names));
+        handler.putCommand("TOPIC", registered(this::topic));
+    }
+
+    public void join(User user, List<String> args) {
+        if (args.size() < 1) {
+            user.send(user.numerics().errNeedMoreParams("JOIN"));
+            return;
+        }
+        if (args.get(0).equals("0")) {
+            for (IRCChannel channel : channels.channelsOf(user)) {
+                part(user, channel, user.getNick());
+            }
+            return;
+        }
+        // TODO: Channel keys
+        for (String name : split(args.get(0))) {
+            if (!ChannelRegistry.isChannelName(name)) {
+                user.send(user.numerics().errNoSuchChannel(name));
+                continue;
+            }
+            IRCChannel existing = channels.getChannel(name);
+            if (existing != null && channels.isOn(user, existing)) {
+                continue;
+            }
+            IRCChannel channel = channels.join(user, name);
+            channel.broadcast(Message.withPrefix(user.getHostmask(), "JOIN", channel.getName()));
+            if (links != null) {
+                links.joined(user, channel);
+            }
+            sendTopic(user, channel, false);
+            sendNames(user, channel);
+            if (history != null) {
+                history.sendBacklog(user, channel);
+            }
+        }
+    }
+
+    public void part(User user, List<String> args) {
+        if (args.size() < 1) {
+            user.send(user.numerics().errNeedMoreParams("PART"));
+            return;
+        }
+        String reason = args.size() >= 2 ? args.get(1) : user.getNick();
+        for (String name : split(args.get(0))) {
+            IRCChannel channel = channels.getChannel(name);
+            if (channel == null) {
+                user.send(user.numerics().errNoSuchChannel(name));
+            } else if (!channels.isOn(user, channel)) {
+                user.send(user.numerics().errNotOnChannel(channel.getName()));
+            } else {
+                part(user, channel, reason);
+            }
+        }
+    }
+
+    protected void part(User user, IRCChannel channel, String reason) {
+        channel.broadcast(Message.withPrefix(user.getHostmask(), "PART", channel.getName(), reason));
+        channels.part(user, channel);
+        if (links != null) {
+            links.parted(user, channel, reason);
+        }
+    }
+
+    public void message(User user, List<String> args, String command) {
+        // No automatic replies to NOTICE, not even errors
+        final boolean notice = command.equals("NOTICE");
+        if (args.size() < 1) {
+            if (!notice) {
+                user.send(user.numerics().errNoRecipient(command));
+            }
+            return;
+        }
+        if (args.size() < 2 || args.get(1).isEmpty()) {
+            if (!notice) {
+                user.send(user.numerics().errNoTextToSend());
+            }
+            return;
+        }
+        sendToTargets(user, command, notice, args.get(1), split(args.get(0)).iterator());
+    }
+
+    private void sendToTargets(User user, String command, boolean notice, String text, Iterator<String> targets) {
+        while (targets.hasNext()) {
+            final String target = targets.next();
+            if (ChannelRegistry.isChannelName(target)) {
+                sendToChannel(user, command, notice, text, target);
+                continue;
+            }
+            User recipient = users == null ? null : users.getUser(target);
+            if (recipient == null && users != null && users.isShared()) {
+                CompletableFuture<User> future = users.lookup(target);
+                if (!future.isDone()) {
+                    // They may be on another node, the rest waits until we know, and so does whatever the client sent next
+                    SerialExecutor executor = user.getExecutor();
+                    executor.suspend();
+                    future.whenComplete((found, t) -> executor.resume(() -> {
+                        sendToUser(user, command, notice, text, target, found);
+                        sendToTargets(user, command, notice, text, targets);
+                    }));
+                    return;
+                }
+                recipient = future.isCompletedExceptionally() ? null : future.join();
+            }
+            sendToUser(user, command, notice, text, target, recipient);
+        }
+    }
+
+    private void sendToChannel(User user, String command, boolean notice, String text, String target) {
+        IRCChannel channel = channels.getChannel(target);
+        if (channel == null) {
+            if (!notice) {
+                user.send(user.numerics().errNoSuchChannel(target));
+            }
+        } else if (!channels.isOn(user, channel)) {
+            // TODO: Channel modes, for now it's always +n
+            if (!notice) {
+                user.send(user.numerics().errCannotSendToChan(channel.getName()));
+            }
+        } else {
+            channels.message(channel, Message.withPrefix(user.getHostmask(), command, channel.getName(), text), user);
+            if (links != null) {
+                links.channelMessage(user, channel, command, text);
+            }
+        }
+    }
+
+    // recipient is null if there's no such user
+    private void sendToUser(User user, String command, boolean notice, String text, String target, User recipient) {
+        if (recipient == null) {
+            if (!notice) {
+                user.send(user.numerics().errNoSuchNick(target));
+            }
+        } else {
+            try {
+                recipient.sendDroppable(Message.withPrefix(user.getHostmask(), command, recipient.getNick(), text));
+            } catch (IllegalStateException e) {
+                // Disconnected, but didn't quit yet, as far as the sender can tell it got there
+            }
+        }
+    }
+
+    public void names(User user, List<String> args) {
+        if (args.size() < 1) {
+            for (IRCChannel channel : channels.channelsOf(user)) {
+                sendNames(user, channel);
+            }
+            return;
+        }
+        for (String name : split(args.get(0))) {
+            IRCChannel channel = channels.getChannel(name);
+            if (channel == null) {
+                user.send(user.numerics().rplEndOfNames(name));
+            } else {
+                sendNames(user, channel);
+            }
+        }
+    }
+
+    public void topic(User user, List<String> args) {
+        if (args.size() < 1) {
+            user.send(user.numerics().errNeedMoreParams("TOPIC"));
+            return;
+        }
+        String name = args.get(0);
+        IRCChannel channel = channels.getChannel(name);
+        if (channel == null) {
+            user.send(user.numerics().errNoSuchChannel(name));
+            return;
+        }
+        if (args.size() < 2) {
+            sendTopic(user, channel, true);
+            return;
+        }
+        if (!channels.isOn(user, channel)) {
+            user.send(user.numerics().errNotOnChannel(channel.getName()));
+            return;
+        }
+        String text = args.get(1);
+        String hostmask = user.getHostmask();
+        // An empty topic clears it
+        channel.setTopic(text.isEmpty() ? null : new IRCChannel.Topic(text, hostmask, System.currentTimeMillis() / 1000));
+        channels.topicChanged(channel);
+        channel.broadcast(Message.withPrefix(hostmask, "TOPIC", channel.getName(), text));
+        if (links != null) {
+            links.topicChanged(user, channel, text);
+        }
+    }
+
+    protected void sendTopic(User user, IRCChannel channel, boolean replyIfNone) {
+        IRCChannel.Topic topic = channel.getTopic();
+        if (topic == null) {
+            if (replyIfNone) {
+                user.send(user.numerics().rplNoTopic(channel.getName()));
+            }
+            return;
+        }
+        user.send(user.numerics().rplTopic(channel.getName(), topic.getText()));
+        user.send(user.numerics().rplTopicWhoTime(channel.getName(), topic.getSetBy(), topic.getSetAt()));
+    }
+
+    protected void sendNames(User user, IRCChannel channel) {
+        StringBuilder names = new StringBuilder();
+        for (User member : channel.getMembers()) {
+            String nick = member.getNick();
+            if (names.length() > 0 && names.length() + nick.length() + 1 > NAMES_LINE_LENGTH) {
+                user.send(user.numerics().rplNamReply(channel.getName(), names.toString()));
+                names.setLength(0);
+            }
+            if (names.length() > 0) {
+                names.append(' ');
+            }
+            names.append(nick);
+        }
+        if (names.length() > 0) {
+            user.send(user.numerics().rplNamReply(channel.getName(), names.toString()));
+        }
+        user.send(user.numerics().rplEndOfNames(channel.getName()));
+    }
+
+    private static List<String> split(String list) {
+        List<String> result = new ArrayList<>();
+        int start = 0;
+        int comma;
+        while ((comma = list.indexOf(',', start)) >= 0) {
+            if (comma > start) {
+                result.add(list.substring(start, comma));
+            }
+            start = comma + 1;
+        }
+        if (start < list.length()) {
+            result.add(list.substring(start));
+        }
+        return result;
+    }
+
+    private static Command registered(Command cmd) {
+        return (user, args) -> {
+            if (!user.isRegistered()) {
+                user.send(user.numerics().errNotRegistered());
+                return;
+            }
+            cmd.execute(user, args);
+        };
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * This file is part of IRCd4j.
+ *
+ * Copyright (c) 2014 Wolf480pl <wolf480@interia.pl>
+ * IRCd4j is licensed under the GNU Lesser General Public License.
+ *
+ * IRCd4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * IRCd4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.wolf480pl.ircd;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+
+/*
+ * Recent PRIVMSGs and NOTICEs of channels, for CHATHISTORY and the backlog sent on JOIN.
+ * It's up to the transport how they're kept, since it's the transport that knows how they're encoded.
+ */
+public interface ChannelHistory {
+    // Tags for replayed lines, see replay
+    int TAG_TIME = 1;
+    int TAG_MSGID = 2;
+
+    DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'").withZone(ZoneOffset.UTC);
+
+    /*
+     * Called with every message sent to a channel, before it's broadcast.
+     * Returns the time it was recorded at, in milliseconds, which the live message is tagged with too, or 0 if it wasn't kept.
+     */
+    long record(IRCChannel channel, BroadcastMessage msg);
+
+    /*
+     * Sends the user what the query selects, oldest first, with the tags asked for,
+     * and a batch tag too unless batch is null. Returns how many lines it sent.
+     */
+    int replay(IRCChannel channel, HistoryQuery query, User user, int tags, String batch);
+
+    // As the server-time tag wants it
+    static String formatTime(long millis) {
+        return TIME_FORMAT.format(Instant.ofEpochMilli(millis));
+    }
+}
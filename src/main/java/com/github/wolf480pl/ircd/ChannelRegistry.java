@@ -0,0 +1,197 @@
+/*
+ * This file is part of IRCd4j.
+ *
+ * Copyright (c) 2014 Wolf480pl <wolf480@interia.pl>
+ * IRCd4j is licensed under the GNU Lesser General Public License.
+ *
+ * IRCd4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * IRCd4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.wolf480pl.ircd;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import com.github.wolf480pl.ircd.store.ChannelTopics;
+import com.github.wolf480pl.ircd.util.AttributeKey;
+import com.github.wolf480pl.ircd.util.CaseMappedMap;
+
+public class ChannelRegistry {
+    public static final int MAX_CHANNEL_NAME_LENGTH = 50;
+
+    private static final AttributeKey<Set<IRCChannel>> ATTR_CHANNELS = AttributeKey.valueOf(ChannelRegistry.class.getCanonicalName() + ".channels");
+
+    private final CaseMappedMap<IRCChannel> channels = new CaseMappedMap<>();
+    private final ChannelTopics topics;
+    private final ChannelHistory history;
+
+    public ChannelRegistry() {
+        this(null);
+    }
+
+    public ChannelRegistry(ChannelTopics topics) {
+        this(topics, null);
+    }
+
+    // topics can be null to not keep topics of channels that die, history to not keep messages
+    public ChannelRegistry(ChannelTopics topics, ChannelHistory history) {
+        this.topics = topics;
+        this.history = history;
+    }
+
+    public ChannelHistory getHistory() {
+        return history;
+    }
+
+    public IRCChannel getChannel(CharSequence name) {
+        return channels.get(name);
+    }
+
+    public int size() {
+        return channels.size();
+    }
+
+    // Weakly consistent
+    public void forEach(Consumer<IRCChannel> action) {
+        channels.forEach((name, channel) -> action.accept(channel));
+    }
+
+    // Must be called from the user's thread, see Threading.md
+    public IRCChannel join(User user, String name) {
+        while (true) {
+            IRCChannel channel = channels.get(name);
+            if (channel == null) {
+                IRCChannel fresh = new IRCChannel(name);
+                if (topics != null) {
+                    topics.restore(fresh);
+                }
+                channel = channels.putIfAbsent(name, fresh);
+                if (channel == null) {
+                    channel = fresh;
+                }
+            }
+            if (channel.join(user)) {
+                channelsOf(user).add(channel);
+                return channel;
+            }
+            // It died before we got in, make sure it's gone and try again
+            channels.remove(name, channel);
+        }
+    }
+
+    // Must be called from the user's thread
+    public boolean part(User user, IRCChannel channel) {
+        if (!channelsOf(user).remove(channel)) {
+            return false;
+        }
+        if (channel.part(user)) {
+            channels.remove(channel.getName(), channel);
+        }
+        return true;
+    }
+
+    public void partAll(User user) {
+        for (IRCChannel channel : channelsOf(user)) {
+            part(user, channel);
+        }
+    }
+
+    /*
+     * PRIVMSG or NOTICE to a channel, which goes into its history. Members can miss it if their SendQ is full.
+     * Those with server-time get it tagged with the same time it's got in the history.
+     */
+    public void message(IRCChannel channel, Message msg, User except) {
+        try (BroadcastMessage broadcast = new BroadcastMessage(msg, true)) {
+            if (history == null) {
+                channel.broadcast(broadcast, except);
+                return;
+            }
+            long time = history.record(channel, broadcast);
+            Message tagged = new Message(msg.getPrefix(), msg.getCommand(), msg.getParams());
+            tagged.setTags("time=" + ChannelHistory.formatTime(time == 0 ? System.currentTimeMillis() : time));
+            try (BroadcastMessage stamped = new BroadcastMessage(tagged, true)) {
+                channel.broadcast(broadcast, stamped, (user) -> IRCCommands.hasCap(user, HistoryCommands.CAP_SERVER_TIME), except);
+            }
+        }
+    }
+
+    // Call after every setTopic
+    public void topicChanged(IRCChannel channel) {
+        if (topics != null) {
+            topics.save(channel);
+        }
+    }
+
+    public Set<IRCChannel> channelsOf(User user) {
+        return user.attr(ATTR_CHANNELS, makeChannelSet);
+    }
+
+    public boolean isOn(User user, IRCChannel channel) {
+        Set<IRCChannel> joined = user.attr(ATTR_CHANNELS);
+        return joined != null && joined.contains(channel);
+    }
+
+    // Sends to everyone sharing a channel with the user, each of them only once
+    public void broadcastToCommon(User user, Message msg, boolean includeSelf) {
+        Set<IRCChannel> joined = user.attr(ATTR_CHANNELS);
+        try (BroadcastMessage broadcast = new BroadcastMessage(msg)) {
+            if (includeSelf) {
+                IRCChannel.sendTo(user, broadcast);
+            }
+            if (joined == null || joined.isEmpty()) {
+                return;
+            }
+            if (joined.size() == 1) {
+                joined.iterator().next().broadcast(broadcast, user);
+                return;
+            }
+            Set<User> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+            seen.add(user);
+            for (IRCChannel channel : joined) {
+                for (User member : channel.getMembers()) {
+                    if (seen.add(member)) {
+                        IRCChannel.sendTo(member, broadcast);
+                    }
+                }
+            }
+        }
+    }
+
+    public static boolean isChannelName(CharSequence name) {
+        final int length = name.length();
+        if (length < 2 || length > MAX_CHANNEL_NAME_LENGTH) {
+            return false;
+        }
+        char first = name.charAt(0);
+        if (first != '#' && first != '&') {
+            return false;
+        }
+        for (int i = 1; i < length; ++i) {
+            char c = name.charAt(i);
+            if (c == ' ' || c == ',' || c == '\u0007' || c == '\0' || c == '\r' || c == '\n') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Set<IRCChannel> newChannelSet() {
+        return Collections.newSetFromMap(new ConcurrentHashMap<>());
+    }
+
+    private static final Supplier<Set<IRCChannel>> makeChannelSet = ChannelRegistry::newChannelSet;
+}
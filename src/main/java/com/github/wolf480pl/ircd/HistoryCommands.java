@@ -0,0 +1,137 @@
+/*
+ * This file is part of IRCd4j.
+ *
+ * Copyright (c) 2014 Wolf480pl <wolf480@interia.pl>
+ * IRCd4j is licensed under the GNU Lesser General Public License.
+ *
+ * IRCd4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * IRCd4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.wolf480pl.ircd;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * IRCv3 CHATHISTORY, and a backlog of the latest lines on JOIN for clients with server-time that won't ask for it.
+ * Replies are wrapped in a batch for clients that have the batch capability, and tagged with the time if they have server-time.
+ * There's no message-tags, since clients' tags aren't parsed, so no msgid either: CHATHISTORY goes by timestamp.
+ */
+public class HistoryCommands {
+    public static final int MAX_LIMIT = 100;
+    public static final int DEFAULT_BACKLOG = 20;
+    public static final String CAP_CHATHISTORY = "draft/chathistory";
+    public static final String CAP_BATCH = "batch";
+    public static final String CAP_SERVER_TIME = "server-time";
+    public static final List<String> CAPABILITIES = Arrays.asList(CAP_BATCH, CAP_CHATHISTORY, CAP_SERVER_TIME);
+
+    private final ChannelRegistry channels;
+    private final ChannelHistory history;
+    private final int backlog;
+    private final AtomicLong batchIds = new AtomicLong();
+
+    public HistoryCommands(ChannelRegistry channels, ChannelHistory history) {
+        this(channels, history, DEFAULT_BACKLOG);
+    }
+
+    // backlog is how many lines to send on JOIN, 0 for none
+    public HistoryCommands(ChannelRegistry channels, ChannelHistory history, int backlog) {
+        this.channels = channels;
+        this.history = history;
+        this.backlog = backlog;
+    }
+
+    public void register(CommandRegistry handler) {
+        handler.putCommand("CHATHISTORY", this::chathistory);
+    }
+
+    // CHATHISTORY <subcommand> <target> <reference> [<reference>] <limit>
+    public void chathistory(User user, List<String> args) {
+        if (!user.isRegistered()) {
+            user.send(user.numerics().errNotRegistered());
+            return;
+        }
+        if (args.size() < 4) {
+            fail(user, "NEED_MORE_PARAMS", "Insufficient parameters");
+            return;
+        }
+        final String subcommand = args.get(0).toUpperCase();
+        HistoryQuery.Type type;
+        try {
+            type = HistoryQuery.Type.valueOf(subcommand);
+        } catch (IllegalArgumentException e) {
+            fail(user, "INVALID_PARAMS", subcommand, "Unknown subcommand");
+            return;
+        }
+        if (type == HistoryQuery.Type.BETWEEN && args.size() < 5) {
+            fail(user, "NEED_MORE_PARAMS", "Insufficient parameters");
+            return;
+        }
+        final String target = args.get(1);
+        IRCChannel channel = channels.getChannel(target);
+        // Only for those who could've seen it
+        if (channel == null || !channels.isOn(user, channel)) {
+            fail(user, "INVALID_TARGET", subcommand, target, "Messages could not be retrieved");
+            return;
+        }
+        HistoryQuery.Ref from;
+        HistoryQuery.Ref to = null;
+        int limit;
+        try {
+            from = HistoryQuery.Ref.parse(args.get(2));
+            if (type == HistoryQuery.Type.BETWEEN) {
+                to = HistoryQuery.Ref.parse(args.get(3));
+            }
+            limit = Integer.parseInt(args.get(type == HistoryQuery.Type.BETWEEN ? 4 : 3));
+        } catch (IllegalArgumentException e) {
+            fail(user, "INVALID_PARAMS", subcommand, "Invalid parameters");
+            return;
+        }
+        if ((from == null && type != HistoryQuery.Type.LATEST) || (type == HistoryQuery.Type.BETWEEN && to == null) || limit < 1) {
+            fail(user, "INVALID_PARAMS", subcommand, "Invalid parameters");
+            return;
+        }
+        replay(user, channel, new HistoryQuery(type, from, to, Math.min(limit, MAX_LIMIT)));
+    }
+
+    // Called once the user has got the JOIN and NAMES
+    public void sendBacklog(User user, IRCChannel channel) {
+        // Without times it'd look like it was said just now, and those who have CHATHISTORY fetch what they want themselves
+        if (backlog == 0 || !user.isLocal() || !IRCCommands.hasCap(user, CAP_SERVER_TIME) || IRCCommands.hasCap(user, CAP_CHATHISTORY)) {
+            return;
+        }
+        replay(user, channel, HistoryQuery.latest(backlog));
+    }
+
+    private void replay(User user, IRCChannel channel, HistoryQuery query) {
+        int tags = IRCCommands.hasCap(user, CAP_SERVER_TIME) ? ChannelHistory.TAG_TIME : 0;
+        if (!IRCCommands.hasCap(user, CAP_BATCH)) {
+            history.replay(channel, query, user, tags, null);
+            return;
+        }
+        final String batch = Long.toString(batchIds.incrementAndGet(), 36);
+        user.send(Message.withPrefix(user.getServer(), "BATCH", "+" + batch, "chathistory", channel.getName()));
+        history.replay(channel, query, user, tags, batch);
+        user.send(Message.withPrefix(user.getServer(), "BATCH", "-" + batch));
+    }
+
+    // IRCv3 standard replies
+    private static void fail(User user, String code, String... context) {
+        String[] params = new String[context.length + 2];
+        params[0] = "CHATHISTORY";
+        params[1] = code;
+        System.arraycopy(context, 0, params, 2, context.length);
+        user.send(Message.withPrefix(user.getServer(), "FAIL", params));
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * This file is part of IRCd4j.
+ *
+ * Copyright (c) 2014 Wolf480pl <wolf480@interia.pl>
+ * IRCd4j is licensed under the GNU Lesser General Public License.
+ *
+ * IRCd4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * IRCd4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.wolf480pl.ircd;
+
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+
+// What a CHATHISTORY request selects, see ChannelHistory
+public final class HistoryQuery {
+    public enum Type {
+        LATEST, BEFORE, AFTER, AROUND, BETWEEN
+    }
+
+    private final Type type;
+    private final Ref from;
+    private final Ref to;
+    private final int limit;
+
+    // from is null for LATEST *, to is only there for BETWEEN
+    public HistoryQuery(Type type, Ref from, Ref to, int limit) {
+        this.type = type;
+        this.from = from;
+        this.to = to;
+        this.limit = limit;
+    }
+
+    public static HistoryQuery latest(int limit) {
+        return new HistoryQuery(Type.LATEST, null, null, limit);
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public Ref getFrom() {
+        return from;
+    }
+
+    public Ref getTo() {
+        return to;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    // Either a msgid or a timestamp, in milliseconds
+    public static final class Ref {
+        private final String msgid;
+        private final long timestamp;
+
+        private Ref(String msgid, long timestamp) {
+            this.msgid = msgid;
+            this.timestamp = timestamp;
+        }
+
+        public static Ref msgid(String msgid) {
+            return new Ref(msgid, 0);
+        }
+
+        public static Ref timestamp(long timestamp) {
+            return new Ref(null, timestamp);
+        }
+
+        // msgid=... or timestamp=YYYY-MM-DDThh:mm:ss.sssZ, null for *
+        public static Ref parse(String str) {
+            if (str.equals("*")) {
+                return null;
+            }
+            if (str.startsWith("msgid=") && str.length() > 6) {
+                return msgid(str.substring(6));
+            }
+            if (str.startsWith("timestamp=")) {
+                try {
+                    return timestamp(Instant.parse(str.substring(10)).toEpochMilli());
+                } catch (DateTimeParseException e) {
+                    throw new IllegalArgumentException("Bad timestamp: " + str, e);
+                }
+            }
+            throw new IllegalArgumentException("Bad message reference: " + str);
+        }
+
+        public boolean isMsgid() {
+            return msgid != null;
+        }
+
+        public String getMsgid() {
+            return msgid;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        @Override
+        public String toString() {
+            return msgid != null ? "msgid=" + msgid : "timestamp=" + Instant.ofEpochMilli(timestamp);
+        }
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * This file is part of IRCd4j.
+ *
+ * Copyright (c) 2014 Wolf480pl <wolf480@interia.pl>
+ * IRCd4j is licensed under the GNU Lesser General Public License.
+ *
+ * IRCd4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * IRCd4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.wolf480pl.ircd;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Predicate;
+
+/*
+ * The member list is an immutable snapshot that joins and parts replace with a CAS,
+ * so anyone sending to the channel just iterates whatever snapshot they got, without locking.
+ * Once the last member leaves, the channel is dead for good, and whoever wants to join
+ * has to get a new one from the ChannelRegistry.
+ */
+public class IRCChannel {
+    private static final User[] NO_USERS = new User[0];
+    private static final Members DEAD = new Members(NO_USERS);
+
+    private final String name;
+    private final AtomicReference<Members> members = new AtomicReference<>(new Members(NO_USERS));
+    private volatile Topic topic;
+    // When the channel was created, in seconds. When servers link, the older one wins
+    private final AtomicLong timestamp = new AtomicLong(System.currentTimeMillis() / 1000);
+
+    public IRCChannel(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public List<User> getMembers() {
+        return Collections.unmodifiableList(Arrays.asList(members.get().users));
+    }
+
+    public long getTimestamp() {
+        return timestamp.get();
+    }
+
+    // Keeps whichever is older
+    public long mergeTimestamp(long other) {
+        return timestamp.accumulateAndGet(other, Math::min);
+    }
+
+    public int size() {
+        return members.get().users.length;
+    }
+
+    public boolean isDead() {
+        return members.get() == DEAD;
+    }
+
+    public boolean isMember(User user) {
+        return members.get().indexOf(user) >= 0;
+    }
+
+    // Returns false if the channel died in the meantime
+    public boolean join(User user) {
+        while (true) {
+            Members current = members.get();
+            if (current == DEAD) {
+                return false;
+            }
+            if (current.indexOf(user) >= 0) {
+                return true;
+            }
+            if (members.compareAndSet(current, current.with(user))) {
+                return true;
+            }
+        }
+    }
+
+    // Returns true if the channel is now empty and dead
+    public boolean part(User user) {
+        while (true) {
+            Members current = members.get();
+            int index = current.indexOf(user);
+            if (index < 0) {
+                return current == DEAD;
+            }
+            Members next = current.users.length == 1 ? DEAD : current.without(index);
+            if (members.compareAndSet(current, next)) {
+                return next == DEAD;
+            }
+        }
+    }
+
+    public void broadcast(Message msg) {
+        broadcast(msg, null);
+    }
+
+    public void broadcast(Message msg, User except) {
+        broadcast(msg, except, false);
+    }
+
+    public void broadcast(Message msg, User except, boolean droppable) {
+        try (BroadcastMessage broadcast = new BroadcastMessage(msg, droppable)) {
+            broadcast(broadcast, except);
+        }
+    }
+
+    public void broadcast(BroadcastMessage msg, User except) {
+        for (User user : members.get().users) {
+            if (user != except) {
+                sendTo(user, msg);
+            }
+        }
+    }
+
+    // Those the predicate picks get the other version, e.g. one with tags they asked for
+    public void broadcast(BroadcastMessage msg, BroadcastMessage other, Predicate<User> wantsOther, User except) {
+        for (User user : members.get().users) {
+            if (user != except) {
+                sendTo(user, wantsOther.test(user) ? other : msg);
+            }
+        }
+    }
+
+    // Users of other servers get channel traffic through their server's link, see LinkManager
+    static void sendTo(User user, BroadcastMessage msg) {
+        if (!user.isLocal() || user.isQuitted()) {
+            return;
+        }
+        try {
+            user.sendEncoded(msg);
+        } catch (IllegalStateException e) {
+            // Disconnected, but didn't part yet
+        }
+    }
+
+    public Topic getTopic() {
+        return topic;
+    }
+
+    public void setTopic(Topic topic) {
+        this.topic = topic;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+    private static final class Members {
+        final User[] users;
+
+        Members(User[] users) {
+            this.users = users;
+        }
+
+        int indexOf(User user) {
+            final User[] array = users;
+            for (int i = 0; i < array.length; ++i) {
+                if (array[i] == user) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        Members with(User user) {
+            User[] array = Arrays.copyOf(users, users.length + 1);
+            array[users.length] = user;
+            return new Members(array);
+        }
+
+        Members without(int index) {
+            User[] array = new User[users.length - 1];
+            System.arraycopy(users, 0, array, 0, index);
+            System.arraycopy(users, index + 1, array, index, array.length - index);
+            return new Members(array);
+        }
+    }
+
+    public static final class Topic {
+        private final String text;
+        private final String setBy;
+        private final long setAt;
+
+        public Topic(String text, String setBy, long setAt) {
+            this.text = text;
+            this.setBy = setBy;
+            this.setAt = setAt;
+        }
+
+        public String getText() {
+            return text;
+        }
+
+        public String getSetBy() {
+            return setBy;
+        }
+
+        // Unix time, in seconds
+        public long getSetAt() {
+            return setAt;
+        }
+    }
+}
@@ -20,22 +20,47 @@
 package com.github.wolf480pl.ircd;
 
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Supplier;
 
+import com.github.wolf480pl.ircd.link.LinkManager;
+import com.github.wolf480pl.ircd.metrics.Metrics;
 import com.github.wolf480pl.ircd.util.AttributeKey;
+import com.github.wolf480pl.ircd.util.SerialExecutor;
 import com.github.wolf480pl.ircd.util.Util;
 
 public class IRCCommands {
     private final UserRegistry registry;
+    private final ChannelRegistry channels;
+    private final Metrics metrics;
+    private final LinkManager links;
+    private final Set<String> capabilities = new CopyOnWriteArraySet<>();
 
     public IRCCommands() {
         this(null);
     }
 
     public IRCCommands(UserRegistry registry) {
+        this(registry, null);
+    }
+
+    public IRCCommands(UserRegistry registry, ChannelRegistry channels) {
+        this(registry, channels, null);
+    }
+
+    public IRCCommands(UserRegistry registry, ChannelRegistry channels, Metrics metrics) {
+        this(registry, channels, metrics, null);
+    }
+
+    // links can be null if this server doesn't link with others
+    public IRCCommands(UserRegistry registry, ChannelRegistry channels, Metrics metrics, LinkManager links) {
         this.registry = registry;
+        this.channels = channels;
+        this.metrics = metrics;
+        this.links = links;
     }
 
     public void register(CommandRegistry handler) {
@@ -44,6 +69,17 @@ public class IRCCommands {
         handler.putCommand("QUIT", this::quit);
         handler.putCommand("PONG", (user, args)->{});
         handler.putCommand("PING", this::ping);
+        handler.putCommand("CAP", this::cap);
+    }
+
+    // IRCv3 capabilities offered in CAP LS, added by whoever implements them
+    public void addCapability(String cap) {
+        capabilities.add(cap);
+    }
+
+    public static boolean hasCap(User user, String cap) {
+        Set<String> caps = user.attr(ATTR_CAPS);
+        return caps != null && caps.contains(cap);
     }
 
     private static final AttributeKey<AtomicReference<RegistrationData>> ATTR_REGDATA = AttributeKey.valueOf(RegistrationData.class.getCanonicalName());
@@ -60,7 +96,9 @@ public class IRCCommands {
             return;
         }
 
-        if (registry != null && registry.getUser(nick) != null) {
+        // A shared registry only caches other nodes' nicks, so it's up to the reservation to say whether it's taken
+        User existing = registry == null || registry.isShared() ? null : registry.getUser(nick);
+        if (existing != null && existing != user) {
             /* RFC 1459 says if it's during registration, this should be ERR_NICKCOLLISION,
              * but RFC 2812 says NICKCOLLISION is only if both are already registered.
              * As for ERR_NICKNAMEINUSE, both RFCs say it's for nick change only.
@@ -79,34 +117,49 @@ public class IRCCommands {
                 futureNick = registry.changeNick(user, nick);
             }
 
-            futureNick.thenAccept((String newNick) -> {
-                if (newNick == null) {
-                    user.send(user.numerics().errNicknameInUse(nick));
-                } else {
-                    user.send(Message.withPrefix(user.getHostmask(), "NICK", newNick));
-                    user.setNick(newNick);
-                }
-
-            }).exceptionally((Throwable t) -> {
-                if (!(t instanceof DropMessageException)) {
-                    throw Util.ensureUnchecked(t);
-                }
-
-                user.maybeSend(user.numerics().rplTryAgain("NICK", (DropMessageException) t));
-                return null;
-            });
+            // Hold whatever came after this NICK until it is applied, or a second NICK would still see the old nick as ours
+            SerialExecutor executor = user.getExecutor();
+            executor.suspend();
+            futureNick.whenComplete((newNick, t) -> executor.resume(() -> completeNickChange(user, nick, newNick, t)));
         } else {
             RegistrationData regdata = user.attr(ATTR_REGDATA, makeRegdata).get();
 
             user.setNick(nick);
             regdata.gotNick = true;
 
-            if (regdata.gotUser) {
+            if (regdata.gotUser && !regdata.negotiatingCaps) {
                 registerUser(user);
             }
         }
     }
 
+    private void completeNickChange(User user, String nick, String newNick, Throwable t) {
+        if (t != null) {
+            t = Util.unwrapCompletion(t);
+            if (!(t instanceof DropMessageException)) {
+                throw Util.ensureUnchecked(t);
+            }
+            user.maybeSend(user.numerics().rplTryAgain("NICK", (DropMessageException) t));
+            return;
+        }
+        if (newNick == null) {
+            user.send(user.numerics().errNicknameInUse(nick));
+            return;
+        }
+        final String oldNick = user.getNick();
+        Message msg = Message.withPrefix(user.getHostmask(), "NICK", newNick);
+        if (channels == null) {
+            user.send(msg);
+        } else {
+            channels.broadcastToCommon(user, msg, true);
+        }
+        user.setNick(newNick);
+        user.setNickTimestamp(System.currentTimeMillis() / 1000);
+        if (links != null) {
+            links.nickChanged(user, oldNick);
+        }
+    }
+
     public void user(User user, List<String> args) {
         if (args.size() < 4) {
             user.send(user.numerics().errNeedMoreParams("USER"));
@@ -125,7 +178,7 @@ public class IRCCommands {
 
             regdata.gotUser = true;
 
-            if (regdata.gotNick) {
+            if (regdata.gotNick && !regdata.negotiatingCaps) {
                 registerUser(user);
             }
         }
@@ -137,28 +190,59 @@ public class IRCCommands {
             // Already registered
             return;
         }
-        CompletableFuture<Void> future;
-        if (registry == null) {
-            future = CompletableFuture.completedFuture(null);
-        } else {
-            future = registry.register(user);
-        }
+        final long start = System.nanoTime();
+        // Both steps change the user's state, so they go through the user's executor.
+        // Hold whatever the client sent after NICK/USER until we're done, so it doesn't see a half-registered user.
+        SerialExecutor executor = user.getExecutor();
+        executor.suspend();
+        // Registration goes on once the hostname lookup started on connect is done
+        user.getHostnameLookup().whenComplete((hostname, t) -> executor.resume(() -> {
+            if (t != null) {
+                completeRegistration(user, regdata, start, t);
+                return;
+            }
+            // The lookup's own update of it may be stuck behind us in the mailbox, and the registry may want it
+            user.setHostname(hostname);
+            if (registry == null) {
+                completeRegistration(user, regdata, start, null);
+                return;
+            }
+            CompletableFuture<Void> future = registry.register(user);
+            executor.suspend();
+            future.whenComplete((ignored, t2) -> executor.resume(() -> completeRegistration(user, regdata, start, t2)));
+        }));
+    }
 
-        future.thenRun(() -> {
+    private void completeRegistration(User user, RegistrationData regdata, long start, Throwable t) {
+        if (t == null) {
+            if (metrics != null) {
+                metrics.registered(System.nanoTime() - start);
+            }
             user.send(user.numerics().rplWelcome("TODO"));
+            user.setNickTimestamp(System.currentTimeMillis() / 1000);
             user.setRegisterd();
+            if (links != null) {
+                links.userRegistered(user);
+            }
             luser(user);
             motd(user);
+            return;
+        }
 
-        }).exceptionally((Throwable t) -> {
-            if (!(t instanceof DropMessageException)) {
-                throw Util.ensureUnchecked(t);
-            }
+        t = Util.unwrapCompletion(t);
+        if (t instanceof NicknameInUseException) {
+            // Someone else took the nick while we were registering, let the client pick another one
+            regdata.gotNick = false;
+            user.attr(ATTR_REGDATA).set(regdata);
+            user.send(user.numerics().errNicknameInUse(((NicknameInUseException) t).getNick()));
+            return;
+        }
+        if (!(t instanceof DropMessageException)) {
+            throw Util.ensureUnchecked(t);
+        }
 
-            // TODO: Should we differentiate between NICK and USER ?
-            user.maybeSend(user.numerics().rplTryAgain("NICK", (DropMessageException) t));
-            return null;
-        });
+        // TODO: Should we differentiate between NICK and USER ?
+        user.maybeSend(user.numerics().rplTryAgain("NICK", (DropMessageException) t));
     }
 
     public void quit(User user, List<String> args) {
@@ -182,8 +266,10 @@ public class IRCCommands {
         if (args.size() >= 2) {
             target = args.get(1);
             if (!target.equalsIgnoreCase(we)) {
-                //TODO: Support other servers
-                user.send(user.numerics().errNoSuchServer(target));
+                // The PONG comes back from there, if it exists
+                if (links == null || !links.ping(user, origin, target)) {
+                    user.send(user.numerics().errNoSuchServer(target));
+                }
                 return;
             }
         } else {
@@ -204,17 +290,29 @@ public class IRCCommands {
     }
 
     public void onQuit(User user, String reason) {
-        // TODO: broadcast this
-        user.getSession().getLogger().debug("B " + Message.withPrefix(user.getHostmask(), "QUIT", reason));
+        if (registry != null) {
+            try {
+                registry.unregister(user);
+            } catch (DropMessageException e) {
+                user.getSession().getLogger().warn("Couldn't unregister " + user.getNick(), e);
+            }
+        }
+        if (channels != null) {
+            channels.broadcastToCommon(user, Message.withPrefix(user.getHostmask(), "QUIT", reason), false);
+            channels.partAll(user);
+        }
+        if (links != null) {
+            links.userQuit(user, reason);
+        }
     }
 
     public void luser(User user) {
         //TODO get some sensible numbers into the vars below
         int users = 1;
         int invisible = 0;
-        int servers = 1;
+        int servers = links == null ? 1 : links.getServerCount() + 1;
         int myClients = 1;
-        int myServers = 0;
+        int myServers = links == null ? 0 : links.getLinkCount();
 
         user.send(user.numerics().rplLuserClient(users, invisible, servers));
         user.send(user.numerics().rplLuserMe(myClients, myServers));
@@ -226,6 +324,72 @@ public class IRCCommands {
         user.send(user.numerics().rplEndOfMotd());
     }
 
+    // CAP LS, LIST, REQ and END. LS or REQ before registering holds the registration until END
+    public void cap(User user, List<String> args) {
+        if (args.size() < 1) {
+            user.send(user.numerics().errNeedMoreParams("CAP"));
+            return;
+        }
+        final String subcommand = args.get(0).toUpperCase();
+        final String target = user.getNick() == null ? "*" : user.getNick();
+        final String server = user.getServer();
+        switch (subcommand) {
+            case "LS":
+                holdRegistration(user);
+                user.send(Message.withPrefix(server, "CAP", target, "LS", String.join(" ", capabilities)));
+                break;
+            case "LIST":
+                Set<String> enabled = user.attr(ATTR_CAPS);
+                user.send(Message.withPrefix(server, "CAP", target, "LIST", enabled == null ? "" : String.join(" ", enabled)));
+                break;
+            case "REQ":
+                if (args.size() < 2) {
+                    user.send(user.numerics().errNeedMoreParams("CAP"));
+                    return;
+                }
+                holdRegistration(user);
+                final String requested = args.get(1).trim();
+                String[] caps = requested.split(" +");
+                // All or nothing
+                for (String cap : caps) {
+                    if (!capabilities.contains(cap.startsWith("-") ? cap.substring(1) : cap)) {
+                        user.send(Message.withPrefix(server, "CAP", target, "NAK", requested));
+                        return;
+                    }
+                }
+                Set<String> current = user.attr(ATTR_CAPS, makeCapSet);
+                for (String cap : caps) {
+                    if (cap.startsWith("-")) {
+                        current.remove(cap.substring(1));
+                    } else {
+                        current.add(cap);
+                    }
+                }
+                user.send(Message.withPrefix(server, "CAP", target, "ACK", requested));
+                break;
+            case "END":
+                RegistrationData regdata = user.isRegistered() ? null : user.attr(ATTR_REGDATA, makeRegdata).get();
+                if (regdata != null && regdata.negotiatingCaps) {
+                    regdata.negotiatingCaps = false;
+                    if (regdata.gotNick && regdata.gotUser) {
+                        registerUser(user);
+                    }
+                }
+                break;
+            default:
+                user.send(user.numerics().errInvalidCapCmd(subcommand));
+        }
+    }
+
+    private void holdRegistration(User user) {
+        if (!user.isRegistered()) {
+            RegistrationData regdata = user.attr(ATTR_REGDATA, makeRegdata).get();
+            if (regdata != null) {
+                regdata.negotiatingCaps = true;
+            }
+        }
+    }
+
     public void ping(User user) {
         final String server = user.getServer();
         user.send(Message.withoutPrefix("PING", server));
@@ -239,6 +403,7 @@ public class IRCCommands {
     private static class RegistrationData {
         public volatile boolean gotNick = false;
         public volatile boolean gotUser = false;
+        public volatile boolean negotiatingCaps = false;
     }
 
     private static AtomicReference<RegistrationData> makeRegdata() {
@@ -247,4 +412,7 @@ public class IRCCommands {
 
     private static final Supplier<AtomicReference<RegistrationData>> makeRegdata = IRCCommands::makeRegdata;
 
+    private static final AttributeKey<Set<String>> ATTR_CAPS = AttributeKey.valueOf(IRCCommands.class.getCanonicalName() + ".caps");
+    private static final Supplier<Set<String>> makeCapSet = CopyOnWriteArraySet::new;
+
 }
@@ -19,11 +19,36 @@
  */
 package com.github.wolf480pl.ircd;
 
-import java.util.ArrayList;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
 import java.util.Arrays;
-import java.util.List;
+
+import com.github.wolf480pl.ircd.util.Util;
 
 public class IRCNumerics {
+    // "000" to "999", so we don't have to format the command every time
+    private static final String[] COMMANDS = new String[1000];
+
+    static {
+        char[] digits = new char[3];
+        for (int i = 0; i < COMMANDS.length; ++i) {
+            digits[0] = (char) ('0' + i / 100);
+            digits[1] = (char) ('0' + i / 10 % 10);
+            digits[2] = (char) ('0' + i % 10);
+            COMMANDS[i] = new String(digits);
+        }
+    }
+
+    private static final ClassValue<Factory<?>> FACTORIES = new ClassValue<Factory<?>>() {
+        @Override
+        protected Factory<?> computeValue(Class<?> type) {
+            return makeFactory(type.asSubclass(IRCNumerics.class));
+        }
+    };
+
     private final String prefix;
     private final CharSequence target;
 
@@ -45,11 +70,81 @@ public class IRCNumerics {
     }
 
     public Message numeric(int cmd, String... args) {
-        List<String> params = new ArrayList<>(args.length + 1);
+        String[] params = new String[args.length + 1];
         String targetName = target.toString();
-        params.add(targetName == null ? "*" : targetName);
-        params.addAll(Arrays.asList(args));
-        return new Message(prefix, String.format("%03d", cmd), params);
+        params[0] = targetName == null ? "*" : targetName;
+        System.arraycopy(args, 0, params, 1, args.length);
+        return new Message(prefix, command(cmd), Arrays.asList(params));
+    }
+
+    public static String command(int cmd) {
+        if (cmd < 0 || cmd >= COMMANDS.length) {
+            throw new IllegalArgumentException("Numeric out of range: " + cmd);
+        }
+        return COMMANDS[cmd];
+    }
+
+    /*
+     * Numerics classes need a (String prefix, CharSequence target) constructor.
+     * The factory for each class is made once and shared by everyone.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T extends IRCNumerics> Factory<T> factory(Class<T> clazz) {
+        return (Factory<T>) FACTORIES.get(clazz);
+    }
+
+    private static Factory<?> makeFactory(Class<? extends IRCNumerics> clazz) {
+        if (clazz == IRCNumerics.class) {
+            return IRCNumerics::new;
+        }
+        MethodType factoryType = MethodType.methodType(IRCNumerics.class, String.class, CharSequence.class);
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        Constructor<?> constructor;
+        try {
+            constructor = clazz.getDeclaredConstructor(String.class, CharSequence.class);
+        } catch (NoSuchMethodException e) {
+            throw new IllegalArgumentException("Bad numerics class " + clazz.getSimpleName() + " - doesn't let us instantiate it", e);
+        }
+
+        if (isVisible(clazz)) {
+            try {
+                // Spin a Factory implementation that calls the constructor directly, as cheap as a plain "new"
+                MethodHandle handle = lookup.unreflectConstructor(constructor);
+                return (Factory<?>) LambdaMetafactory.metafactory(lookup, "create", MethodType.methodType(Factory.class),
+                        factoryType, handle, handle.type()).getTarget().invoke();
+            } catch (Throwable t) {
+                // Probably not accessible from here, try the slow way
+            }
+        }
+
+        MethodHandle handle;
+        try {
+            constructor.setAccessible(true);
+            handle = lookup.unreflectConstructor(constructor).asType(factoryType);
+        } catch (IllegalAccessException | SecurityException e) {
+            throw new IllegalArgumentException("Bad numerics class " + clazz.getSimpleName() + " - doesn't let us instantiate it", e);
+        }
+        return (prefix, target) -> {
+            try {
+                return (IRCNumerics) handle.invokeExact(prefix, target);
+            } catch (Throwable t) {
+                throw Util.ensureUnchecked(t);
+            }
+        };
+    }
+
+    // The spun class lives in our class loader, so it has to be able to see the numerics class
+    private static boolean isVisible(Class<?> clazz) {
+        try {
+            return Class.forName(clazz.getName(), false, IRCNumerics.class.getClassLoader()) == clazz;
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+
+    @FunctionalInterface
+    public static interface Factory<T extends IRCNumerics> {
+        T create(String prefix, CharSequence target);
     }
 
     public static final int RPL_WELCOME = 001;
@@ -109,6 +204,36 @@ public class IRCNumerics {
         return numeric(RPL_TRYAGAIN, command, "Command dropped. " + reason);
     }
 
+    public static final int RPL_NOTOPIC = 331;
+
+    public Message rplNoTopic(String channel) {
+        return numeric(RPL_NOTOPIC, channel, "No topic is set");
+    }
+
+    public static final int RPL_TOPIC = 332;
+
+    public Message rplTopic(String channel, String topic) {
+        return numeric(RPL_TOPIC, channel, topic);
+    }
+
+    public static final int RPL_TOPICWHOTIME = 333;
+
+    public Message rplTopicWhoTime(String channel, String setBy, long setAt) {
+        return numeric(RPL_TOPICWHOTIME, channel, setBy, String.valueOf(setAt));
+    }
+
+    public static final int RPL_NAMREPLY = 353;
+
+    public Message rplNamReply(String channel, String names) {
+        return numeric(RPL_NAMREPLY, "=", channel, names);
+    }
+
+    public static final int RPL_ENDOFNAMES = 366;
+
+    public Message rplEndOfNames(String channel) {
+        return numeric(RPL_ENDOFNAMES, channel, "End of /NAMES list");
+    }
+
     public static final int RPL_MOTDSTART = 375;
 
     public Message rplMotdStart() {
@@ -175,6 +300,12 @@ public class IRCNumerics {
         return numeric(ERR_NOORIGIN, "No origin specified");
     }
 
+    public static final int ERR_INVALIDCAPCMD = 410;
+
+    public Message errInvalidCapCmd(String subcommand) {
+        return numeric(ERR_INVALIDCAPCMD, subcommand, "Invalid CAP command");
+    }
+
     public static final int ERR_NORECIPIENT = 411;
 
     public Message errNoRecipient(String command) {
@@ -247,6 +378,18 @@ public class IRCNumerics {
         return numeric(ERR_NICKCOLLISION, nick, "Nickname collision KILL");
     }
 
+    public static final int ERR_NOTONCHANNEL = 442;
+
+    public Message errNotOnChannel(String channel) {
+        return numeric(ERR_NOTONCHANNEL, channel, "You're not on that channel");
+    }
+
+    public static final int ERR_NOTREGISTERED = 451;
+
+    public Message errNotRegistered() {
+        return numeric(ERR_NOTREGISTERED, "You have not registered");
+    }
+
     public static final int ERR_NEEDMOREPARAMS = 461;
 
     public Message errNeedMoreParams(String command) {
@@ -258,4 +401,17 @@ public class IRCNumerics {
     public Message errAlreadyRegistered() {
         return numeric(ERR_ALREADYREGISTERED, "You may not reregister");
     }
+
+    public static final int ERR_PASSWDMISMATCH = 464;
+
+    public Message errPasswdMismatch() {
+        return numeric(ERR_PASSWDMISMATCH, "Password incorrect");
+    }
+
+    // IRCv3, also sent by services
+    public static final int RPL_LOGGEDIN = 900;
+
+    public Message rplLoggedIn(String hostmask, String account) {
+        return numeric(RPL_LOGGEDIN, hostmask, account, "You are now logged in as " + account);
+    }
 }
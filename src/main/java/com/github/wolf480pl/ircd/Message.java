@@ -24,6 +24,8 @@ import java.util.Collections;
 import java.util.List;
 
 public class Message {
+    // IRCv3 tags, without the @, or null
+    private String tags;
     private String prefix;
     private String command;
     private List<String> params;
@@ -46,6 +48,14 @@ public class Message {
         this.params = params;
     }
 
+    public String getTags() {
+        return tags;
+    }
+
+    public void setTags(String tags) {
+        this.tags = tags;
+    }
+
     public String getPrefix() {
         return prefix;
     }
@@ -72,7 +82,7 @@ public class Message {
 
     @Override
     public String toString() {
-        return "{prefix=" + prefix + ",command=" + command + ",params=" + params + "}";
+        return "{prefix=" + getPrefix() + ",command=" + getCommand() + ",params=" + getParams() + "}";
     }
 
     public static Message withPrefix(String prefix, String command, String... params) {
@@ -20,6 +20,8 @@
 package com.github.wolf480pl.ircd;
 
 import java.net.SocketAddress;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
 
 import org.slf4j.Logger;
 
@@ -27,8 +29,63 @@ public interface Session {
 
     void send(Message msg);
 
+    // For chatter we can afford to lose when the client doesn't keep up
+    default void sendDroppable(Message msg) {
+        send(msg);
+    }
+
+    default void sendEncoded(BroadcastMessage msg) {
+        send(msg.getMessage());
+    }
+
     void disconnect();
 
+    // Where the user's serial executor runs its tasks
+    default Executor getExecutor() {
+        return ForkJoinPool.commonPool();
+    }
+
+    default boolean inExecutor() {
+        return false;
+    }
+
+    // Stop handing us messages until resumeReading() is called
+    default void pauseReading() {
+    }
+
+    default void resumeReading() {
+    }
+
+    // For server links, which send far more than any client is allowed to
+    default void exemptFromFloodControl() {
+    }
+
+    // For server links, which get far more queued for them than any client
+    default void useLinkSendQ() {
+    }
+
+    // For server links: lets them send us binary frames, see SessionHandler.frameReceived(). Returns false if we can't take them
+    default boolean acceptFrames() {
+        return false;
+    }
+
+    default void sendFrame(byte[] payload) {
+        throw new UnsupportedOperationException("No binary frames on this session");
+    }
+
+    /*
+     * For server links: returns false if we don't compress. Otherwise, from now on they may switch
+     * what they send us to a zlib stream by saying ZIP.
+     */
+    default boolean acceptCompression() {
+        return false;
+    }
+
+    // Says ZIP, then compresses everything sent after this call
+    default void startCompression() {
+        throw new UnsupportedOperationException("No compression on this session");
+    }
+
     SocketAddress getRemoteAddress();
 
     Logger getLogger();
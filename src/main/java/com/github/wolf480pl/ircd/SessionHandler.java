@@ -21,10 +21,20 @@ package com.github.wolf480pl.ircd;
 
 import org.slf4j.Logger;
 
+import com.github.wolf480pl.ircd.metrics.Metrics;
+import com.github.wolf480pl.ircd.trace.ProtocolTracer;
+
 public interface SessionHandler {
 
+    default void onConnect(Session session) {
+    }
+
     void messageReceived(Session session, Message msg);
 
+    // Only comes from sessions that accept them, see Session.acceptFrames()
+    default void frameReceived(Session session, byte[] payload) {
+    }
+
     void onInboundThrowable(Session session, Throwable t);
 
     void onOutboundThrowable(Session session, Throwable t);
@@ -33,5 +43,20 @@ public interface SessionHandler {
 
     void onDisconnect(Session session);
 
+    // The client isn't reading what we send fast enough. Whatever is sent to it from now on is discarded.
+    default void onSendQExceeded(Session session) {
+        session.disconnect();
+    }
+
     Logger getLogger(Session session);
+
+    // Where the network layer records traffic, null if nothing should be recorded
+    default Metrics getMetrics() {
+        return null;
+    }
+
+    // Traces the traffic of chosen sessions, null if there's nothing to trace with
+    default ProtocolTracer getTracer() {
+        return null;
+    }
 }
@@ -19,37 +19,63 @@
  */
 package com.github.wolf480pl.ircd;
 
-import java.lang.reflect.Constructor;
-import java.lang.reflect.InvocationTargetException;
 import java.net.InetSocketAddress;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.net.SocketAddress;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 import java.util.function.Supplier;
 
+import com.github.wolf480pl.ircd.dns.HostnameResolver;
+import com.github.wolf480pl.ircd.util.AttributeArray;
 import com.github.wolf480pl.ircd.util.AttributeKey;
 import com.github.wolf480pl.ircd.util.FunctionalMutableString;
+import com.github.wolf480pl.ircd.util.SerialExecutor;
 
 
 public class User {
     private final Session session;
-    private final ConcurrentMap<Class<? extends IRCNumerics>, IRCNumerics> numericsCache = new ConcurrentHashMap<>();
     private final String server;
     private final FunctionalMutableString nickRef;
-    private final AtomicBoolean pingSent = new AtomicBoolean(false);
-    private final AtomicBoolean isRegistered = new AtomicBoolean(false);
-    private final AtomicBoolean quitted = new AtomicBoolean(false);
+    private final IRCNumerics numerics;
+    // Flags packed into one int, so we don't need an AtomicBoolean for each of them
+    private static final int PING_SENT = 1;
+    private static final int REGISTERED = 2;
+    private static final int QUITTED = 4;
+    private static final AtomicIntegerFieldUpdater<User> STATE = AtomicIntegerFieldUpdater.newUpdater(User.class, "state");
+    private volatile int state = 0;
     private String nick;
     private String username;
-    private String hostname;
+    private volatile String hostname;
+    private volatile String hostmask;
+    // When the nick was taken, in seconds. On a nick collision between servers, the older one wins
+    private volatile long nickTimestamp;
+    private volatile CompletableFuture<String> hostnameLookup;
     private String realName;
 
-    private final ConcurrentMap<AttributeKey<?>, Object> attrs = new ConcurrentHashMap<>();
+    private final AttributeArray attrs = new AttributeArray();
+    private final SerialExecutor executor;
 
     public User(Session session, String server) {
+        this(session, server, SerialExecutor.DEFAULT_CAPACITY);
+    }
+
+    public User(Session session, String server, int mailboxCapacity) {
         this.session = session;
         this.server = server;
         this.nickRef = new FunctionalMutableString(this::getNick);
+        this.numerics = new IRCNumerics(server, nickRef);
+        this.executor = new SerialExecutor(session.getExecutor(), session::inExecutor, mailboxCapacity, new SerialExecutor.Listener() {
+            @Override
+            public void onSaturated() {
+                session.pauseReading();
+            }
+
+            @Override
+            public void onDrained() {
+                session.resumeReading();
+            }
+        }, (t) -> session.getLogger().warn("Exception in a task of " + getNick(), t));
+        updateHostmask();
     }
 
     public String getNick() {
@@ -58,6 +84,7 @@ public class User {
 
     public void setNick(String nick) {
         this.nick = nick;
+        updateHostmask();
     }
 
     public String getUsername() {
@@ -66,6 +93,7 @@ public class User {
 
     public void setUsername(String username) {
         this.username = username;
+        updateHostmask();
     }
 
     public String getRealName() {
@@ -80,14 +108,48 @@ public class User {
         return hostname;
     }
 
+    protected void setHostname(String hostname) {
+        this.hostname = hostname;
+        updateHostmask();
+    }
+
+    public long getNickTimestamp() {
+        return nickTimestamp;
+    }
+
+    public void setNickTimestamp(long nickTimestamp) {
+        this.nickTimestamp = nickTimestamp;
+    }
+
+    // false for users of other servers, see RemoteUser
+    public boolean isLocal() {
+        return true;
+    }
+
     public Session getSession() {
         return session;
     }
 
+    /*
+     * Anything that changes this user's state must run here, whether it comes from the user's own connection
+     * or from someone else (kick, kill, etc.). See Threading.md
+     */
+    public SerialExecutor getExecutor() {
+        return executor;
+    }
+
     public void send(Message msg) {
         session.send(msg);
     }
 
+    public void sendDroppable(Message msg) {
+        session.sendDroppable(msg);
+    }
+
+    public void sendEncoded(BroadcastMessage msg) {
+        session.sendEncoded(msg);
+    }
+
     public void maybeSend(Message msgOrNull) {
         if (msgOrNull != null) {
             send(msgOrNull);
@@ -95,26 +157,25 @@ public class User {
     }
 
     public String getHostmask() {
+        return hostmask;
+    }
+
+    // Rebuilt whenever a part of it changes, which is far less often than it's used as a prefix
+    private void updateHostmask() {
         //TODO: Ident
-        return nick + "!~" + username + "@" + hostname;
+        hostmask = nick + "!~" + username + "@" + hostname;
     }
 
     public IRCNumerics numerics() {
-        return numerics(IRCNumerics.class);
+        return numerics;
     }
 
     public <T extends IRCNumerics> T numerics(Class<T> clazz) {
-        @SuppressWarnings("unchecked")
-        T numerics = (T) numericsCache.get(clazz);
-        if (numerics == null) {
-            try {
-                numerics = getNumerics(clazz, this);
-                numericsCache.putIfAbsent(clazz, numerics);
-            } catch (InstantiationException | IllegalAccessException | InvocationTargetException | NoSuchMethodException e) {
-                throw new IllegalArgumentException("Bad numerics class " + clazz.getSimpleName() + " - doesn't let us instantiate it", e);
-            }
+        if (clazz == IRCNumerics.class) {
+            return clazz.cast(numerics);
         }
-        return numerics;
+        // They only hold the server name and a live view of our nick, so they're cheap enough to make on demand
+        return IRCNumerics.factory(clazz).create(server, nickRef);
     }
 
     public String getServer() {
@@ -123,66 +184,88 @@ public class User {
     }
 
     public boolean isPingSent() {
-        return pingSent.get();
+        return (state & PING_SENT) != 0;
     }
 
     public boolean setPingSent() {
-        return pingSent.compareAndSet(false, true);
+        return setFlag(PING_SENT);
     }
 
     public void clearPingSent() {
-        pingSent.set(false);
+        int s;
+        do {
+            s = state;
+            if ((s & PING_SENT) == 0) {
+                return;
+            }
+        } while (!STATE.compareAndSet(this, s, s & ~PING_SENT));
     }
 
     public boolean isRegistered() {
-        return isRegistered.get();
+        return (state & REGISTERED) != 0;
     }
 
     public boolean setRegisterd() {
-        return isRegistered.compareAndSet(false, true);
+        return setFlag(REGISTERED);
     }
 
     public boolean isQuitted() {
-        return quitted.get();
+        return (state & QUITTED) != 0;
     }
 
     public boolean setQuitted() {
-        return quitted.compareAndSet(false, true);
+        return setFlag(QUITTED);
+    }
+
+    // Returns false if the flag was already set
+    private boolean setFlag(int flag) {
+        int s;
+        do {
+            s = state;
+            if ((s & flag) != 0) {
+                return false;
+            }
+        } while (!STATE.compareAndSet(this, s, s | flag));
+        return true;
     }
 
-    @SuppressWarnings("unchecked")
     public <T> T attr(AttributeKey<T> key) {
-        return (T) attrs.get(key);
+        return attrs.get(key);
     }
 
-    @SuppressWarnings("unchecked")
     public <T> T attr(AttributeKey<T> key, T putIfAbsent) {
-        return (T) attrs.putIfAbsent(key, putIfAbsent);
+        return attrs.putIfAbsent(key, putIfAbsent);
     }
 
-    @SuppressWarnings("unchecked")
     public <T> T attr(AttributeKey<T> key, Supplier<T> factory) {
-        return (T) attrs.computeIfAbsent(key, (x) -> factory.get());
+        return attrs.computeIfAbsent(key, factory);
     }
 
-    // non-API
-    public void resolveHostName() {
-        if (hostname != null) {
-            return;
-        }
-        //TODO: do asynchronous DNS lookup
-        this.hostname = ((InetSocketAddress) session.getRemoteAddress()).getAddress().getCanonicalHostName();
+    /*
+     * Completes once we know the hostname, which may be just the IP if it couldn't be resolved.
+     * The user only gets it through its executor, so it may not be in getHostname() yet.
+     */
+    public CompletableFuture<String> getHostnameLookup() {
+        CompletableFuture<String> lookup = hostnameLookup;
+        return lookup == null ? CompletableFuture.completedFuture(hostname) : lookup;
     }
 
-    private static final ConcurrentMap<Class<? extends IRCNumerics>, Constructor<? extends IRCNumerics>> constructorCache = new ConcurrentHashMap<>();
-
-    protected static <T extends IRCNumerics> T getNumerics(Class<T> clazz, User user) throws InstantiationException, IllegalAccessException, InvocationTargetException, NoSuchMethodException {
-        @SuppressWarnings("unchecked")
-        Constructor<T> constructor = (Constructor<T>) constructorCache.get(clazz);
-        if (constructor == null) {
-            constructor = clazz.getDeclaredConstructor(String.class, CharSequence.class);
-            constructorCache.putIfAbsent(clazz, constructor);
+    // non-API
+    public CompletableFuture<String> lookupHostname(HostnameResolver resolver) {
+        CompletableFuture<String> lookup = hostnameLookup;
+        if (lookup != null) {
+            return lookup;
+        }
+        SocketAddress address = session.getRemoteAddress();
+        if (address instanceof InetSocketAddress) {
+            lookup = resolver.resolve(((InetSocketAddress) address).getAddress());
+            // Not what the lookup waits for, registration holds the mailbox until the lookup is done
+            lookup.thenAcceptAsync(this::setHostname, executor);
+        } else {
+            setHostname(String.valueOf(address));
+            lookup = CompletableFuture.completedFuture(hostname);
         }
-        return constructor.newInstance(user.server, user.nickRef);
+        hostnameLookup = lookup;
+        return lookup;
     }
 }
@@ -25,6 +25,16 @@ public interface UserRegistry {
 
     User getUser(String nick);
 
+    // For those who can wait, when the user may have to be looked up elsewhere. Completes with null if there's no such user
+    default CompletableFuture<User> lookup(String nick) {
+        return CompletableFuture.completedFuture(getUser(nick));
+    }
+
+    // Whether other servers learn of our users through the registry, rather than from us over server links
+    default boolean isShared() {
+        return false;
+    }
+
     CompletableFuture<Void> register(User user);
 
     CompletableFuture<String> changeNick(User user, String newNick);
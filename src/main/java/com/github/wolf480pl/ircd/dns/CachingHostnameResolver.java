@@ -0,0 +1,186 @@
+/*
+ * This file is part of IRCd4j.
+ *
+ * Copyright (c) 2014 Wolf480pl <wolf480@interia.pl>
+ * IRCd4j is licensed under the GNU Lesser General Public License.
+ *
+ * IRCd4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * IRCd4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.wolf480pl.ircd.dns;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import com.github.wolf480pl.ircd.IRCRegexes;
+
+/*
+ * Reverse lookups with forward confirmation, a timeout, and a bounded cache of both
+ * successful and failed lookups that's shared by all connections.
+ */
+public class CachingHostnameResolver implements HostnameResolver {
+    public static final long DEFAULT_POSITIVE_TTL = TimeUnit.MINUTES.toMillis(30);
+    public static final long DEFAULT_NEGATIVE_TTL = TimeUnit.MINUTES.toMillis(5);
+    public static final long DEFAULT_TIMEOUT = TimeUnit.SECONDS.toMillis(5);
+    public static final int DEFAULT_MAX_ENTRIES = 65536;
+    public static final int MAX_HOSTNAME_LENGTH = 63;
+
+    private static final Pattern HOSTNAME = Pattern.compile(IRCRegexes.REGEX_HOSTNAME);
+
+    private final DnsBackend backend;
+    private final ScheduledExecutorService timer;
+    private final long positiveTtl;
+    private final long negativeTtl;
+    private final long timeout;
+    private final Map<InetAddress, Entry> cache;
+    private final ConcurrentMap<InetAddress, CompletableFuture<String>> pending = new ConcurrentHashMap<>();
+
+    public CachingHostnameResolver(DnsBackend backend) {
+        this(backend, newTimer(), DEFAULT_POSITIVE_TTL, DEFAULT_NEGATIVE_TTL, DEFAULT_TIMEOUT, DEFAULT_MAX_ENTRIES);
+    }
+
+    // TTLs and the timeout are in milliseconds
+    public CachingHostnameResolver(DnsBackend backend, ScheduledExecutorService timer, long positiveTtl, long negativeTtl, long timeout, final int maxEntries) {
+        this.backend = backend;
+        this.timer = timer;
+        this.positiveTtl = positiveTtl;
+        this.negativeTtl = negativeTtl;
+        this.timeout = timeout;
+        this.cache = new LinkedHashMap<InetAddress, Entry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<InetAddress, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    @Override
+    public CompletableFuture<String> resolve(InetAddress address) {
+        final long now = System.currentTimeMillis();
+        Entry entry;
+        synchronized (cache) {
+            entry = cache.get(address);
+        }
+        if (entry != null && entry.expires > now) {
+            return CompletableFuture.completedFuture(entry.hostname == null ? literal(address) : entry.hostname);
+        }
+
+        // Connections from the same address at the same time share one lookup
+        CompletableFuture<String> future = new CompletableFuture<>();
+        CompletableFuture<String> existing = pending.putIfAbsent(address, future);
+        if (existing != null) {
+            return existing;
+        }
+
+        ScheduledFuture<?> timeoutTask = timer.schedule(() -> complete(address, future, null), timeout, TimeUnit.MILLISECONDS);
+        lookup(address).whenComplete((name, t) -> {
+            timeoutTask.cancel(false);
+            complete(address, future, t == null ? name : null);
+        });
+        return future;
+    }
+
+    // Completes with null if the name can't be trusted
+    protected CompletableFuture<String> lookup(InetAddress address) {
+        return backend.reverse(address).thenCompose((name) -> {
+            if (name == null || !isValidHostname(name)) {
+                return CompletableFuture.completedFuture(null);
+            }
+            return backend.forward(name).thenApply((addrs) -> {
+                for (InetAddress addr : addrs) {
+                    if (addr.equals(address)) {
+                        return name;
+                    }
+                }
+                // Doesn't point back to the address, could be spoofed
+                return null;
+            });
+        });
+    }
+
+    private void complete(InetAddress address, CompletableFuture<String> future, String name) {
+        if (!future.complete(name == null ? literal(address) : name)) {
+            // The lookup and the timeout race, whichever's first wins
+            return;
+        }
+        final long expires = System.currentTimeMillis() + (name == null ? negativeTtl : positiveTtl);
+        synchronized (cache) {
+            cache.put(address, new Entry(name, expires));
+        }
+        pending.remove(address, future);
+    }
+
+    public void invalidate(InetAddress address) {
+        synchronized (cache) {
+            cache.remove(address);
+        }
+    }
+
+    public int size() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    protected static boolean isValidHostname(String name) {
+        return name.length() <= MAX_HOSTNAME_LENGTH && HOSTNAME.matcher(name).matches();
+    }
+
+    protected static String literal(InetAddress address) {
+        String literal = address.getHostAddress();
+        if (address instanceof Inet6Address) {
+            int scope = literal.indexOf('%');
+            if (scope >= 0) {
+                literal = literal.substring(0, scope);
+            }
+            if (literal.startsWith(":")) {
+                // Would be taken for the start of a trailing parameter
+                literal = "0" + literal;
+            }
+        }
+        return literal;
+    }
+
+    private static ScheduledExecutorService newTimer() {
+        ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, (r) -> {
+            Thread t = new Thread(r, "dns-timeout");
+            t.setDaemon(true);
+            return t;
+        });
+        // Most lookups finish way before their timeout
+        timer.setRemoveOnCancelPolicy(true);
+        return timer;
+    }
+
+    private static class Entry {
+        final String hostname;
+        final long expires;
+
+        Entry(String hostname, long expires) {
+            this.hostname = hostname;
+            this.expires = expires;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * This file is part of IRCd4j.
+ *
+ * Copyright (c) 2014 Wolf480pl <wolf480@interia.pl>
+ * IRCd4j is licensed under the GNU Lesser General Public License.
+ *
+ * IRCd4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * IRCd4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.wolf480pl.ircd.dns;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Uses the JDK resolver, which blocks, so every lookup runs on a thread of our own
+ * instead of the caller's one.
+ */
+public class JdkDnsBackend implements DnsBackend {
+    public static final int DEFAULT_THREADS = 4;
+
+    private final Executor executor;
+
+    public JdkDnsBackend() {
+        this(newExecutor(DEFAULT_THREADS));
+    }
+
+    public JdkDnsBackend(Executor executor) {
+        this.executor = executor;
+    }
+
+    @Override
+    public CompletableFuture<String> reverse(InetAddress address) {
+        return CompletableFuture.supplyAsync(() -> {
+            String name = address.getCanonicalHostName();
+            // The JDK gives us the address back when there's no name
+            return name.equals(address.getHostAddress()) ? null : name;
+        }, executor);
+    }
+
+    @Override
+    public CompletableFuture<InetAddress[]> forward(String hostname) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return InetAddress.getAllByName(hostname);
+            } catch (UnknownHostException e) {
+                return new InetAddress[0];
+            }
+        }, executor);
+    }
+
+    public static ExecutorService newExecutor(int threads) {
+        final AtomicInteger count = new AtomicInteger(0);
+        ThreadFactory factory = (r) -> {
+            Thread t = new Thread(r, "dns-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+        return Executors.newFixedThreadPool(threads, factory);
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * This file is part of IRCd4j.
+ *
+ * Copyright (c) 2014 Wolf480pl <wolf480@interia.pl>
+ * IRCd4j is licensed under the GNU Lesser General Public License.
+ *
+ * IRCd4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * IRCd4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.wolf480pl.ircd.dns;
+
+import java.net.InetAddress;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/*
+ * Answers from in-memory records only, like a hosts file.
+ * Handy as a local stand-in for a real resolver.
+ */
+public class StaticDnsBackend implements DnsBackend {
+    private final ConcurrentMap<InetAddress, String> ptr = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, List<InetAddress>> records = new ConcurrentHashMap<>();
+
+    public StaticDnsBackend() {
+    }
+
+    public StaticDnsBackend(Map<InetAddress, String> hosts) {
+        for (Map.Entry<InetAddress, String> e : hosts.entrySet()) {
+            add(e.getKey(), e.getValue());
+        }
+    }
+
+    // Adds both the PTR and the A/AAAA record
+    public void add(InetAddress address, String hostname) {
+        addReverse(address, hostname);
+        addForward(hostname, address);
+    }
+
+    public void addReverse(InetAddress address, String hostname) {
+        ptr.put(address, hostname);
+    }
+
+    public void addForward(String hostname, InetAddress address) {
+        records.computeIfAbsent(hostname.toLowerCase(), (x) -> new CopyOnWriteArrayList<>()).add(address);
+    }
+
+    @Override
+    public CompletableFuture<String> reverse(InetAddress address) {
+        return CompletableFuture.completedFuture(ptr.get(address));
+    }
+
+    @Override
+    public CompletableFuture<InetAddress[]> forward(String hostname) {
+        List<InetAddress> addrs = records.get(hostname.toLowerCase());
+        return CompletableFuture.completedFuture(addrs == null ? new InetAddress[0] : addrs.toArray(new InetAddress[addrs.size()]));
+    }
+}
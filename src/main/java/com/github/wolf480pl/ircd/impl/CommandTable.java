@@ -0,0 +1,180 @@
+/*
+ * This file is part of IRCd4j.
+ *
+ * Copyright (c) 2014 Wolf480pl <wolf480@interia.pl>
+ * IRCd4j is licensed under the GNU Lesser General Public License.
+ *
+ * IRCd4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * IRCd4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.wolf480pl.ircd.impl;
+
+import com.github.wolf480pl.ircd.Command;
+
+/*
+ * Immutable command lookup, case-insensitive over ASCII, that doesn't allocate.
+ * Names go in an open-addressing table, three-digit numerics get a plain array.
+ * Adding a command makes a new table, so it can be published with a single volatile write.
+ */
+public final class CommandTable {
+    private static final CommandTable EMPTY = new CommandTable(new String[0], new Command[0], 0, null);
+    private static final int NUMERICS = 1000;
+
+    private final String[] names;
+    private final Command[] commands;
+    private final int size;
+    private final Command[] numerics;
+
+    private CommandTable(String[] names, Command[] commands, int size, Command[] numerics) {
+        this.names = names;
+        this.commands = commands;
+        this.size = size;
+        this.numerics = numerics;
+    }
+
+    public static CommandTable empty() {
+        return EMPTY;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public Command get(CharSequence name) {
+        final int length = name.length();
+        if (length == 3 && numerics != null) {
+            int numeric = numeric(name);
+            if (numeric >= 0) {
+                return numerics[numeric];
+            }
+        }
+        if (names.length == 0) {
+            return null;
+        }
+        final int mask = names.length - 1;
+        for (int i = hash(name) & mask;; i = (i + 1) & mask) {
+            String key = names[i];
+            if (key == null) {
+                return null;
+            }
+            if (matches(key, name)) {
+                return commands[i];
+            }
+        }
+    }
+
+    public CommandTable with(String name, Command cmd) {
+        if (cmd == null) {
+            throw new NullPointerException("cmd");
+        }
+        int numeric = name.length() == 3 ? numeric(name) : -1;
+        if (numeric >= 0) {
+            Command[] newNumerics = numerics == null ? new Command[NUMERICS] : numerics.clone();
+            boolean replaced = newNumerics[numeric] != null;
+            newNumerics[numeric] = cmd;
+            return new CommandTable(names, commands, replaced ? size : size + 1, newNumerics);
+        }
+        if (name.isEmpty()) {
+            throw new IllegalArgumentException("Empty command name");
+        }
+
+        String key = upperCase(name);
+        boolean replaced = get(key) != null;
+        int count = countNames() + (replaced ? 0 : 1);
+        // Keep it at most half full, so the probes stay short
+        int capacity = Integer.highestOneBit(Math.max(count * 2 - 1, 1)) << 1;
+        String[] newNames = new String[capacity];
+        Command[] newCommands = new Command[capacity];
+        for (int i = 0; i < names.length; ++i) {
+            if (names[i] != null && !names[i].equals(key)) {
+                insert(newNames, newCommands, names[i], commands[i]);
+            }
+        }
+        insert(newNames, newCommands, key, cmd);
+        return new CommandTable(newNames, newCommands, replaced ? size : size + 1, numerics);
+    }
+
+    private int countNames() {
+        int count = 0;
+        for (String key : names) {
+            if (key != null) {
+                ++count;
+            }
+        }
+        return count;
+    }
+
+    private static void insert(String[] names, Command[] commands, String key, Command cmd) {
+        final int mask = names.length - 1;
+        int i = hash(key) & mask;
+        while (names[i] != null) {
+            i = (i + 1) & mask;
+        }
+        names[i] = key;
+        commands[i] = cmd;
+    }
+
+    private static int numeric(CharSequence name) {
+        int value = 0;
+        for (int i = 0; i < 3; ++i) {
+            char c = name.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    private static char upperCase(char c) {
+        return (c >= 'a' && c <= 'z') ? (char) (c - ('a' - 'A')) : c;
+    }
+
+    // Only ASCII, so it doesn't depend on the locale like String.toUpperCase() does
+    public static String upperCase(String str) {
+        final int length = str.length();
+        for (int i = 0; i < length; ++i) {
+            char c = str.charAt(i);
+            if (upperCase(c) != c) {
+                char[] chars = str.toCharArray();
+                for (int j = i; j < length; ++j) {
+                    chars[j] = upperCase(chars[j]);
+                }
+                return new String(chars);
+            }
+        }
+        return str;
+    }
+
+    private static int hash(CharSequence name) {
+        int h = 0;
+        final int length = name.length();
+        for (int i = 0; i < length; ++i) {
+            h = 31 * h + upperCase(name.charAt(i));
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private static boolean matches(String key, CharSequence name) {
+        final int length = key.length();
+        if (length != name.length()) {
+            return false;
+        }
+        for (int i = 0; i < length; ++i) {
+            if (key.charAt(i) != upperCase(name.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -19,54 +19,191 @@
  */
 package com.github.wolf480pl.ircd.impl;
 
-import java.util.HashMap;
-import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.github.wolf480pl.ircd.AccountCommands;
+import com.github.wolf480pl.ircd.ChannelCommands;
+import com.github.wolf480pl.ircd.ChannelHistory;
+import com.github.wolf480pl.ircd.ChannelRegistry;
 import com.github.wolf480pl.ircd.Command;
 import com.github.wolf480pl.ircd.CommandRegistry;
+import com.github.wolf480pl.ircd.HistoryCommands;
 import com.github.wolf480pl.ircd.IRCCommands;
 import com.github.wolf480pl.ircd.Message;
 import com.github.wolf480pl.ircd.Session;
 import com.github.wolf480pl.ircd.SessionHandler;
 import com.github.wolf480pl.ircd.User;
+import com.github.wolf480pl.ircd.UserRegistry;
+import com.github.wolf480pl.ircd.dns.CachingHostnameResolver;
+import com.github.wolf480pl.ircd.dns.HostnameResolver;
+import com.github.wolf480pl.ircd.dns.JdkDnsBackend;
+import com.github.wolf480pl.ircd.link.LinkManager;
+import com.github.wolf480pl.ircd.link.ServerLink;
+import com.github.wolf480pl.ircd.metrics.Metrics;
+import com.github.wolf480pl.ircd.registry.PartitionedUserRegistry;
+import com.github.wolf480pl.ircd.store.ChannelTopics;
+import com.github.wolf480pl.ircd.store.LogStore;
+import com.github.wolf480pl.ircd.store.NickAccounts;
+import com.github.wolf480pl.ircd.trace.ProtocolTracer;
 
 public class IRCSessionHandler implements SessionHandler, CommandRegistry {
     private static final Logger logger = LoggerFactory.getLogger(IRCSessionHandler.class);
 
-    private final Map<String, Command> commandMap = new HashMap<>();
+    // Replaced as a whole on every putCommand, so lookups don't need any locking
+    private volatile CommandTable commands = CommandTable.empty();
     private final ConcurrentMap<Session, User> userMap = new ConcurrentHashMap<>();
-    private final String serverName = "localhost";
+    private final String serverName;
     private final IRCCommands ircCmds;
+    private final LinkManager links;
+    private final HostnameResolver resolver;
+    private final Metrics metrics;
+    private final ProtocolTracer tracer;
 
     public IRCSessionHandler() {
-        this.ircCmds = new IRCCommands();
+        this(new CachingHostnameResolver(new JdkDnsBackend()));
+    }
+
+    public IRCSessionHandler(HostnameResolver resolver) {
+        this(resolver, new Metrics());
+    }
+
+    public IRCSessionHandler(HostnameResolver resolver, Metrics metrics) {
+        this(resolver, metrics, new ProtocolTracer());
+    }
+
+    public IRCSessionHandler(HostnameResolver resolver, Metrics metrics, ProtocolTracer tracer) {
+        this("localhost", resolver, metrics, tracer);
+    }
+
+    public IRCSessionHandler(String serverName, HostnameResolver resolver, Metrics metrics, ProtocolTracer tracer) {
+        this(serverName, new LocalUserRegistry(), resolver, metrics, tracer);
+    }
+
+    public IRCSessionHandler(String serverName, UserRegistry users, HostnameResolver resolver, Metrics metrics, ProtocolTracer tracer) {
+        this(serverName, users, null, resolver, metrics, tracer);
+    }
+
+    public IRCSessionHandler(String serverName, UserRegistry users, LogStore store, HostnameResolver resolver, Metrics metrics, ProtocolTracer tracer) {
+        this(serverName, users, store, null, resolver, metrics, tracer);
+    }
+
+    /*
+     * metrics and tracer can be null to not record or trace anything, store can be null to not keep anything,
+     * history can be null to not keep any messages
+     */
+    public IRCSessionHandler(String serverName, UserRegistry users, LogStore store, ChannelHistory history, HostnameResolver resolver, Metrics metrics,
+            ProtocolTracer tracer) {
+        this.serverName = serverName;
+        this.resolver = resolver;
+        this.metrics = metrics;
+        this.tracer = tracer;
+        UserRegistry registry = users;
+        NickAccounts accounts = null;
+        ChannelRegistry channels;
+        if (store != null) {
+            accounts = new NickAccounts(store);
+            users = accounts.protect(users);
+            channels = new ChannelRegistry(new ChannelTopics(store), history);
+        } else {
+            channels = new ChannelRegistry(null, history);
+        }
+        this.links = new LinkManager(serverName, "IRCd4j", users, channels);
+        if (registry instanceof PartitionedUserRegistry) {
+            // Users held on other nodes are reached through the links to them
+            ((PartitionedUserRegistry) registry).setRouter(links);
+        }
+        this.ircCmds = new IRCCommands(users, channels, metrics, links);
         ircCmds.register(this);
-        // TODO Auto-generated constructor stub
+        HistoryCommands historyCmds = null;
+        if (history != null) {
+            historyCmds = new HistoryCommands(channels, history);
+            historyCmds.register(this);
+            for (String cap : HistoryCommands.CAPABILITIES) {
+                ircCmds.addCapability(cap);
+            }
+        }
+        new ChannelCommands(channels, users, links, historyCmds).register(this);
+        if (accounts != null) {
+            new AccountCommands(accounts).register(this);
+        }
+        links.register(this);
+    }
+
+    public String getServerName() {
+        return serverName;
+    }
+
+    // See LinkManager.allow() for who may link with us
+    public LinkManager getLinks() {
+        return links;
+    }
+
+    // Takes a connection we opened to another server (see NettyServer.connect) for a link with it
+    public void link(Session session, String name) {
+        User user = getUser(session);
+        user.getExecutor().execute(() -> links.connect(user, name));
+    }
+
+    @Override
+    public void onConnect(Session session) {
+        // Runs in the background, registration waits for it
+        getUser(session).lookupHostname(resolver);
     }
 
     @Override
     public void messageReceived(Session session, Message msg) {
-        logger.debug("" + session.getRemoteAddress() + " -> " + msg);
+        User user = getUser(session);
+        try {
+            user.getExecutor().execute(() -> handleMessage(user, msg));
+        } catch (RejectedExecutionException e) {
+            // Reading should've been paused long before that
+            logger.warn("Mailbox of " + user.getNick() + " overflowed, disconnecting");
+            session.disconnect();
+        }
+    }
 
+    @Override
+    public void frameReceived(Session session, byte[] payload) {
         User user = getUser(session);
-        user.resolveHostName();
+        try {
+            user.getExecutor().execute(() -> {
+                ServerLink link = links.linkOf(user);
+                if (link != null) {
+                    links.handleFrame(link, payload);
+                } else {
+                    logger.debug("Ignoring a frame from a client: {}", user.getNick());
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            logger.warn("Mailbox of " + user.getNick() + " overflowed, disconnecting");
+            session.disconnect();
+        }
+    }
+
+    protected void handleMessage(User user, Message msg) {
+        final Session session = user.getSession();
 
         user.clearPingSent();
+        ServerLink link = links.linkOf(user);
+        if (link != null) {
+            links.handle(link, msg);
+            return;
+        }
         final String prefix = msg.getPrefix();
         if (prefix != null && !prefix.equalsIgnoreCase(user.getNick())) {
-            logger.debug("Ignoring message with wrong prefix: " + prefix);
+            logger.debug("Ignoring message with wrong prefix: {}", prefix);
             return;
         }
 
-        String command = msg.getCommand().toUpperCase();
-        Command cmd = commandMap.get(command);
+        Command cmd = commands.get(msg.getCommand());
         if (cmd == null) {
-            logger.debug("Unknown command: " + command);
+            String command = msg.getCommand().toUpperCase();
+            logger.debug("Unknown command: {}", command);
             session.send(user.numerics().errUnknownCommand(command));
             return;
         }
@@ -90,6 +227,16 @@ public class IRCSessionHandler implements SessionHandler, CommandRegistry {
         return logger;
     }
 
+    @Override
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    @Override
+    public ProtocolTracer getTracer() {
+        return tracer;
+    }
+
     protected User getUser(Session session) {
         User user = userMap.get(session);
         if (user != null) {
@@ -101,29 +248,62 @@ public class IRCSessionHandler implements SessionHandler, CommandRegistry {
     }
 
     @Override
-    public void putCommand(String name, Command cmd) {
-        commandMap.put(name, cmd);
+    public synchronized void putCommand(String name, Command cmd) {
+        commands = commands.with(name, metrics == null ? cmd : metrics.timed(name, cmd));
     }
 
     @Override
     public void onInboundIdle(Session session) {
         User user = getUser(session);
-        logger.debug("User idle: " + user.getNick());
-        if (user.setPingSent()) {
-            ircCmds.ping(user);
-        } else {
-            ircCmds.quit(user, "Ping timeout");
+        user.getExecutor().execute(() -> {
+            logger.debug("User idle: {}", user.getNick());
+            if (user.setPingSent()) {
+                ircCmds.ping(user);
+            } else {
+                quit(user, "Ping timeout");
+            }
+        });
+    }
+
+    @Override
+    public void onSendQExceeded(Session session) {
+        User user = getUser(session);
+        logger.debug("SendQ exceeded: {}", user.getNick());
+        try {
+            user.getExecutor().execute(() -> quit(user, "Max SendQ exceeded"));
+        } catch (RejectedExecutionException e) {
+            session.disconnect();
         }
+    }
 
+    // Links have no nick to QUIT with, they get an ERROR
+    private void quit(User user, String reason) {
+        ServerLink link = links.linkOf(user);
+        if (link != null) {
+            link.close(reason);
+        } else {
+            ircCmds.quit(user, reason);
+        }
     }
 
     @Override
     public void onDisconnect(Session session) {
         final User user = getUser(session);
-        if (user.setQuitted()) {
-            ircCmds.onQuit(user, "Connection closed by peer");
-        }
         userMap.remove(session);
+        Runnable quit = () -> {
+            ServerLink link = links.linkOf(user);
+            if (link != null) {
+                links.linkClosed(link);
+            } else if (user.setQuitted()) {
+                ircCmds.onQuit(user, "Connection closed by peer");
+            }
+        };
+        try {
+            user.getExecutor().execute(quit);
+        } catch (RejectedExecutionException e) {
+            // Nothing more will come from this session, so there's no ordering left to keep
+            quit.run();
+        }
     }
 }
 
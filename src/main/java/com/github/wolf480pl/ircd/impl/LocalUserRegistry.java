@@ -0,0 +1,98 @@
+/*
+ * This file is part of IRCd4j.
+ *
+ * Copyright (c) 2014 Wolf480pl <wolf480@interia.pl>
+ * IRCd4j is licensed under the GNU Lesser General Public License.
+ *
+ * IRCd4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * IRCd4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.wolf480pl.ircd.impl;
+
+import java.util.concurrent.CompletableFuture;
+
+import com.github.wolf480pl.ircd.NicknameInUseException;
+import com.github.wolf480pl.ircd.User;
+import com.github.wolf480pl.ircd.UserRegistry;
+import com.github.wolf480pl.ircd.util.CaseMappedMap;
+
+/*
+ * Keeps all the users of this server in memory.
+ * Everything completes synchronously, the futures are only there for the UserRegistry contract.
+ */
+public class LocalUserRegistry implements UserRegistry {
+    private final CaseMappedMap<User> users;
+
+    public LocalUserRegistry() {
+        this(new CaseMappedMap<>());
+    }
+
+    public LocalUserRegistry(int expectedUsers) {
+        this(new CaseMappedMap<>(expectedUsers, CaseMappedMap.DEFAULT_SEGMENTS));
+    }
+
+    protected LocalUserRegistry(CaseMappedMap<User> users) {
+        this.users = users;
+    }
+
+    @Override
+    public User getUser(String nick) {
+        return users.get(nick);
+    }
+
+    public User getUser(CharSequence nick) {
+        return users.get(nick);
+    }
+
+    @Override
+    public CompletableFuture<Void> register(User user) {
+        String nick = user.getNick();
+        User existing = users.putIfAbsent(nick, user);
+        if (existing != null && existing != user) {
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            future.completeExceptionally(new NicknameInUseException(nick));
+            return future;
+        }
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public CompletableFuture<String> changeNick(User user, String newNick) {
+        String oldNick = user.getNick();
+        if (oldNick != null && users.get(oldNick) == user && users.get(newNick) == user) {
+            // Only the case changes, so it's the same entry
+            users.replace(newNick, user, user);
+            return CompletableFuture.completedFuture(newNick);
+        }
+        User existing = users.putIfAbsent(newNick, user);
+        if (existing != null && existing != user) {
+            return CompletableFuture.completedFuture(null);
+        }
+        if (oldNick != null) {
+            users.remove(oldNick, user);
+        }
+        return CompletableFuture.completedFuture(newNick);
+    }
+
+    @Override
+    public void unregister(User user) {
+        String nick = user.getNick();
+        if (nick != null) {
+            users.remove(nick, user);
+        }
+    }
+
+    public int size() {
+        return users.size();
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * This file is part of IRCd4j.
+ *
+ * Copyright (c) 2014 Wolf480pl <wolf480@interia.pl>
+ * IRCd4j is licensed under the GNU Lesser General Public License.
+ *
+ * IRCd4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * IRCd4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.wolf480pl.ircd.link;
+
+/*
+ * The binary burst, for links that both offered it in CAPAB (BURST=<version>). It's streamed in BinaryFrames,
+ * each one a chunk of records: the type, the sequence number (from 0), then records until the frame ends.
+ * The receiver ACKs each chunk once it's done with it, and the sender keeps at most WINDOW chunks unACKed,
+ * so a burst never piles up in a SendQ, and the link carries on with everything else in between.
+ *
+ * Numbers are unsigned varints, 7 bits a byte, least significant first. Strings are a varint length and UTF-8.
+ * Names that repeat (nicks, usernames, hosts, servers) are interned: a varint n, where 0 means the string
+ * follows and takes the next slot of the table, anything else is the string from slot n.
+ * The table lasts for the whole burst, until it has MAX_TABLE_SIZE strings.
+ *
+ *   SERVER  parent* name* description
+ *   USER    nick* ts username* hostname* server* realname
+ *   CHANNEL name ts count nick*...     (a big channel takes several)
+ *   TOPIC   channel setAt setBy text   (after the channel's members)
+ *   END
+ *
+ * (* interned) They're the same as the SERVER, NICK, SJOIN and TB of the text burst, minus the hop counts.
+ */
+final class BurstFormat {
+    public static final String CAPABILITY = "BURST";
+    public static final int VERSION = 1;
+
+    public static final byte FRAME_CHUNK = 'C';
+    public static final byte FRAME_ACK = 'A';
+
+    public static final byte SERVER = 1;
+    public static final byte USER = 2;
+    public static final byte CHANNEL = 3;
+    public static final byte TOPIC = 4;
+    public static final byte END = 5;
+
+    // A chunk is cut after the first record that takes it past this
+    public static final int CHUNK_SIZE = 16 * 1024;
+    public static final int WINDOW = 8;
+    public static final int MAX_MEMBERS_PER_RECORD = 256;
+    public static final int MAX_TABLE_SIZE = 1 << 18;
+
+    private BurstFormat() {
+    }
+
+    // Our version if they offered it, or whichever is older. 0 if they didn't offer any
+    public static int negotiate(Iterable<String> capabilities) {
+        for (String capability : capabilities) {
+            if (capability.startsWith(CAPABILITY + "=")) {
+                try {
+                    return Math.max(0, Math.min(VERSION, Integer.parseInt(capability.substring(CAPABILITY.length() + 1))));
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * This file is part of IRCd4j.
+ *
+ * Copyright (c) 2014 Wolf480pl <wolf480@interia.pl>
+ * IRCd4j is licensed under the GNU Lesser General Public License.
+ *
+ * IRCd4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * IRCd4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.wolf480pl.ircd.link;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Decodes the chunks of a binary burst one by one, see BurstFormat. The string table carries over from chunk to chunk.
+ * Anything that doesn't add up throws an IllegalArgumentException.
+ */
+final class BurstReader {
+    private final List<String> table = new ArrayList<>();
+    private int expectedSeq = 0;
+    private int seq = -1;
+    private byte[] data;
+    private int pos;
+
+    // Returns false if it's not the chunk that comes next
+    public boolean startChunk(byte[] payload) {
+        data = payload;
+        pos = 1;
+        if (readInt() != expectedSeq) {
+            return false;
+        }
+        seq = expectedSeq++;
+        return true;
+    }
+
+    public int getSeq() {
+        return seq;
+    }
+
+    public boolean hasRemaining() {
+        return pos < data.length;
+    }
+
+    public byte readType() {
+        need(1);
+        return data[pos++];
+    }
+
+    public String readString() {
+        final int length = readInt();
+        need(length);
+        String s = new String(data, pos, length, StandardCharsets.UTF_8);
+        pos += length;
+        return s;
+    }
+
+    public String readInterned() {
+        final int slot = readInt();
+        if (slot == 0) {
+            String s = readString();
+            if (table.size() < BurstFormat.MAX_TABLE_SIZE) {
+                table.add(s);
+            }
+            return s;
+        }
+        if (slot > table.size()) {
+            throw new IllegalArgumentException("No string in slot " + slot);
+        }
+        return table.get(slot - 1);
+    }
+
+    public long readLong() {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            need(1);
+            final byte b = data[pos++];
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Varint too long");
+    }
+
+    public int readInt() {
+        final long value = readLong();
+        // A 10-byte varint can come out negative
+        if (value < 0 || value > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Number out of range: " + value);
+        }
+        return (int) value;
+    }
+
+    public static int readAck(byte[] payload) {
+        BurstReader reader = new BurstReader();
+        reader.data = payload;
+        reader.pos = 1;
+        return reader.readInt();
+    }
+
+    private void need(int n) {
+        if (data.length - pos < n) {
+            throw new IllegalArgumentException("Record cut short");
+        }
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * This file is part of IRCd4j.
+ *
+ * Copyright (c) 2014 Wolf480pl <wolf480@interia.pl>
+ * IRCd4j is licensed under the GNU Lesser General Public License.
+ *
+ * IRCd4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * IRCd4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.wolf480pl.ircd.link;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Stream;
+
+import com.github.wolf480pl.ircd.ChannelRegistry;
+import com.github.wolf480pl.ircd.IRCChannel;
+import com.github.wolf480pl.ircd.User;
+
+/*
+ * What's left to send of a binary burst. Nothing is copied up front, each chunk is made of whatever is there
+ * when its turn comes, and what changes in the meantime reaches them the usual way, same as with the text burst.
+ * Only used on the link's executor.
+ */
+final class BurstSender {
+    private final ServerLink link;
+    private final String serverName;
+    private final ChannelRegistry channelRegistry;
+    private final BurstWriter writer = new BurstWriter();
+    private final Iterator<RemoteServer> servers;
+    private final Iterator<User> users;
+    private final List<String> nicks = new ArrayList<>();
+    private final long started = System.nanoTime();
+    private Iterator<IRCChannel> channels;
+    private IRCChannel channel;
+    private Iterator<User> members;
+    private boolean channelSent;
+    private int nextSeq = 0;
+    private int inFlight = 0;
+    private boolean done = false;
+
+    // The servers must come parents first, channels can be null to leave them out
+    public BurstSender(ServerLink link, String serverName, List<RemoteServer> known, Set<User> localUsers, ChannelRegistry channels) {
+        this.link = link;
+        this.serverName = serverName;
+        this.channelRegistry = channels;
+        this.servers = known.iterator();
+        this.users = Stream.concat(localUsers.stream(), known.stream().flatMap((server) -> server.getUsers().stream())).iterator();
+    }
+
+    // As much as the window lets us
+    public void send() {
+        while (!done && inFlight < BurstFormat.WINDOW) {
+            writer.startChunk(nextSeq++);
+            while (!done && !writer.isFull()) {
+                writeNext();
+            }
+            link.sendFrame(writer.finishChunk());
+            ++inFlight;
+        }
+    }
+
+    // Returns false if they ACKed more than we sent
+    public boolean acked(int seq) {
+        if (seq < 0 || seq >= nextSeq || inFlight == 0) {
+            return false;
+        }
+        --inFlight;
+        send();
+        return true;
+    }
+
+    // All sent and ACKed
+    public boolean isDone() {
+        return done && inFlight == 0;
+    }
+
+    public int getChunks() {
+        return nextSeq;
+    }
+
+    public long getStarted() {
+        return started;
+    }
+
+    private void writeNext() {
+        if (servers.hasNext()) {
+            RemoteServer server = servers.next();
+            RemoteServer parent = server.getUplink();
+            writer.server(parent == null ? serverName : parent.getName(), server.getName(), server.getDescription());
+            return;
+        }
+        while (users.hasNext()) {
+            User user = users.next();
+            if (user.isQuitted()) {
+                continue;
+            }
+            String server = user.isLocal() ? serverName : ((RemoteUser) user).getHomeServer().getName();
+            writer.user(user.getNick(), user.getNickTimestamp(), user.getUsername(), user.getHostname(), server, user.getRealName());
+            return;
+        }
+        if (channels == null) {
+            List<IRCChannel> all = new ArrayList<>();
+            if (channelRegistry != null) {
+                channelRegistry.forEach(all::add);
+            }
+            channels = all.iterator();
+        }
+        if (channel == null) {
+            if (!channels.hasNext()) {
+                writer.end();
+                done = true;
+                return;
+            }
+            channel = channels.next();
+            members = channel.getMembers().iterator();
+            channelSent = false;
+        }
+        writeMembers();
+    }
+
+    // The next batch of the current channel's members, then its topic after the last one
+    private void writeMembers() {
+        nicks.clear();
+        while (members.hasNext() && nicks.size() < BurstFormat.MAX_MEMBERS_PER_RECORD) {
+            User member = members.next();
+            if (!(member instanceof RemoteUser && ((RemoteUser) member).getLink() == link)) {
+                nicks.add(member.getNick());
+            }
+        }
+        if (!nicks.isEmpty()) {
+            writer.channel(channel.getName(), channel.getTimestamp(), nicks);
+            channelSent = true;
+        }
+        if (members.hasNext()) {
+            return;
+        }
+        IRCChannel.Topic topic = channel.getTopic();
+        if (channelSent && topic != null) {
+            writer.topic(channel.getName(), topic.getSetAt(), topic.getSetBy(), topic.getText());
+        }
+        channel = null;
+    }
+}
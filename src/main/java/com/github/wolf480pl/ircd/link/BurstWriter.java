@@ -0,0 +1,143 @@
+/*
+ * This file is part of IRCd4j.
+ *
+ * Copyright (c) 2014 Wolf480pl <wolf480@interia.pl>
+ * IRCd4j is licensed under the GNU Lesser General Public License.
+ *
+ * IRCd4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * IRCd4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.wolf480pl.ircd.link;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Encodes the records of a binary burst into chunks, see BurstFormat
+final class BurstWriter {
+    private final Map<String, Integer> table = new HashMap<>();
+    private byte[] buf;
+    private int pos = 0;
+
+    public BurstWriter() {
+        // Room for the record that goes past CHUNK_SIZE, most of the time
+        this(BurstFormat.CHUNK_SIZE + 1024);
+    }
+
+    private BurstWriter(int size) {
+        this.buf = new byte[size];
+    }
+
+    public void startChunk(int seq) {
+        pos = 0;
+        writeByte(BurstFormat.FRAME_CHUNK);
+        writeVarint(seq);
+    }
+
+    public boolean isFull() {
+        return pos >= BurstFormat.CHUNK_SIZE;
+    }
+
+    public byte[] finishChunk() {
+        return Arrays.copyOf(buf, pos);
+    }
+
+    public void server(String parent, String name, String description) {
+        writeByte(BurstFormat.SERVER);
+        writeInterned(parent);
+        writeInterned(name);
+        writeString(description);
+    }
+
+    public void user(String nick, long ts, String username, String hostname, String server, String realName) {
+        writeByte(BurstFormat.USER);
+        writeInterned(nick);
+        writeVarint(ts);
+        writeInterned(username);
+        writeInterned(hostname);
+        writeInterned(server);
+        writeString(realName);
+    }
+
+    public void channel(String name, long ts, List<String> nicks) {
+        writeByte(BurstFormat.CHANNEL);
+        writeString(name);
+        writeVarint(ts);
+        writeVarint(nicks.size());
+        for (String nick : nicks) {
+            writeInterned(nick);
+        }
+    }
+
+    public void topic(String channel, long setAt, String setBy, String text) {
+        writeByte(BurstFormat.TOPIC);
+        writeString(channel);
+        writeVarint(setAt);
+        writeString(setBy);
+        writeString(text);
+    }
+
+    public void end() {
+        writeByte(BurstFormat.END);
+    }
+
+    public static byte[] ack(int seq) {
+        BurstWriter writer = new BurstWriter(6);
+        writer.writeByte(BurstFormat.FRAME_ACK);
+        writer.writeVarint(seq);
+        return writer.finishChunk();
+    }
+
+    private void writeInterned(String s) {
+        Integer slot = table.get(s);
+        if (slot != null) {
+            writeVarint(slot);
+            return;
+        }
+        writeVarint(0);
+        writeString(s);
+        if (table.size() < BurstFormat.MAX_TABLE_SIZE) {
+            table.put(s, table.size() + 1);
+        }
+    }
+
+    private void writeString(String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        writeVarint(bytes.length);
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, buf, pos, bytes.length);
+        pos += bytes.length;
+    }
+
+    private void writeVarint(long value) {
+        ensureCapacity(10);
+        while ((value & ~0x7FL) != 0) {
+            buf[pos++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buf[pos++] = (byte) value;
+    }
+
+    private void writeByte(byte b) {
+        ensureCapacity(1);
+        buf[pos++] = b;
+    }
+
+    private void ensureCapacity(int more) {
+        if (pos + more > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + more));
+        }
+    }
+}
@@ -0,0 +1,1187 @@
+/*
+ * This file is part of IRCd4j.
+ *
+ * Copyright (c) 2014 Wolf480pl <wolf480@interia.pl>
+ * IRCd4j is licensed under the GNU Lesser General Public License.
+ *
+ * IRCd4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * IRCd4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.wolf480pl.ircd.link;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.wolf480pl.ircd.BroadcastMessage;
+import com.github.wolf480pl.ircd.ChannelRegistry;
+import com.github.wolf480pl.ircd.CommandRegistry;
+import com.github.wolf480pl.ircd.DropMessageException;
+import com.github.wolf480pl.ircd.IRCChannel;
+import com.github.wolf480pl.ircd.Message;
+import com.github.wolf480pl.ircd.NicknameInUseException;
+import com.github.wolf480pl.ircd.Session;
+import com.github.wolf480pl.ircd.User;
+import com.github.wolf480pl.ircd.UserRegistry;
+import com.github.wolf480pl.ircd.registry.NickHolder;
+import com.github.wolf480pl.ircd.registry.PartitionedUserRegistry;
+import com.github.wolf480pl.ircd.util.AttributeKey;
+import com.github.wolf480pl.ircd.util.CaseMappedMap;
+import com.github.wolf480pl.ircd.util.SerialExecutor;
+import com.github.wolf480pl.ircd.util.Util;
+
+/*
+ * Links this server with others into a spanning tree, TS style.
+ *
+ * When two servers link, each one sends the other everything it knows (servers, users, channel members and topics),
+ * after that they only tell each other what changes. Whatever comes from one link is passed on to all the others,
+ * except for PRIVMSG and NOTICE, which only go where they're needed: to the link the recipient is behind,
+ * or, for a channel, once to each link that has members of it behind.
+ * Nick collisions are settled by the nick timestamps: the older nick stays, the newer one gets killed,
+ * and if they're the same age both do. When a link goes down, everything behind it goes with it.
+ *
+ * Before SERVER, both sides say what they can do with CAPAB: BURST=<version> for the binary burst (see BurstFormat),
+ * which is used instead of the text one if both offer it, and ZIP for compressing the link, ditto.
+ *
+ * The local side tells us about its users through the userRegistered, nickChanged, userQuit, joined, parted,
+ * topicChanged and channelMessage hooks. Everything that comes from a link is handled on the link's executor,
+ * which is also the executor of every user behind it.
+ *
+ * With a shared registry (see UserRegistry.isShared) the servers already know each other's users from it,
+ * so the links only carry the servers and the messages between users: no users, channels or collisions,
+ * and users of other servers are made up from what the registry says, see userOn().
+ */
+public class LinkManager implements PartitionedUserRegistry.Router {
+    private static final Logger logger = LoggerFactory.getLogger(LinkManager.class);
+    private static final AttributeKey<ServerLink> ATTR_LINK = AttributeKey.valueOf(LinkManager.class.getCanonicalName() + ".link");
+    private static final AttributeKey<AtomicReference<String>> ATTR_PASS = AttributeKey.valueOf(LinkManager.class.getCanonicalName() + ".pass");
+    private static final AttributeKey<AtomicReference<String>> ATTR_CAPAB = AttributeKey.valueOf(LinkManager.class.getCanonicalName() + ".capab");
+    // Same as NAMES, leaves room for the prefix, timestamp and channel name
+    private static final int SJOIN_LINE_LENGTH = 400;
+
+    private final String serverName;
+    private final String description;
+    private final UserRegistry users;
+    private final boolean shared;
+    private final ChannelRegistry channels;
+    private final CaseMappedMap<String> passwords = new CaseMappedMap<>(16, 1);
+    private final CaseMappedMap<RemoteServer> servers = new CaseMappedMap<>(16, 1);
+    private final List<ServerLink> links = new CopyOnWriteArrayList<>();
+    // Our own registered users, the ones we introduce when linking
+    private final Set<User> localUsers = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    private final Map<String, Handler> handlers = new HashMap<>();
+
+    public LinkManager(String serverName, String description, UserRegistry users, ChannelRegistry channels) {
+        this.serverName = serverName;
+        this.description = description;
+        this.users = users;
+        this.shared = users.isShared();
+        this.channels = channels;
+        handlers.put("SERVER", this::server);
+        handlers.put("SQUIT", this::squit);
+        handlers.put("NICK", this::nick);
+        handlers.put("QUIT", this::quit);
+        handlers.put("KILL", this::kill);
+        handlers.put("JOIN", this::join);
+        handlers.put("SJOIN", this::sjoin);
+        handlers.put("PART", this::part);
+        handlers.put("TOPIC", this::topic);
+        handlers.put("TB", this::topicBurst);
+        handlers.put("PRIVMSG", (link, source, args) -> message(link, source, args, "PRIVMSG"));
+        handlers.put("NOTICE", (link, source, args) -> message(link, source, args, "NOTICE"));
+        handlers.put("PING", this::ping);
+        handlers.put("PONG", this::pong);
+        handlers.put("ERROR", this::error);
+    }
+
+    // What a connection has to send before SERVER to be let in as a link
+    public void register(CommandRegistry handler) {
+        handler.putCommand("PASS", this::pass);
+        handler.putCommand("CAPAB", this::capab);
+        handler.putCommand("SERVER", this::serverCommand);
+    }
+
+    // Lets the named server link with us, both ways, if it knows the password
+    public void allow(String name, String password) {
+        passwords.remove(name);
+        passwords.putIfAbsent(name, password);
+    }
+
+    public String getServerName() {
+        return serverName;
+    }
+
+    public RemoteServer getServer(String name) {
+        return servers.get(name);
+    }
+
+    // Not counting us
+    public int getServerCount() {
+        return servers.size();
+    }
+
+    public int getLinkCount() {
+        return links.size();
+    }
+
+    // null if it's a client connection
+    public ServerLink linkOf(User connection) {
+        return connection.attr(ATTR_LINK);
+    }
+
+    /*
+     * Takes a connection we opened for a link with the named server. Must be called from the connection's executor.
+     */
+    public ServerLink connect(User connection, String name) {
+        String password = passwords.get(name);
+        if (password == null) {
+            throw new IllegalArgumentException("Not allowed to link with " + name);
+        }
+        ServerLink link = new ServerLink(connection, true, name);
+        if (connection.attr(ATTR_LINK, link) != null) {
+            throw new IllegalStateException("Already a link");
+        }
+        // We picked them, and their burst may come right behind their SERVER, so nothing can be held back
+        connection.getSession().exemptFromFloodControl();
+        connection.getSession().useLinkSendQ();
+        sendHandshake(link, password);
+        return link;
+    }
+
+    public void pass(User user, List<String> args) {
+        if (args.size() < 1) {
+            user.send(user.numerics().errNeedMoreParams("PASS"));
+            return;
+        }
+        if (user.isRegistered()) {
+            user.send(user.numerics().errAlreadyRegistered());
+            return;
+        }
+        user.attr(ATTR_PASS, makeRef).set(args.get(0));
+    }
+
+    public void capab(User user, List<String> args) {
+        if (args.size() < 1 || user.isRegistered()) {
+            return;
+        }
+        user.attr(ATTR_CAPAB, makeRef).set(args.get(0));
+    }
+
+    // SERVER from a connection that isn't a link yet, i.e. someone linking with us
+    public void serverCommand(User user, List<String> args) {
+        if (args.size() < 3) {
+            user.send(user.numerics().errNeedMoreParams("SERVER"));
+            return;
+        }
+        if (user.isRegistered()) {
+            user.send(user.numerics().errAlreadyRegistered());
+            return;
+        }
+        ServerLink link = new ServerLink(user, false, null);
+        if (user.attr(ATTR_LINK, link) != null) {
+            return;
+        }
+        establish(link, args);
+    }
+
+    // Everything that comes on a link once it's taken, on its executor
+    public void handle(ServerLink link, Message msg) {
+        final String command = msg.getCommand().toUpperCase(Locale.ROOT);
+        final List<String> args = msg.getParams();
+        if (!link.isEstablished()) {
+            // Our side of an outgoing link, waiting for them to introduce themselves
+            switch (command) {
+                case "PASS":
+                    if (args.size() >= 1) {
+                        link.getConnection().attr(ATTR_PASS, makeRef).set(args.get(0));
+                    }
+                    return;
+                case "CAPAB":
+                    if (args.size() >= 1) {
+                        link.getConnection().attr(ATTR_CAPAB, makeRef).set(args.get(0));
+                    }
+                    return;
+                case "SERVER":
+                    if (args.size() >= 3) {
+                        establish(link, args);
+                    }
+                    return;
+                case "PING":
+                case "PONG":
+                case "ERROR":
+                    break;
+                default:
+                    logger.debug("Ignoring {} from {} before it introduced itself", command, link);
+                    return;
+            }
+        }
+        Handler handler = handlers.get(command);
+        if (handler == null) {
+            logger.debug("Unknown command from {}: {}", link, command);
+            return;
+        }
+        handler.handle(link, msg.getPrefix(), args);
+    }
+
+    // Binary frames on a link, on its executor. They're only used for the binary burst
+    public void handleFrame(ServerLink link, byte[] payload) {
+        if (!link.isEstablished() || payload.length == 0) {
+            logger.debug("Ignoring a frame from {} before it introduced itself", link);
+            return;
+        }
+        switch (payload[0]) {
+            case BurstFormat.FRAME_CHUNK:
+                BurstReader reader = link.getBurstIn();
+                if (reader == null) {
+                    link.close("Unexpected burst chunk");
+                    return;
+                }
+                readChunk(link, reader, payload);
+                return;
+            case BurstFormat.FRAME_ACK:
+                BurstSender sender = link.getBurstOut();
+                if (sender == null || !sender.acked(readAck(payload))) {
+                    link.close("Unexpected burst ACK");
+                    return;
+                }
+                if (sender.isDone()) {
+                    link.setBurstOut(null);
+                    logger.info("Sent burst to {} in {} chunks, {} ms", link, sender.getChunks(),
+                            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - sender.getStarted()));
+                }
+                return;
+            default:
+                logger.debug("Unknown frame from {}: {}", link, payload[0]);
+        }
+    }
+
+    // -1 if it's garbled
+    private static int readAck(byte[] payload) {
+        try {
+            return BurstReader.readAck(payload);
+        } catch (RuntimeException e) {
+            return -1;
+        }
+    }
+
+    // When the connection of a link is closed, on its executor
+    public void linkClosed(ServerLink link) {
+        if (!links.remove(link)) {
+            // Never got established
+            return;
+        }
+        RemoteServer peer = link.getPeer();
+        String reason = link.getCloseReason();
+        logger.info("Lost link with {}: {}", peer.getName(), reason);
+        split(peer);
+        flood(Message.withPrefix(serverName, "SQUIT", peer.getName(), reason), null);
+    }
+
+    private void sendHandshake(ServerLink link, String password) {
+        // They may use what we offer as soon as they see it, so we have to be ready by then
+        Session session = link.getConnection().getSession();
+        List<String> capabilities = new ArrayList<>(2);
+        if (session.acceptFrames()) {
+            capabilities.add(BurstFormat.CAPABILITY + "=" + BurstFormat.VERSION);
+        }
+        if (session.acceptCompression()) {
+            capabilities.add("ZIP");
+        }
+        link.setCapabilities(capabilities);
+        link.send(Message.withoutPrefix("PASS", password));
+        link.send(Message.withoutPrefix("CAPAB", String.join(" ", capabilities)));
+        link.send(Message.withoutPrefix("SERVER", serverName, "1", description));
+    }
+
+    private void establish(ServerLink link, List<String> args) {
+        final String name = args.get(0);
+        final String desc = args.get(args.size() - 1);
+        AtomicReference<String> pass = link.getConnection().attr(ATTR_PASS);
+        String password = passwords.get(name);
+        if (password == null || pass == null || !password.equals(pass.get())) {
+            logger.warn("{} tried to link as {} without the right password", link, name);
+            link.close("Bad password");
+            return;
+        }
+        if (link.isOutgoing() && !name.equalsIgnoreCase(link.getExpectedName())) {
+            link.close("Expected " + link.getExpectedName() + ", not " + name);
+            return;
+        }
+        RemoteServer peer = new RemoteServer(name, 1, desc, link, null);
+        if (name.equalsIgnoreCase(serverName) || servers.putIfAbsent(name, peer) != null) {
+            link.close("Server " + name + " already exists");
+            return;
+        }
+        // Bursts are way past what a client may send, or have queued for it
+        link.getConnection().getSession().exemptFromFloodControl();
+        link.getConnection().getSession().useLinkSendQ();
+        if (!link.isOutgoing()) {
+            sendHandshake(link, password);
+        }
+        link.setPeer(peer);
+        /*
+         * It's taken into the tree before the burst, so nothing that changes while we burst is lost.
+         * Some of it may reach them twice or before the burst has what it refers to, which they tolerate.
+         */
+        links.add(link);
+        AtomicReference<String> capab = link.getConnection().attr(ATTR_CAPAB);
+        List<String> theirs = capab == null ? Collections.emptyList() : Arrays.asList(capab.get().split(" "));
+        if (link.getCapabilities().contains("ZIP") && theirs.contains("ZIP")) {
+            link.getConnection().getSession().startCompression();
+        }
+        if (Math.min(BurstFormat.negotiate(link.getCapabilities()), BurstFormat.negotiate(theirs)) > 0) {
+            link.setBurstIn(new BurstReader());
+            BurstSender sender = new BurstSender(link, serverName, knownServers(link), localUsers, shared ? null : channels);
+            link.setBurstOut(sender);
+            sender.send();
+        } else {
+            burst(link);
+        }
+        flood(Message.withPrefix(serverName, "SERVER", name, "2", desc), link);
+        logger.info("Linked with {}", name);
+    }
+
+    // The ones that aren't behind the link, parents before their children
+    private List<RemoteServer> knownServers(ServerLink link) {
+        List<RemoteServer> known = new ArrayList<>();
+        servers.forEach((name, server) -> {
+            if (server.getLink() != link) {
+                known.add(server);
+            }
+        });
+        known.sort(Comparator.comparingInt(RemoteServer::getHops));
+        return known;
+    }
+
+    private void burst(ServerLink link) {
+        List<RemoteServer> known = knownServers(link);
+        for (RemoteServer server : known) {
+            link.send(Message.withPrefix(parentName(server), "SERVER", server.getName(), Integer.toString(server.getHops() + 1), server.getDescription()));
+        }
+        for (User user : localUsers) {
+            link.send(introduction(user, serverName, 1));
+        }
+        for (RemoteServer server : known) {
+            for (RemoteUser user : server.getUsers()) {
+                link.send(introduction(user, server.getName(), server.getHops() + 1));
+            }
+        }
+        if (!shared) {
+            channels.forEach((channel) -> burstChannel(link, channel));
+        }
+    }
+
+    private void burstChannel(ServerLink link, IRCChannel channel) {
+        final String name = channel.getName();
+        final String ts = Long.toString(channel.getTimestamp());
+        StringBuilder nicks = new StringBuilder();
+        boolean any = false;
+        for (User member : channel.getMembers()) {
+            if (isBehind(member, link)) {
+                continue;
+            }
+            String nick = member.getNick();
+            if (nicks.length() > 0 && nicks.length() + nick.length() + 1 > SJOIN_LINE_LENGTH) {
+                link.send(Message.withPrefix(serverName, "SJOIN", ts, name, nicks.toString()));
+                nicks.setLength(0);
+            }
+            if (nicks.length() > 0) {
+                nicks.append(' ');
+            }
+            nicks.append(nick);
+            any = true;
+        }
+        if (!any) {
+            return;
+        }
+        link.send(Message.withPrefix(serverName, "SJOIN", ts, name, nicks.toString()));
+        IRCChannel.Topic topic = channel.getTopic();
+        if (topic != null) {
+            link.send(Message.withPrefix(serverName, "TB", name, Long.toString(topic.getSetAt()), topic.getSetBy(), topic.getText()));
+        }
+    }
+
+    private Message introduction(User user, String server, int hops) {
+        return Message.withoutPrefix("NICK", user.getNick(), Integer.toString(hops), Long.toString(user.getNickTimestamp()),
+                user.getUsername(), user.getHostname(), server, user.getRealName());
+    }
+
+    /* Local side */
+
+    public void userRegistered(User user) {
+        if (shared) {
+            return;
+        }
+        localUsers.add(user);
+        if (!links.isEmpty()) {
+            flood(introduction(user, serverName, 1), null);
+        }
+    }
+
+    public void nickChanged(User user, String oldNick) {
+        if (shared || links.isEmpty() || !localUsers.contains(user)) {
+            return;
+        }
+        flood(Message.withPrefix(oldNick, "NICK", user.getNick(), Long.toString(user.getNickTimestamp())), null);
+    }
+
+    public void userQuit(User user, String reason) {
+        // Killed users are gone from the set already, the KILL told everyone
+        if (!localUsers.remove(user) || links.isEmpty()) {
+            return;
+        }
+        flood(Message.withPrefix(user.getNick(), "QUIT", reason), null);
+    }
+
+    public void joined(User user, IRCChannel channel) {
+        if (!shared && !links.isEmpty()) {
+            flood(Message.withPrefix(user.getNick(), "JOIN", channel.getName(), Long.toString(channel.getTimestamp())), null);
+        }
+    }
+
+    public void parted(User user, IRCChannel channel, String reason) {
+        if (!shared && !links.isEmpty()) {
+            flood(Message.withPrefix(user.getNick(), "PART", channel.getName(), reason), null);
+        }
+    }
+
+    public void topicChanged(User user, IRCChannel channel, String text) {
+        if (!shared && !links.isEmpty()) {
+            flood(Message.withPrefix(user.getNick(), "TOPIC", channel.getName(), text), null);
+        }
+    }
+
+    public void channelMessage(User user, IRCChannel channel, String command, String text) {
+        if (!shared && !links.isEmpty()) {
+            routeToChannel(channel, Message.withPrefix(user.getNick(), command, channel.getName(), text), null);
+        }
+    }
+
+    // Returns false if there's no such server. The PONG comes back through pong()
+    public boolean ping(User user, String origin, String target) {
+        RemoteServer server = servers.get(target);
+        if (server == null) {
+            return false;
+        }
+        server.getLink().send(Message.withPrefix(user.getNick(), "PING", origin, server.getName()));
+        return true;
+    }
+
+    /* Routing */
+
+    // To every link but the one it came from
+    private void flood(Message msg, ServerLink except) {
+        try (BroadcastMessage broadcast = new BroadcastMessage(msg)) {
+            for (ServerLink link : links) {
+                if (link != except) {
+                    link.send(broadcast);
+                }
+            }
+        }
+    }
+
+    // Once to each link that has members of the channel behind it
+    private void routeToChannel(IRCChannel channel, Message msg, ServerLink except) {
+        List<ServerLink> targets = null;
+        for (User member : channel.getMembers()) {
+            if (member.isLocal()) {
+                continue;
+            }
+            ServerLink link = ((RemoteUser) member).getLink();
+            if (link == except) {
+                continue;
+            }
+            if (targets == null) {
+                targets = new ArrayList<>(links.size());
+            }
+            // There's only a handful of links
+            if (!targets.contains(link)) {
+                targets.add(link);
+            }
+        }
+        if (targets == null) {
+            return;
+        }
+        if (targets.size() == 1) {
+            targets.get(0).send(msg);
+            return;
+        }
+        try (BroadcastMessage broadcast = new BroadcastMessage(msg)) {
+            for (ServerLink link : targets) {
+                link.send(broadcast);
+            }
+        }
+    }
+
+    private static boolean isBehind(User user, ServerLink link) {
+        return user instanceof RemoteUser && ((RemoteUser) user).getLink() == link;
+    }
+
+    private String parentName(RemoteServer server) {
+        return server.getUplink() == null ? serverName : server.getUplink().getName();
+    }
+
+    // Only users behind the link can speak on it
+    private RemoteUser userFrom(ServerLink link, String source) {
+        User user = source == null ? null : users.getUser(RemoteUser.nickOf(source));
+        if (isBehind(user, link)) {
+            return (RemoteUser) user;
+        }
+        logger.debug("Ignoring a message from unknown user {} on {}", source, link);
+        return null;
+    }
+
+    // No prefix means the server we're linked with
+    private RemoteServer serverFrom(ServerLink link, String source) {
+        RemoteServer server = source == null ? link.getPeer() : servers.get(source);
+        if (server != null && server.getLink() == link) {
+            return server;
+        }
+        logger.debug("Ignoring a message from unknown server {} on {}", source, link);
+        return null;
+    }
+
+    /* Servers */
+
+    private void server(ServerLink link, String source, List<String> args) {
+        RemoteServer parent = serverFrom(link, source);
+        if (parent == null || args.size() < 3) {
+            return;
+        }
+        final String name = args.get(0);
+        final String desc = args.get(args.size() - 1);
+        RemoteServer server = new RemoteServer(name, parent.getHops() + 1, desc, link, parent);
+        RemoteServer existing = name.equalsIgnoreCase(serverName) ? null : servers.putIfAbsent(name, server);
+        if (existing != null && existing.getLink() == link) {
+            // They told us twice, it happens when links come up at the same time
+            return;
+        }
+        if (existing != null || name.equalsIgnoreCase(serverName)) {
+            // A loop, or two servers by the same name. Either way, this link has to go
+            link.close("Server " + name + " already exists");
+            return;
+        }
+        logger.info("{} introduced {}", parent.getName(), name);
+        flood(Message.withPrefix(parent.getName(), "SERVER", name, Integer.toString(server.getHops() + 1), desc), link);
+    }
+
+    private void squit(ServerLink link, String source, List<String> args) {
+        if (args.size() < 1) {
+            return;
+        }
+        final String reason = args.size() >= 2 ? args.get(1) : "";
+        RemoteServer server = servers.get(args.get(0));
+        if (args.get(0).equalsIgnoreCase(serverName) || server == link.getPeer()) {
+            // They're dropping the link, the connection closing does the rest
+            link.close(reason);
+            return;
+        }
+        if (server == null || server.getLink() != link) {
+            return;
+        }
+        logger.info("{} split from {}: {}", server.getName(), parentName(server), reason);
+        split(server);
+        flood(Message.withPrefix(source == null ? link.getPeer().getName() : source, "SQUIT", server.getName(), reason), link);
+    }
+
+    // Forgets the server, everything behind it, and all of their users
+    private void split(RemoteServer server) {
+        final String reason = parentName(server) + " " + server.getName();
+        List<RemoteServer> gone = new ArrayList<>();
+        servers.forEach((name, s) -> {
+            if (s == server || s.isBehind(server)) {
+                gone.add(s);
+            }
+        });
+        for (RemoteServer s : gone) {
+            servers.remove(s.getName(), s);
+            for (RemoteUser user : s.getUsers()) {
+                drop(user, reason);
+            }
+            s.getUsers().clear();
+        }
+    }
+
+    /* Users */
+
+    private void nick(ServerLink link, String source, List<String> args) {
+        if (args.size() >= 7) {
+            introduce(link, args, null);
+            return;
+        }
+        RemoteUser user = userFrom(link, source);
+        if (user == null || args.size() < 1) {
+            return;
+        }
+        changeNick(link, user, args.get(0), args.size() >= 2 ? parseTimestamp(args.get(1)) : now());
+    }
+
+    /*
+     * NICK nick hops ts username hostname server :realname
+     * Returns true if it has to wait for the registry, and then andThen (if any) runs once it's done, before anything else.
+     */
+    private boolean introduce(ServerLink link, List<String> args, Runnable andThen) {
+        RemoteServer home = servers.get(args.get(5));
+        if (home == null || home.getLink() != link) {
+            logger.debug("Ignoring {} of unknown server {} on {}", args.get(0), args.get(5), link);
+            return false;
+        }
+        RemoteUser user = new RemoteUser(home, serverName, args.get(0), args.get(3), args.get(4), args.get(6), parseTimestamp(args.get(2)));
+        User existing = users.getUser(user.getNick());
+        if (existing != null && !collide(link, existing, user.getNick(), user.getNickTimestamp())) {
+            return false;
+        }
+        CompletableFuture<Void> future = users.register(user);
+        // Whatever comes next on the link may be about this user, so it waits until the registry is done
+        SerialExecutor executor = link.getConnection().getExecutor();
+        executor.suspend();
+        future.whenComplete((ignored, t) -> executor.resume(() -> {
+            introduced(link, user, args, t, andThen);
+        }));
+        return true;
+    }
+
+    private void introduced(ServerLink link, RemoteUser user, List<String> args, Throwable t, Runnable andThen) {
+        if (t != null) {
+            t = Util.unwrapCompletion(t);
+            if (t instanceof NicknameInUseException) {
+                // Someone of ours took it in the meantime
+                if (!introduce(link, args, andThen) && andThen != null) {
+                    andThen.run();
+                }
+                return;
+            }
+            logger.warn("Couldn't register {} of {}", user.getNick(), user.getHomeServer(), t);
+            link.send(Message.withPrefix(serverName, "KILL", user.getNick(), "Couldn't register"));
+        } else {
+            RemoteServer home = user.getHomeServer();
+            home.getUsers().add(user);
+            flood(introduction(user, home.getName(), home.getHops() + 1), link);
+        }
+        if (andThen != null) {
+            andThen.run();
+        }
+    }
+
+    private void changeNick(ServerLink link, RemoteUser user, String newNick, long ts) {
+        final String oldNick = user.getNick();
+        User existing = users.getUser(newNick);
+        if (existing != null && existing != user && !collide(link, existing, newNick, ts)) {
+            // Their side already knows it by the new nick, and the KILL took care of that. Ours still knows the old one
+            drop(user, "Nick collision");
+            flood(Message.withPrefix(serverName, "KILL", oldNick, "Nick collision"), link);
+            return;
+        }
+        CompletableFuture<String> future = users.changeNick(user, newNick);
+        SerialExecutor executor = link.getConnection().getExecutor();
+        executor.suspend();
+        future.whenComplete((result, t) -> executor.resume(() -> {
+            if (t != null) {
+                logger.warn("Couldn't change the nick of {} to {}", oldNick, newNick, Util.unwrapCompletion(t));
+                return;
+            }
+            if (result == null) {
+                // Someone of ours took it in the meantime
+                changeNick(link, user, newNick, ts);
+                return;
+            }
+            channels.broadcastToCommon(user, Message.withPrefix(user.getHostmask(), "NICK", result), false);
+            user.setNick(result);
+            user.setNickTimestamp(ts);
+            flood(Message.withPrefix(oldNick, "NICK", result, Long.toString(ts)), link);
+        }));
+    }
+
+    /*
+     * Someone from the link wants a nick that's already taken. Returns true if they get it.
+     * The KILLs only go where the loser is known by that nick.
+     */
+    private boolean collide(ServerLink link, User existing, String nick, long ts) {
+        if (isBehind(existing, link)) {
+            // They told us twice, it happens when something changes during a burst
+            return false;
+        }
+        final long existingTs = existing.getNickTimestamp();
+        logger.info("Nick collision on {} ({} vs {})", nick, existingTs, ts);
+        if (existingTs > ts || existingTs == ts) {
+            kill(existing, serverName, "Nick collision", link);
+        }
+        if (existingTs < ts || existingTs == ts) {
+            link.send(Message.withPrefix(serverName, "KILL", nick, "Nick collision"));
+            return false;
+        }
+        return true;
+    }
+
+    private void quit(ServerLink link, String source, List<String> args) {
+        RemoteUser user = userFrom(link, source);
+        if (user == null) {
+            return;
+        }
+        final String reason = args.size() >= 1 ? args.get(0) : user.getNick();
+        drop(user, reason);
+        user.getHomeServer().getUsers().remove(user);
+        flood(Message.withPrefix(user.getNick(), "QUIT", reason), link);
+    }
+
+    private void kill(ServerLink link, String source, List<String> args) {
+        if (args.size() < 1) {
+            return;
+        }
+        User user = users.getUser(args.get(0));
+        if (user == null || isBehind(user, link)) {
+            return;
+        }
+        kill(user, source == null ? link.getPeer().getName() : RemoteUser.nickOf(source), args.size() >= 2 ? args.get(1) : "", link);
+    }
+
+    // Gets rid of the user and tells every link but the given one
+    private void kill(User user, String killer, String reason, ServerLink except) {
+        final String nick = user.getNick();
+        final String quitReason = "Killed (" + killer + " (" + reason + "))";
+        if (user.isLocal()) {
+            killLocal(user, killer, reason, quitReason);
+        } else {
+            drop(user, quitReason);
+            ((RemoteUser) user).getHomeServer().getUsers().remove(user);
+        }
+        flood(Message.withPrefix(killer, "KILL", nick, reason), except);
+    }
+
+    private void killLocal(User user, String killer, String reason, String quitReason) {
+        // The nick has to be free right away, for whoever won it
+        unregister(user);
+        // Everyone else hears of it from the KILL, not a QUIT
+        localUsers.remove(user);
+        Runnable task = () -> {
+            if (!user.setQuitted()) {
+                return;
+            }
+            try {
+                user.send(Message.withPrefix(killer, "KILL", user.getNick(), reason));
+            } catch (IllegalStateException e) {
+                // Disconnected already
+            }
+            user.getSession().disconnect();
+            channels.broadcastToCommon(user, Message.withPrefix(user.getHostmask(), "QUIT", quitReason), false);
+            channels.partAll(user);
+        };
+        try {
+            user.getExecutor().execute(task);
+        } catch (RejectedExecutionException e) {
+            user.getSession().disconnect();
+        }
+    }
+
+    /*
+     * Whatever a remote user leaves behind here. Only our users see the QUIT, the links hear of it some other way.
+     * The user may be behind another link than the one we're on, and their channels are changed on their own thread.
+     */
+    private void drop(User user, String reason) {
+        if (!user.setQuitted()) {
+            return;
+        }
+        // The nick has to be free right away, for whoever won it
+        unregister(user);
+        Runnable task = () -> {
+            channels.broadcastToCommon(user, Message.withPrefix(user.getHostmask(), "QUIT", reason), false);
+            channels.partAll(user);
+        };
+        try {
+            user.getExecutor().execute(task);
+        } catch (RejectedExecutionException e) {
+            // Their link is hopelessly behind, but they mustn't stay in the channels
+            logger.warn("Mailbox of the link of {} overflowed, dropping them here", user.getNick());
+            task.run();
+        }
+    }
+
+    private void unregister(User user) {
+        try {
+            users.unregister(user);
+        } catch (DropMessageException e) {
+            logger.warn("Couldn't unregister {}", user.getNick(), e);
+        }
+    }
+
+    /* Channels */
+
+    // :nick JOIN #channel ts
+    private void join(ServerLink link, String source, List<String> args) {
+        RemoteUser user = userFrom(link, source);
+        if (user == null || args.size() < 1) {
+            return;
+        }
+        IRCChannel channel = join(user, args.get(0), args.size() >= 2 ? parseTimestamp(args.get(1)) : now());
+        if (channel != null) {
+            flood(Message.withPrefix(user.getNick(), "JOIN", channel.getName(), Long.toString(channel.getTimestamp())), link);
+        }
+    }
+
+    // :server SJOIN ts #channel :nick nick...
+    private void sjoin(ServerLink link, String source, List<String> args) {
+        RemoteServer server = serverFrom(link, source);
+        if (server == null || args.size() < 3) {
+            return;
+        }
+        sjoin(link, server, parseTimestamp(args.get(0)), args.get(1), Arrays.asList(args.get(2).split(" ")));
+    }
+
+    private void sjoin(ServerLink link, RemoteServer server, long ts, String name, List<String> nicks) {
+        IRCChannel channel = null;
+        StringBuilder joined = new StringBuilder();
+        for (String nick : nicks) {
+            RemoteUser user = nick.isEmpty() ? null : userFrom(link, nick);
+            IRCChannel ch = user == null ? null : join(user, name, ts);
+            if (ch != null) {
+                channel = ch;
+                if (joined.length() > 0) {
+                    joined.append(' ');
+                }
+                joined.append(user.getNick());
+            }
+        }
+        if (channel != null) {
+            flood(Message.withPrefix(server.getName(), "SJOIN", Long.toString(channel.getTimestamp()), channel.getName(), joined.toString()), link);
+        }
+    }
+
+    // Returns null if there was nothing to do
+    private IRCChannel join(RemoteUser user, String name, long ts) {
+        if (!ChannelRegistry.isChannelName(name)) {
+            return null;
+        }
+        IRCChannel existing = channels.getChannel(name);
+        if (existing != null && channels.isOn(user, existing)) {
+            return null;
+        }
+        IRCChannel channel = channels.join(user, name);
+        channel.mergeTimestamp(ts);
+        channel.broadcast(Message.withPrefix(user.getHostmask(), "JOIN", channel.getName()));
+        return channel;
+    }
+
+    private void part(ServerLink link, String source, List<String> args) {
+        RemoteUser user = userFrom(link, source);
+        if (user == null || args.size() < 1) {
+            return;
+        }
+        IRCChannel channel = channels.getChannel(args.get(0));
+        if (channel == null || !channels.isOn(user, channel)) {
+            return;
+        }
+        final String reason = args.size() >= 2 ? args.get(1) : user.getNick();
+        channel.broadcast(Message.withPrefix(user.getHostmask(), "PART", channel.getName(), reason));
+        channels.part(user, channel);
+        flood(Message.withPrefix(user.getNick(), "PART", channel.getName(), reason), link);
+    }
+
+    private void topic(ServerLink link, String source, List<String> args) {
+        RemoteUser user = userFrom(link, source);
+        if (user == null || args.size() < 2) {
+            return;
+        }
+        IRCChannel channel = channels.getChannel(args.get(0));
+        if (channel == null) {
+            return;
+        }
+        final String text = args.get(1);
+        final String hostmask = user.getHostmask();
+        channel.setTopic(text.isEmpty() ? null : new IRCChannel.Topic(text, hostmask, now()));
+        channels.topicChanged(channel);
+        channel.broadcast(Message.withPrefix(hostmask, "TOPIC", channel.getName(), text));
+        flood(Message.withPrefix(user.getNick(), "TOPIC", channel.getName(), text), link);
+    }
+
+    // :server TB #channel setAt setBy :text, the older topic wins
+    private void topicBurst(ServerLink link, String source, List<String> args) {
+        RemoteServer server = serverFrom(link, source);
+        if (server == null || args.size() < 4) {
+            return;
+        }
+        IRCChannel channel = channels.getChannel(args.get(0));
+        if (channel == null) {
+            return;
+        }
+        final long setAt = parseTimestamp(args.get(1));
+        IRCChannel.Topic current = channel.getTopic();
+        if (current != null && current.getSetAt() <= setAt) {
+            return;
+        }
+        final String text = args.get(3);
+        channel.setTopic(new IRCChannel.Topic(text, args.get(2), setAt));
+        channels.topicChanged(channel);
+        channel.broadcast(Message.withPrefix(server.getName(), "TOPIC", channel.getName(), text));
+        flood(Message.withPrefix(server.getName(), "TB", channel.getName(), args.get(1), args.get(2), text), link);
+    }
+
+    private void message(ServerLink link, String source, List<String> args, String command) {
+        if (args.size() < 2) {
+            return;
+        }
+        final String target = args.get(0);
+        final String text = args.get(1);
+        if (shared && !ChannelRegistry.isChannelName(target)) {
+            sharedMessage(link, source, target, text, command);
+            return;
+        }
+        RemoteUser user = userFrom(link, source);
+        if (user == null) {
+            return;
+        }
+        if (ChannelRegistry.isChannelName(target)) {
+            IRCChannel channel = channels.getChannel(target);
+            if (channel != null) {
+                channels.message(channel, Message.withPrefix(user.getHostmask(), command, channel.getName(), text), user);
+                routeToChannel(channel, Message.withPrefix(user.getNick(), command, channel.getName(), text), link);
+            }
+            return;
+        }
+        deliver(link, user, users.getUser(target), text, command);
+    }
+
+    // Neither of them has to be known here yet, the registry may have to ask around
+    private void sharedMessage(ServerLink link, String source, String target, String text, String command) {
+        final String nick = RemoteUser.nickOf(source);
+        if (nick == null) {
+            return;
+        }
+        CompletableFuture<User> from = users.lookup(nick);
+        CompletableFuture<User> to = users.lookup(target);
+        if (from.isDone() && to.isDone()) {
+            deliverShared(link, source, from, to, text, command);
+            return;
+        }
+        // Whatever comes next on the link waits, or messages between the same users could overtake each other
+        SerialExecutor executor = link.getConnection().getExecutor();
+        executor.suspend();
+        CompletableFuture.allOf(from, to).whenComplete((ignored, t) -> executor.resume(() -> deliverShared(link, source, from, to, text, command)));
+    }
+
+    private void deliverShared(ServerLink link, String source, CompletableFuture<User> from, CompletableFuture<User> to, String text, String command) {
+        User user = from.isCompletedExceptionally() ? null : from.join();
+        if (!isBehind(user, link)) {
+            logger.debug("Ignoring a message from unknown user {} on {}", source, link);
+            return;
+        }
+        deliver(link, user, to.isCompletedExceptionally() ? null : to.join(), text, command);
+    }
+
+    private void deliver(ServerLink link, User user, User recipient, String text, String command) {
+        // Not back where it came from, whatever we think of where they are
+        if (recipient != null && !isBehind(recipient, link)) {
+            try {
+                // Goes on to the next link if it's not ours
+                recipient.sendDroppable(Message.withPrefix(user.getHostmask(), command, recipient.getNick(), text));
+            } catch (IllegalStateException e) {
+                // Disconnected, but didn't quit yet
+            }
+        }
+    }
+
+    /* Shared registry */
+
+    // Someone another server holds the nick for, reached through the link that server is behind
+    @Override
+    public User userOn(NickHolder holder) {
+        RemoteServer home = servers.get(holder.getNode());
+        if (home == null) {
+            return null;
+        }
+        return new RemoteUser(home, serverName, holder.getNick(), holder.getUsername(), holder.getHostname(), "", TimeUnit.MILLISECONDS.toSeconds(holder.getTimestamp()));
+    }
+
+    // Until their server splits off
+    @Override
+    public boolean isReachable(User user) {
+        if (!(user instanceof RemoteUser)) {
+            return false;
+        }
+        RemoteServer home = ((RemoteUser) user).getHomeServer();
+        return servers.get(home.getName()) == home;
+    }
+
+    /* Binary burst, see BurstFormat */
+
+    private void readChunk(ServerLink link, BurstReader reader, byte[] payload) {
+        boolean started;
+        try {
+            started = reader.startChunk(payload);
+        } catch (RuntimeException e) {
+            badChunk(link, e);
+            return;
+        }
+        if (!started) {
+            link.close("Unexpected burst chunk");
+            return;
+        }
+        readBurst(link, reader);
+    }
+
+    // Goes through a chunk record by record, and ACKs it when done, which may take some waiting for the registry
+    private void readBurst(ServerLink link, BurstReader reader) {
+        try {
+            while (reader.hasRemaining()) {
+                if (!readRecord(link, reader)) {
+                    return;
+                }
+            }
+        } catch (RuntimeException e) {
+            badChunk(link, e);
+            return;
+        }
+        link.sendFrame(BurstWriter.ack(reader.getSeq()));
+    }
+
+    // Whatever it was, there's no ACK for it, so the link has to go or the other side waits for one forever
+    private void badChunk(ServerLink link, RuntimeException e) {
+        logger.warn("Bad burst chunk from {}", link, e);
+        link.close("Bad burst chunk");
+    }
+
+    // Returns false if it has to wait, then readBurst() carries on with the next record once it's done
+    private boolean readRecord(ServerLink link, BurstReader reader) {
+        switch (reader.readType()) {
+            case BurstFormat.SERVER: {
+                final String parent = reader.readInterned();
+                final String name = reader.readInterned();
+                final String desc = reader.readString();
+                server(link, parent, Arrays.asList(name, "", desc));
+                return true;
+            }
+            case BurstFormat.USER: {
+                final String nick = reader.readInterned();
+                final long ts = reader.readLong();
+                final String username = reader.readInterned();
+                final String hostname = reader.readInterned();
+                final String server = reader.readInterned();
+                final String realName = reader.readString();
+                List<String> args = Arrays.asList(nick, "", Long.toString(ts), username, hostname, server, realName);
+                return !introduce(link, args, () -> readBurst(link, reader));
+            }
+            case BurstFormat.CHANNEL: {
+                final String name = reader.readString();
+                final long ts = reader.readLong();
+                final int count = reader.readInt();
+                List<String> nicks = new ArrayList<>(Math.min(count, BurstFormat.MAX_MEMBERS_PER_RECORD));
+                for (int i = 0; i < count; ++i) {
+                    nicks.add(reader.readInterned());
+                }
+                sjoin(link, link.getPeer(), ts, name, nicks);
+                return true;
+            }
+            case BurstFormat.TOPIC: {
+                final String channel = reader.readString();
+                final long setAt = reader.readLong();
+                final String setBy = reader.readString();
+                final String text = reader.readString();
+                topicBurst(link, null, Arrays.asList(channel, Long.toString(setAt), setBy, text));
+                return true;
+            }
+            case BurstFormat.END:
+                link.setBurstIn(null);
+                logger.info("Got burst from {}", link);
+                return true;
+            default:
+                throw new IllegalArgumentException("Unknown record type");
+        }
+    }
+
+    /* Keepalive and remote PINGs */
+
+    private void ping(ServerLink link, String source, List<String> args) {
+        if (args.size() < 1) {
+            return;
+        }
+        RemoteUser user = args.size() >= 2 && source != null ? userFrom(link, source) : null;
+        if (user == null) {
+            // Keepalive
+            link.send(Message.withPrefix(serverName, "PONG", serverName, args.get(0)));
+            return;
+        }
+        final String target = args.get(1);
+        if (target.equalsIgnoreCase(serverName)) {
+            link.send(Message.withPrefix(serverName, "PONG", user.getNick(), args.get(0)));
+            return;
+        }
+        RemoteServer server = servers.get(target);
+        if (server != null && server.getLink() != link) {
+            server.getLink().send(Message.withPrefix(user.getNick(), "PING", args.get(0), server.getName()));
+        }
+    }
+
+    // :server PONG nick origin is the answer to a user's PING, anything else is keepalive
+    private void pong(ServerLink link, String source, List<String> args) {
+        if (source == null || args.size() < 2) {
+            return;
+        }
+        User user = users.getUser(args.get(0));
+        if (user == null) {
+            return;
+        }
+        if (user.isLocal()) {
+            try {
+                user.send(Message.withPrefix(source, "PONG", source, args.get(1)));
+            } catch (IllegalStateException e) {
+                // Disconnected, but didn't quit yet
+            }
+        } else if (!isBehind(user, link)) {
+            ((RemoteUser) user).getLink().send(Message.withPrefix(source, "PONG", user.getNick(), args.get(1)));
+        }
+    }
+
+    private void error(ServerLink link, String source, List<String> args) {
+        String text = args.isEmpty() ? "" : args.get(0);
+        logger.warn("{} sent ERROR: {}", link, text);
+        link.disconnect(text);
+    }
+
+    private static long now() {
+        return System.currentTimeMillis() / 1000;
+    }
+
+    private static long parseTimestamp(String ts) {
+        try {
+            return Long.parseLong(ts);
+        } catch (NumberFormatException e) {
+            return now();
+        }
+    }
+
+    private static AtomicReference<String> makeRef() {
+        return new AtomicReference<>();
+    }
+
+    private static final Supplier<AtomicReference<String>> makeRef = LinkManager::makeRef;
+
+    @FunctionalInterface
+    private static interface Handler {
+        void handle(ServerLink link, String source, List<String> args);
+    }
+}
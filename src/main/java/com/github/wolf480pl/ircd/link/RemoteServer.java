@@ -0,0 +1,83 @@
+/*
+ * This file is part of IRCd4j.
+ *
+ * Copyright (c) 2014 Wolf480pl <wolf480@interia.pl>
+ * IRCd4j is licensed under the GNU Lesser General Public License.
+ *
+ * IRCd4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * IRCd4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.wolf480pl.ircd.link;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Another server of the network, either one we're linked with, or one behind it
+public class RemoteServer {
+    private final String name;
+    private final int hops;
+    private final String description;
+    private final ServerLink link;
+    private final RemoteServer uplink;
+    private final Set<RemoteUser> users = Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+    public RemoteServer(String name, int hops, String description, ServerLink link, RemoteServer uplink) {
+        this.name = name;
+        this.hops = hops;
+        this.description = description;
+        this.link = link;
+        this.uplink = uplink;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    // 1 for the ones we're linked with
+    public int getHops() {
+        return hops;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    // Where to send whatever is meant for this server or its users
+    public ServerLink getLink() {
+        return link;
+    }
+
+    // The server that introduced it, null if it's linked with us directly
+    public RemoteServer getUplink() {
+        return uplink;
+    }
+
+    public boolean isBehind(RemoteServer other) {
+        for (RemoteServer s = uplink; s != null; s = s.uplink) {
+            if (s == other) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public Set<RemoteUser> getUsers() {
+        return users;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * This file is part of IRCd4j.
+ *
+ * Copyright (c) 2014 Wolf480pl <wolf480@interia.pl>
+ * IRCd4j is licensed under the GNU Lesser General Public License.
+ *
+ * IRCd4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * IRCd4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.wolf480pl.ircd.link;
+
+import java.net.SocketAddress;
+import java.util.concurrent.Executor;
+
+import org.slf4j.Logger;
+
+import com.github.wolf480pl.ircd.BroadcastMessage;
+import com.github.wolf480pl.ircd.Message;
+import com.github.wolf480pl.ircd.Session;
+import com.github.wolf480pl.ircd.User;
+import com.github.wolf480pl.ircd.util.SerialExecutor;
+
+/*
+ * A user of another server. Whatever is sent to it directly goes through the link its server is behind,
+ * channel traffic is routed by LinkManager instead, once per link rather than once per member.
+ * Only its link changes its state, so it shares the link's executor.
+ */
+public class RemoteUser extends User {
+    private final RemoteServer home;
+
+    public RemoteUser(RemoteServer home, String server, String nick, String username, String hostname, String realName, long nickTimestamp) {
+        super(new RemoteSession(home.getLink()), server);
+        this.home = home;
+        setNick(nick);
+        setUsername(username);
+        setHostname(hostname);
+        setRealName(realName);
+        setNickTimestamp(nickTimestamp);
+        setRegisterd();
+    }
+
+    public RemoteServer getHomeServer() {
+        return home;
+    }
+
+    public ServerLink getLink() {
+        return home.getLink();
+    }
+
+    @Override
+    public boolean isLocal() {
+        return false;
+    }
+
+    @Override
+    public SerialExecutor getExecutor() {
+        return home.getLink().getConnection().getExecutor();
+    }
+
+    // Servers talk about users by their nicks
+    static String nickOf(String prefix) {
+        if (prefix == null) {
+            return null;
+        }
+        int bang = prefix.indexOf('!');
+        return bang < 0 ? prefix : prefix.substring(0, bang);
+    }
+
+    private static class RemoteSession implements Session {
+        private final ServerLink link;
+
+        RemoteSession(ServerLink link) {
+            this.link = link;
+        }
+
+        @Override
+        public void send(Message msg) {
+            link.send(new Message(nickOf(msg.getPrefix()), msg.getCommand(), msg.getParams()));
+        }
+
+        @Override
+        public void sendEncoded(BroadcastMessage msg) {
+            send(msg.getMessage());
+        }
+
+        @Override
+        public void disconnect() {
+            // Only their own server can do that, see KILL
+        }
+
+        @Override
+        public Executor getExecutor() {
+            return link.getConnection().getSession().getExecutor();
+        }
+
+        @Override
+        public boolean inExecutor() {
+            return link.getConnection().getSession().inExecutor();
+        }
+
+        @Override
+        public SocketAddress getRemoteAddress() {
+            return link.getConnection().getSession().getRemoteAddress();
+        }
+
+        @Override
+        public Logger getLogger() {
+            return link.getConnection().getSession().getLogger();
+        }
+    }
+}
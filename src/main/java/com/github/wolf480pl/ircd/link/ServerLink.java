@@ -0,0 +1,148 @@
+/*
+ * This file is part of IRCd4j.
+ *
+ * Copyright (c) 2014 Wolf480pl <wolf480@interia.pl>
+ * IRCd4j is licensed under the GNU Lesser General Public License.
+ *
+ * IRCd4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * IRCd4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.wolf480pl.ircd.link;
+
+import java.util.Collections;
+import java.util.List;
+
+import com.github.wolf480pl.ircd.BroadcastMessage;
+import com.github.wolf480pl.ircd.Message;
+import com.github.wolf480pl.ircd.User;
+
+/*
+ * A connection to a server we're linked with directly. It starts out like any client connection,
+ * with a User of its own, and the messages that come on it go to LinkManager instead of the commands
+ * once it's taken for a link. That User's executor is where everything the link changes is done.
+ */
+public class ServerLink {
+    private final User connection;
+    private final boolean outgoing;
+    private final String expectedName;
+    private volatile RemoteServer peer;
+    private volatile String closeReason = "Connection closed";
+    // What we offered in our CAPAB, and the binary bursts both ways, see BurstFormat. Only touched on the link's executor
+    private List<String> capabilities = Collections.emptyList();
+    private BurstSender burstOut;
+    private BurstReader burstIn;
+
+    public ServerLink(User connection, boolean outgoing, String expectedName) {
+        this.connection = connection;
+        this.outgoing = outgoing;
+        this.expectedName = expectedName;
+    }
+
+    public User getConnection() {
+        return connection;
+    }
+
+    // Whether we're the ones who connected
+    public boolean isOutgoing() {
+        return outgoing;
+    }
+
+    // The server we meant to connect to, null for incoming links
+    public String getExpectedName() {
+        return expectedName;
+    }
+
+    // null until both sides introduced themselves
+    public RemoteServer getPeer() {
+        return peer;
+    }
+
+    void setPeer(RemoteServer peer) {
+        this.peer = peer;
+    }
+
+    public boolean isEstablished() {
+        return peer != null;
+    }
+
+    public String getCloseReason() {
+        return closeReason;
+    }
+
+    public List<String> getCapabilities() {
+        return capabilities;
+    }
+
+    void setCapabilities(List<String> capabilities) {
+        this.capabilities = capabilities;
+    }
+
+    // null unless we're in the middle of sending them a binary burst
+    BurstSender getBurstOut() {
+        return burstOut;
+    }
+
+    void setBurstOut(BurstSender burstOut) {
+        this.burstOut = burstOut;
+    }
+
+    // null unless we're expecting a binary burst from them
+    BurstReader getBurstIn() {
+        return burstIn;
+    }
+
+    void setBurstIn(BurstReader burstIn) {
+        this.burstIn = burstIn;
+    }
+
+    public void send(Message msg) {
+        try {
+            connection.send(msg);
+        } catch (IllegalStateException e) {
+            // Closed, the split is on its way
+        }
+    }
+
+    public void send(BroadcastMessage msg) {
+        try {
+            connection.sendEncoded(msg);
+        } catch (IllegalStateException e) {
+            // Closed, the split is on its way
+        }
+    }
+
+    public void sendFrame(byte[] payload) {
+        try {
+            connection.getSession().sendFrame(payload);
+        } catch (IllegalStateException e) {
+            // Closed, the split is on its way
+        }
+    }
+
+    public void close(String reason) {
+        send(Message.withoutPrefix("ERROR", "Closing link: " + reason));
+        disconnect(reason);
+    }
+
+    // Without telling them why, e.g. when they told us
+    void disconnect(String reason) {
+        closeReason = reason;
+        connection.getSession().disconnect();
+    }
+
+    @Override
+    public String toString() {
+        RemoteServer p = peer;
+        return p != null ? p.getName() : String.valueOf(connection.getSession().getRemoteAddress());
+    }
+}
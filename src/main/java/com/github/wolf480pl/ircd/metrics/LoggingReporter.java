@@ -0,0 +1,52 @@
+/*
+ * This file is part of IRCd4j.
+ *
+ * Copyright (c) 2014 Wolf480pl <wolf480@interia.pl>
+ * IRCd4j is licensed under the GNU Lesser General Public License.
+ *
+ * IRCd4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * IRCd4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.wolf480pl.ircd.metrics;
+
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// One line of totals and rates at INFO, command latencies at DEBUG
+public class LoggingReporter implements MetricsReporter {
+    private final Logger logger;
+
+    public LoggingReporter() {
+        this(LoggerFactory.getLogger(LoggingReporter.class));
+    }
+
+    public LoggingReporter(Logger logger) {
+        this.logger = logger;
+    }
+
+    @Override
+    public void report(MetricsSnapshot s) {
+        HistogramSnapshot reg = s.getRegistrationLatency();
+        logger.info(String.format("sessions=%d in=%.1f/s (%.0f B/s) out=%.1f/s (%.0f B/s) dropped=%.1f/s throttled=%d (%.1f/s, %.1f lines/s delayed) registration p50=%dus p99=%dus sendq p99=%dB",
+                s.getSessions(), s.getMessagesInPerSecond(), s.getBytesInPerSecond(), s.getMessagesOutPerSecond(), s.getBytesOutPerSecond(),
+                s.getDroppedMessagesPerSecond(), s.getThrottledSessions(), s.getFloodThrottlesPerSecond(), s.getDelayedLinesPerSecond(), reg.getP50() / 1000, reg.getP99() / 1000, s.getSendQueueDepth().getP99()));
+        if (logger.isDebugEnabled()) {
+            for (Map.Entry<String, HistogramSnapshot> entry : s.getCommandLatencies().entrySet()) {
+                HistogramSnapshot h = entry.getValue();
+                logger.debug(String.format("%s count=%d p50=%dus p99=%dus max=%dus", entry.getKey(), h.getCount(), h.getP50() / 1000, h.getP99() / 1000, h.getMax() / 1000));
+            }
+        }
+    }
+}
@@ -0,0 +1,309 @@
+/*
+ * This file is part of IRCd4j.
+ *
+ * Copyright (c) 2014 Wolf480pl <wolf480@interia.pl>
+ * IRCd4j is licensed under the GNU Lesser General Public License.
+ *
+ * IRCd4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * IRCd4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.wolf480pl.ircd.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.wolf480pl.ircd.Command;
+
+/*
+ * Server-wide counters and histograms. Everything recorded here is a LongAdder or a striped Histogram,
+ * so it's cheap enough to do for every message. Reading them (snapshots, JMX, reporters) is the expensive part.
+ */
+public class Metrics implements MetricsMXBean {
+    public static final String OBJECT_NAME = "com.github.wolf480pl.ircd:type=Metrics";
+    private static final Logger logger = LoggerFactory.getLogger(Metrics.class);
+    private static final long JMX_RATE_WINDOW = TimeUnit.SECONDS.toNanos(1);
+
+    private final AtomicInteger sessions = new AtomicInteger(0);
+    private final LongAdder messagesIn = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder messagesOut = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder droppedMessages = new LongAdder();
+    // Flood control, if it's on
+    private final AtomicInteger throttledSessions = new AtomicInteger(0);
+    private final LongAdder floodThrottles = new LongAdder();
+    private final LongAdder delayedLines = new LongAdder();
+    private final LongAdder deferredReads = new LongAdder();
+    private final Histogram registrationLatency = new Histogram();
+    private final Histogram sendQueueDepth = new Histogram();
+    private final ConcurrentMap<String, Histogram> commandLatencies = new ConcurrentHashMap<>();
+
+    private final MetricsSnapshot start;
+    // These are guarded by this. Rates shown over JMX are over the last window of at least JMX_RATE_WINDOW.
+    private MetricsSnapshot jmxWindowStart;
+    private MetricsSnapshot jmxRates;
+    private ScheduledExecutorService reportingExecutor;
+
+    public Metrics() {
+        this.start = counters(null);
+        this.jmxWindowStart = start;
+        this.jmxRates = start;
+    }
+
+    public void sessionOpened() {
+        sessions.incrementAndGet();
+    }
+
+    public void sessionClosed() {
+        sessions.decrementAndGet();
+    }
+
+    public void messageReceived(int bytes) {
+        messagesIn.increment();
+        bytesIn.add(bytes);
+    }
+
+    public void messageSent(int bytes) {
+        messagesOut.increment();
+        bytesOut.add(bytes);
+    }
+
+    public void messageDropped() {
+        droppedMessages.increment();
+    }
+
+    // A session ran out of flood control tokens and has lines held back
+    public void sessionThrottled() {
+        throttledSessions.incrementAndGet();
+    }
+
+    public void sessionReleased() {
+        throttledSessions.decrementAndGet();
+    }
+
+    public void floodThrottled() {
+        floodThrottles.increment();
+    }
+
+    // A line had to wait, for tokens or for its turn
+    public void linesDelayed() {
+        delayedLines.increment();
+    }
+
+    // A session read too many lines at once and had to let others go first
+    public void readDeferred() {
+        deferredReads.increment();
+    }
+
+    // Bytes waiting to be written to a client, sampled on each send
+    public void sendQueueDepth(long bytes) {
+        sendQueueDepth.record(bytes);
+    }
+
+    public void registered(long nanos) {
+        registrationLatency.record(nanos);
+    }
+
+    public Histogram commandLatency(String command) {
+        return commandLatencies.computeIfAbsent(command.toUpperCase(), (k) -> new Histogram());
+    }
+
+    // Wraps the command so that each execution is timed. Meant for when the command is registered, not per call.
+    public Command timed(String command, Command cmd) {
+        final Histogram latency = commandLatency(command);
+        return (user, args) -> {
+            final long start = System.nanoTime();
+            try {
+                cmd.execute(user, args);
+            } finally {
+                latency.record(System.nanoTime() - start);
+            }
+        };
+    }
+
+    // Rates are since startup
+    public MetricsSnapshot snapshot() {
+        return snapshot(start);
+    }
+
+    // Rates are since the given snapshot
+    public MetricsSnapshot snapshot(MetricsSnapshot previous) {
+        Map<String, HistogramSnapshot> commands = new TreeMap<>();
+        for (Map.Entry<String, Histogram> entry : commandLatencies.entrySet()) {
+            commands.put(entry.getKey(), entry.getValue().snapshot());
+        }
+        return new MetricsSnapshot(System.nanoTime(), sessions.get(), messagesIn.sum(), bytesIn.sum(), messagesOut.sum(), bytesOut.sum(), droppedMessages.sum(),
+                throttledSessions.get(), floodThrottles.sum(), delayedLines.sum(), deferredReads.sum(), registrationLatency.snapshot(), sendQueueDepth.snapshot(), Collections.unmodifiableMap(commands), previous);
+    }
+
+    // Just the counters, for computing rates
+    private MetricsSnapshot counters(MetricsSnapshot previous) {
+        return new MetricsSnapshot(System.nanoTime(), sessions.get(), messagesIn.sum(), bytesIn.sum(), messagesOut.sum(), bytesOut.sum(), droppedMessages.sum(),
+                throttledSessions.get(), floodThrottles.sum(), delayedLines.sum(), deferredReads.sum(), null, null, null, previous);
+    }
+
+    /*
+     * Calls the reporter every period from a background thread, until the returned future is cancelled.
+     * The first report has the rates since startup.
+     */
+    public synchronized ScheduledFuture<?> startReporting(MetricsReporter reporter, long period, TimeUnit unit) {
+        if (reportingExecutor == null) {
+            reportingExecutor = Executors.newSingleThreadScheduledExecutor((r) -> {
+                Thread thread = new Thread(r, "ircd-metrics");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return reportingExecutor.scheduleAtFixedRate(new Runnable() {
+            private MetricsSnapshot previous = start;
+
+            @Override
+            public void run() {
+                MetricsSnapshot snapshot = snapshot(previous);
+                previous = snapshot;
+                try {
+                    reporter.report(snapshot);
+                } catch (RuntimeException e) {
+                    // Otherwise we'd never be run again
+                    logger.warn("Metrics reporter failed", e);
+                }
+            }
+        }, period, period, unit);
+    }
+
+    public void registerMBean() throws JMException {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+    }
+
+    public void unregisterMBean() throws JMException {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(OBJECT_NAME));
+    }
+
+    @Override
+    public int getSessions() {
+        return sessions.get();
+    }
+
+    @Override
+    public long getMessagesIn() {
+        return messagesIn.sum();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getMessagesOut() {
+        return messagesOut.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public long getDroppedMessages() {
+        return droppedMessages.sum();
+    }
+
+    @Override
+    public int getThrottledSessions() {
+        return throttledSessions.get();
+    }
+
+    @Override
+    public long getFloodThrottles() {
+        return floodThrottles.sum();
+    }
+
+    @Override
+    public long getDelayedLines() {
+        return delayedLines.sum();
+    }
+
+    @Override
+    public long getDeferredReads() {
+        return deferredReads.sum();
+    }
+
+    @Override
+    public double getMessagesInPerSecond() {
+        return jmxRates().getMessagesInPerSecond();
+    }
+
+    @Override
+    public double getBytesInPerSecond() {
+        return jmxRates().getBytesInPerSecond();
+    }
+
+    @Override
+    public double getMessagesOutPerSecond() {
+        return jmxRates().getMessagesOutPerSecond();
+    }
+
+    @Override
+    public double getBytesOutPerSecond() {
+        return jmxRates().getBytesOutPerSecond();
+    }
+
+    @Override
+    public HistogramSnapshot getRegistrationLatency() {
+        return registrationLatency.snapshot();
+    }
+
+    @Override
+    public HistogramSnapshot getSendQueueDepth() {
+        return sendQueueDepth.snapshot();
+    }
+
+    @Override
+    public Map<String, HistogramSnapshot> getCommandLatencies() {
+        Map<String, HistogramSnapshot> commands = new TreeMap<>();
+        for (Map.Entry<String, Histogram> entry : commandLatencies.entrySet()) {
+            commands.put(entry.getKey(), entry.getValue().snapshot());
+        }
+        return commands;
+    }
+
+    /*
+     * JMX clients read the attributes one by one, so the rates are cached for a whole window,
+     * otherwise each one would be over the few microseconds since the previous attribute was read.
+     */
+    private synchronized MetricsSnapshot jmxRates() {
+        MetricsSnapshot now = counters(jmxWindowStart);
+        if (now.getInterval() * 1e9 >= JMX_RATE_WINDOW) {
+            jmxWindowStart = now;
+            jmxRates = now;
+        }
+        return jmxRates;
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * This file is part of IRCd4j.
+ *
+ * Copyright (c) 2014 Wolf480pl <wolf480@interia.pl>
+ * IRCd4j is licensed under the GNU Lesser General Public License.
+ *
+ * IRCd4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * IRCd4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.wolf480pl.ircd.metrics;
+
+import java.util.Map;
+
+// Latencies are in nanoseconds, rates are per second since the previous JMX read
+public interface MetricsMXBean {
+    int getSessions();
+
+    long getMessagesIn();
+
+    long getBytesIn();
+
+    long getMessagesOut();
+
+    long getBytesOut();
+
+    long getDroppedMessages();
+
+    int getThrottledSessions();
+
+    long getFloodThrottles();
+
+    long getDelayedLines();
+
+    long getDeferredReads();
+
+    double getMessagesInPerSecond();
+
+    double getBytesInPerSecond();
+
+    double getMessagesOutPerSecond();
+
+    double getBytesOutPerSecond();
+
+    HistogramSnapshot getRegistrationLatency();
+
+    HistogramSnapshot getSendQueueDepth();
+
+    Map<String, HistogramSnapshot> getCommandLatencies();
+}
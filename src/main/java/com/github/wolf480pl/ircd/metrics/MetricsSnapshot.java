@@ -0,0 +1,159 @@
+/*
+ * This file is part of IRCd4j.
+ *
+ * Copyright (c) 2014 Wolf480pl <wolf480@interia.pl>
+ * IRCd4j is licensed under the GNU Lesser General Public License.
+ *
+ * IRCd4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * IRCd4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.wolf480pl.ircd.metrics;
+
+import java.util.Map;
+
+// Totals at one point in time, with the rates since the snapshot before it
+public class MetricsSnapshot {
+    private final long timeNanos;
+    private final double seconds;
+    private final int sessions;
+    private final long messagesIn;
+    private final long bytesIn;
+    private final long messagesOut;
+    private final long bytesOut;
+    private final long droppedMessages;
+    private final int throttledSessions;
+    private final long floodThrottles;
+    private final long delayedLines;
+    private final long deferredReads;
+    private final HistogramSnapshot registrationLatency;
+    private final HistogramSnapshot sendQueueDepth;
+    private final Map<String, HistogramSnapshot> commandLatencies;
+    private final MetricsSnapshot previous;
+
+    MetricsSnapshot(long timeNanos, int sessions, long messagesIn, long bytesIn, long messagesOut, long bytesOut, long droppedMessages,
+            int throttledSessions, long floodThrottles, long delayedLines, long deferredReads, HistogramSnapshot registrationLatency, HistogramSnapshot sendQueueDepth, Map<String, HistogramSnapshot> commandLatencies, MetricsSnapshot previous) {
+        this.timeNanos = timeNanos;
+        this.sessions = sessions;
+        this.messagesIn = messagesIn;
+        this.bytesIn = bytesIn;
+        this.messagesOut = messagesOut;
+        this.bytesOut = bytesOut;
+        this.droppedMessages = droppedMessages;
+        this.throttledSessions = throttledSessions;
+        this.floodThrottles = floodThrottles;
+        this.delayedLines = delayedLines;
+        this.deferredReads = deferredReads;
+        this.registrationLatency = registrationLatency;
+        this.sendQueueDepth = sendQueueDepth;
+        this.commandLatencies = commandLatencies;
+        // Only the totals are needed, don't keep a chain of all the snapshots ever made
+        this.previous = previous == null || previous.previous == null ? previous : previous.withoutPrevious();
+        this.seconds = previous == null ? 0 : (timeNanos - previous.timeNanos) / 1e9;
+    }
+
+    private MetricsSnapshot withoutPrevious() {
+        return new MetricsSnapshot(timeNanos, sessions, messagesIn, bytesIn, messagesOut, bytesOut, droppedMessages,
+                throttledSessions, floodThrottles, delayedLines, deferredReads, registrationLatency, sendQueueDepth, commandLatencies, null);
+    }
+
+    // Seconds since the previous snapshot
+    public double getInterval() {
+        return seconds;
+    }
+
+    public int getSessions() {
+        return sessions;
+    }
+
+    public long getMessagesIn() {
+        return messagesIn;
+    }
+
+    public long getBytesIn() {
+        return bytesIn;
+    }
+
+    public long getMessagesOut() {
+        return messagesOut;
+    }
+
+    public long getBytesOut() {
+        return bytesOut;
+    }
+
+    public long getDroppedMessages() {
+        return droppedMessages;
+    }
+
+    public int getThrottledSessions() {
+        return throttledSessions;
+    }
+
+    public long getFloodThrottles() {
+        return floodThrottles;
+    }
+
+    public long getDelayedLines() {
+        return delayedLines;
+    }
+
+    public long getDeferredReads() {
+        return deferredReads;
+    }
+
+    public double getMessagesInPerSecond() {
+        return rate(messagesIn, previous == null ? 0 : previous.messagesIn);
+    }
+
+    public double getBytesInPerSecond() {
+        return rate(bytesIn, previous == null ? 0 : previous.bytesIn);
+    }
+
+    public double getMessagesOutPerSecond() {
+        return rate(messagesOut, previous == null ? 0 : previous.messagesOut);
+    }
+
+    public double getBytesOutPerSecond() {
+        return rate(bytesOut, previous == null ? 0 : previous.bytesOut);
+    }
+
+    public double getDroppedMessagesPerSecond() {
+        return rate(droppedMessages, previous == null ? 0 : previous.droppedMessages);
+    }
+
+    public double getFloodThrottlesPerSecond() {
+        return rate(floodThrottles, previous == null ? 0 : previous.floodThrottles);
+    }
+
+    public double getDelayedLinesPerSecond() {
+        return rate(delayedLines, previous == null ? 0 : previous.delayedLines);
+    }
+
+    // These are since startup, not since the previous snapshot
+
+    public HistogramSnapshot getRegistrationLatency() {
+        return registrationLatency;
+    }
+
+    public HistogramSnapshot getSendQueueDepth() {
+        return sendQueueDepth;
+    }
+
+    public Map<String, HistogramSnapshot> getCommandLatencies() {
+        return commandLatencies;
+    }
+
+    private double rate(long now, long before) {
+        return seconds > 0 ? (now - before) / seconds : 0;
+    }
+}
@@ -0,0 +1,426 @@
+/*
+ * This file is part of IRCd4j.
+ *
+ * Copyright (c) 2014 Wolf480pl <wolf480@interia.pl>
+ * IRCd4j is licensed under the GNU Lesser General Public License.
+ *
+ * IRCd4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * IRCd4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.wolf480pl.ircd.netty;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+
+import com.github.wolf480pl.ircd.BroadcastMessage;
+import com.github.wolf480pl.ircd.ChannelHistory;
+import com.github.wolf480pl.ircd.HistoryQuery;
+import com.github.wolf480pl.ircd.IRCChannel;
+import com.github.wolf480pl.ircd.Session;
+import com.github.wolf480pl.ircd.User;
+import com.github.wolf480pl.ircd.netty.codec.EncodedMessage;
+import com.github.wolf480pl.ircd.util.CaseMappedMap;
+
+/*
+ * Keeps channel history as the very bytes that went out to the members, in direct buffers from a pooled allocator.
+ * Each channel has a ring of fixed-size pages, and once the ring is full its oldest page gets reused.
+ * On top of that, all pages are on one list from the oldest to the newest, which is evicted from
+ * when there are more pages than the memory cap allows, whichever channel they belong to.
+ * Replay writes slices of the pages, so nothing gets copied or encoded again. A page that's still
+ * being written out when it's evicted lives until the last slice of it is released.
+ */
+public class DirectChannelHistory implements ChannelHistory {
+    public static final int DEFAULT_PAGE_SIZE = 16 * 1024;
+    public static final int DEFAULT_MAX_PAGES_PER_CHANNEL = 4;
+    public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+    private final ByteBufAllocator alloc;
+    private final int pageSize;
+    private final int maxPagesPerChannel;
+    private final long maxPages;
+    private final CaseMappedMap<Ring> rings = new CaseMappedMap<>();
+    // Unique across restarts too, unless we get more than 4096 messages a millisecond for a while
+    private final AtomicLong ids = new AtomicLong(System.currentTimeMillis() << 12);
+
+    // Every page, oldest first. Lock order: ring, then pagesLock
+    private final Object pagesLock = new Object();
+    private Page oldest;
+    private Page newest;
+    private long pageCount;
+
+    public DirectChannelHistory() {
+        this(DEFAULT_MAX_BYTES);
+    }
+
+    public DirectChannelHistory(long maxBytes) {
+        this(PooledByteBufAllocator.DEFAULT, DEFAULT_PAGE_SIZE, DEFAULT_MAX_PAGES_PER_CHANNEL, maxBytes);
+    }
+
+    public DirectChannelHistory(ByteBufAllocator alloc, int pageSize, int maxPagesPerChannel, long maxBytes) {
+        if (pageSize < 1024 || maxPagesPerChannel < 1 || maxBytes < pageSize) {
+            throw new IllegalArgumentException("Page size must be at least 1024 and fit within the cap, and a channel needs at least one page");
+        }
+        this.alloc = alloc;
+        this.pageSize = pageSize;
+        this.maxPagesPerChannel = maxPagesPerChannel;
+        this.maxPages = maxBytes / pageSize;
+    }
+
+    // Direct memory taken by the pages, including those still being written out after eviction
+    public long getBytes() {
+        synchronized (pagesLock) {
+            return pageCount * pageSize;
+        }
+    }
+
+    @Override
+    public long record(IRCChannel channel, BroadcastMessage msg) {
+        EncodedMessage encoded = msg.getEncoded(m -> EncodedMessage.encode(m, alloc));
+        if (encoded.size() > pageSize) {
+            return 0;
+        }
+        ByteBuf line = encoded.retainedDuplicate();
+        long time;
+        try {
+            while ((time = append(ringOf(channel.getName()), line)) == 0) {
+                // Evicted while we weren't looking
+            }
+        } finally {
+            line.release();
+        }
+        enforceCap();
+        return time;
+    }
+
+    private Ring ringOf(String name) {
+        Ring ring = rings.get(name);
+        if (ring == null) {
+            Ring fresh = new Ring(name);
+            ring = rings.putIfAbsent(name, fresh);
+            if (ring == null) {
+                ring = fresh;
+            }
+        }
+        return ring;
+    }
+
+    // Returns the time of the line, or 0 if the ring's gone
+    private long append(Ring ring, ByteBuf line) {
+        synchronized (ring) {
+            if (ring.removed) {
+                return 0;
+            }
+            Page page = ring.pages.peekLast();
+            if (page == null || page.buf.writableBytes() < line.readableBytes()) {
+                page = nextPage(ring);
+            }
+            // Times only go forward within a channel, so they can be searched just like the ids
+            final long time = Math.max(System.currentTimeMillis(), ring.lastTime);
+            ring.lastTime = time;
+            page.append(ids.incrementAndGet(), time, line);
+            return time;
+        }
+    }
+
+    // Under the ring's lock
+    private Page nextPage(Ring ring) {
+        Page page;
+        if (ring.pages.size() >= maxPagesPerChannel) {
+            page = ring.pages.pollFirst();
+            unlink(page);
+            if (page.buf.refCnt() == 1) {
+                page.buf.clear();
+            } else {
+                // Someone's still sending lines from it
+                page.buf.release();
+                page.buf = alloc.directBuffer(pageSize, pageSize);
+            }
+            page.count = 0;
+        } else {
+            page = new Page(ring, alloc.directBuffer(pageSize, pageSize));
+        }
+        ring.pages.addLast(page);
+        synchronized (pagesLock) {
+            page.prev = newest;
+            if (newest != null) {
+                newest.next = page;
+            } else {
+                oldest = page;
+            }
+            newest = page;
+            pageCount++;
+        }
+        return page;
+    }
+
+    private void unlink(Page page) {
+        synchronized (pagesLock) {
+            if (page.prev != null) {
+                page.prev.next = page.next;
+            } else {
+                oldest = page.next;
+            }
+            if (page.next != null) {
+                page.next.prev = page.prev;
+            } else {
+                newest = page.prev;
+            }
+            page.prev = page.next = null;
+            pageCount--;
+        }
+    }
+
+    private void enforceCap() {
+        while (true) {
+            Page page;
+            synchronized (pagesLock) {
+                if (pageCount <= maxPages) {
+                    return;
+                }
+                page = oldest;
+            }
+            final Ring ring = page.ring;
+            synchronized (ring) {
+                // The oldest page of all is always the oldest of its ring, unless it's been reused or evicted since
+                if (ring.pages.peekFirst() != page) {
+                    continue;
+                }
+                ring.pages.pollFirst();
+                unlink(page);
+                page.buf.release();
+                if (ring.pages.isEmpty()) {
+                    ring.removed = true;
+                    rings.remove(ring.name, ring);
+                }
+            }
+        }
+    }
+
+    @Override
+    public int replay(IRCChannel channel, HistoryQuery query, User user, int tags, String batch) {
+        Session session = user.getSession();
+        Ring ring = rings.get(channel.getName());
+        if (ring == null || !(session instanceof NettySession)) {
+            return 0;
+        }
+        final List<ByteBuf> lines = new ArrayList<>();
+        long[] lineIds;
+        long[] lineTimes;
+        synchronized (ring) {
+            if (ring.removed) {
+                return 0;
+            }
+            int[] range = select(ring, query);
+            if (range == null || range[0] >= range[1]) {
+                return 0;
+            }
+            lineIds = new long[range[1] - range[0]];
+            lineTimes = new long[lineIds.length];
+            int offset = 0;
+            for (Page page : ring.pages) {
+                for (int i = Math.max(range[0] - offset, 0); i < page.count && offset + i < range[1]; i++) {
+                    lineIds[lines.size()] = page.ids[i];
+                    lineTimes[lines.size()] = page.times[i];
+                    int start = page.start(i);
+                    lines.add(page.buf.slice(start, page.ends[i] - start).retain());
+                }
+                offset += page.count;
+            }
+        }
+        // Written without the lock, so that recording never waits for a replay
+        NettySession netty = (NettySession) session;
+        int i = 0;
+        try {
+            for (; i < lines.size(); i++) {
+                ByteBuf line = lines.get(i);
+                if (tags != 0 || batch != null) {
+                    line = Unpooled.wrappedBuffer(tagsOf(lineIds[i], lineTimes[i], tags, batch), line);
+                }
+                netty.sendEncoded(line);
+            }
+        } finally {
+            for (int j = i + 1; j < lines.size(); j++) {
+                lines.get(j).release();
+            }
+        }
+        return lines.size();
+    }
+
+    private ByteBuf tagsOf(long id, long time, int tags, String batch) {
+        StringBuilder sb = new StringBuilder("@");
+        if (batch != null) {
+            sb.append("batch=").append(batch).append(';');
+        }
+        if ((tags & TAG_MSGID) != 0) {
+            sb.append("msgid=").append(Long.toString(id, 36)).append(';');
+        }
+        if ((tags & TAG_TIME) != 0) {
+            sb.append("time=").append(ChannelHistory.formatTime(time)).append(';');
+        }
+        sb.setCharAt(sb.length() - 1, ' ');
+        return Unpooled.wrappedBuffer(sb.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Under the ring's lock. Returns [from, to) over all lines of the ring, or null if a reference is no good
+    private static int[] select(Ring ring, HistoryQuery query) {
+        final int total = ring.count();
+        final int limit = query.getLimit();
+        final HistoryQuery.Ref from = query.getFrom();
+        int lo;
+        int hi;
+        switch (query.getType()) {
+            case LATEST:
+                hi = total;
+                lo = Math.max(from == null ? 0 : search(ring, from, true), hi - limit);
+                break;
+            case BEFORE:
+                hi = search(ring, from, false);
+                lo = Math.max(0, hi - limit);
+                break;
+            case AFTER:
+                lo = search(ring, from, true);
+                hi = Math.min(total, lo + limit);
+                break;
+            case AROUND:
+                lo = Math.max(0, search(ring, from, false) - limit / 2);
+                hi = Math.min(total, lo + limit);
+                break;
+            case BETWEEN:
+                final HistoryQuery.Ref to = query.getTo();
+                int a = search(ring, from, false);
+                int b = search(ring, to, false);
+                if (a < 0 || b < 0) {
+                    return null;
+                }
+                if (a <= b) {
+                    lo = search(ring, from, true);
+                    hi = Math.min(b, lo + limit);
+                } else {
+                    // Backwards, so the lines closest to from are the ones to keep
+                    hi = a;
+                    lo = Math.max(search(ring, to, true), hi - limit);
+                }
+                break;
+            default:
+                return null;
+        }
+        return lo < 0 || hi < 0 ? null : new int[] {lo, hi};
+    }
+
+    // Index of the first line past ref if after is set, or else of the first one not before it. -1 for a msgid we couldn't have made
+    private static int search(Ring ring, HistoryQuery.Ref ref, boolean after) {
+        final boolean byTime = !ref.isMsgid();
+        long key;
+        if (byTime) {
+            key = ref.getTimestamp();
+        } else {
+            try {
+                key = Long.parseLong(ref.getMsgid(), 36);
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+        int offset = 0;
+        for (Page page : ring.pages) {
+            if (page.count > 0) {
+                long last = page.key(page.count - 1, byTime);
+                if (after ? last > key : last >= key) {
+                    long[] keys = byTime ? page.times : page.ids;
+                    int lo = 0;
+                    int hi = page.count - 1;
+                    while (lo < hi) {
+                        int mid = (lo + hi) >>> 1;
+                        if (after ? keys[mid] > key : keys[mid] >= key) {
+                            hi = mid;
+                        } else {
+                            lo = mid + 1;
+                        }
+                    }
+                    return offset + lo;
+                }
+            }
+            offset += page.count;
+        }
+        return offset;
+    }
+
+    private static final class Ring {
+        private final String name;
+        private final ArrayDeque<Page> pages = new ArrayDeque<>();
+        private long lastTime;
+        // Set once it's been evicted and dropped from the map, so that nobody appends to it anymore
+        private boolean removed;
+
+        private Ring(String name) {
+            this.name = name;
+        }
+
+        private int count() {
+            int count = 0;
+            for (Page page : pages) {
+                count += page.count;
+            }
+            return count;
+        }
+    }
+
+    // Lines are laid out back to back in buf, with the index kept in plain arrays next to it
+    private static final class Page {
+        private static final int INITIAL_LINES = 64;
+
+        private final Ring ring;
+        private ByteBuf buf;
+        private long[] ids = new long[INITIAL_LINES];
+        private long[] times = new long[INITIAL_LINES];
+        private int[] ends = new int[INITIAL_LINES];
+        private int count;
+        // On the list of all pages, under pagesLock
+        private Page prev;
+        private Page next;
+
+        private Page(Ring ring, ByteBuf buf) {
+            this.ring = ring;
+            this.buf = buf;
+        }
+
+        private void append(long id, long time, ByteBuf line) {
+            if (count == ids.length) {
+                ids = Arrays.copyOf(ids, count * 2);
+                times = Arrays.copyOf(times, count * 2);
+                ends = Arrays.copyOf(ends, count * 2);
+            }
+            buf.writeBytes(line, line.readerIndex(), line.readableBytes());
+            ids[count] = id;
+            times[count] = time;
+            ends[count] = buf.writerIndex();
+            count++;
+        }
+
+        private int start(int i) {
+            return i == 0 ? 0 : ends[i - 1];
+        }
+
+        private long key(int i, boolean byTime) {
+            return byTime ? times[i] : ids[i];
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * This file is part of IRCd4j.
+ *
+ * Copyright (c) 2014 Wolf480pl <wolf480@interia.pl>
+ * IRCd4j is licensed under the GNU Lesser General Public License.
+ *
+ * IRCd4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * IRCd4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.wolf480pl.ircd.netty;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.github.wolf480pl.ircd.metrics.Metrics;
+import com.github.wolf480pl.ircd.util.CaseMappedMap;
+
+// Flood control settings and counters shared by all the connections of a server
+public class FloodControl {
+    private final double linesPerSecond;
+    private final int lineBurst;
+    private final double bytesPerSecond;
+    private final int byteBurst;
+    private final int maxLinesPerRead;
+    private final CaseMappedMap<Integer> costs = new CaseMappedMap<>(16, 1);
+
+    private final AtomicInteger throttledSessions = new AtomicInteger(0);
+    private final LongAdder throttleEvents = new LongAdder();
+    private final LongAdder delayedLines = new LongAdder();
+    private final LongAdder deferredReads = new LongAdder();
+    private final Metrics metrics;
+
+    public FloodControl(NettyServerConfig config) {
+        this(config, null);
+    }
+
+    // The counters go to metrics too, unless it's null
+    public FloodControl(NettyServerConfig config, Metrics metrics) {
+        this.metrics = metrics;
+        this.linesPerSecond = config.getLinesPerSecond();
+        this.lineBurst = config.getLineBurst();
+        this.bytesPerSecond = config.getBytesPerSecond();
+        this.byteBurst = config.getByteBurst();
+        this.maxLinesPerRead = config.getMaxLinesPerRead();
+        for (Map.Entry<String, Integer> entry : config.getCommandCosts().entrySet()) {
+            costs.putIfAbsent(entry.getKey(), entry.getValue());
+        }
+    }
+
+    public FloodControlHandler newHandler() {
+        return new FloodControlHandler(this);
+    }
+
+    public int costOf(CharSequence command) {
+        Integer cost = costs.get(command);
+        return cost == null ? 1 : cost;
+    }
+
+    public double getLinesPerSecond() {
+        return linesPerSecond;
+    }
+
+    public int getLineBurst() {
+        return lineBurst;
+    }
+
+    public double getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    public int getByteBurst() {
+        return byteBurst;
+    }
+
+    public int getMaxLinesPerRead() {
+        return maxLinesPerRead;
+    }
+
+    // Sessions that currently have lines held back
+    public int getThrottledSessions() {
+        return throttledSessions.get();
+    }
+
+    // How many times a session ran out of tokens
+    public long getThrottleEvents() {
+        return throttleEvents.sum();
+    }
+
+    // Lines that had to wait, for tokens or for their turn
+    public long getDelayedLines() {
+        return delayedLines.sum();
+    }
+
+    // How many times a session hit maxLinesPerRead and had to let others go first
+    public long getDeferredReads() {
+        return deferredReads.sum();
+    }
+
+    void sessionThrottled() {
+        throttledSessions.incrementAndGet();
+        if (metrics != null) {
+            metrics.sessionThrottled();
+        }
+    }
+
+    void sessionReleased() {
+        throttledSessions.decrementAndGet();
+        if (metrics != null) {
+            metrics.sessionReleased();
+        }
+    }
+
+    void throttled() {
+        throttleEvents.increment();
+        if (metrics != null) {
+            metrics.floodThrottled();
+        }
+    }
+
+    void delayed() {
+        delayedLines.increment();
+        if (metrics != null) {
+            metrics.linesDelayed();
+        }
+    }
+
+    void deferred() {
+        deferredReads.increment();
+        if (metrics != null) {
+            metrics.readDeferred();
+        }
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * This file is part of IRCd4j.
+ *
+ * Copyright (c) 2014 Wolf480pl <wolf480@interia.pl>
+ * IRCd4j is licensed under the GNU Lesser General Public License.
+ *
+ * IRCd4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * IRCd4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.wolf480pl.ircd.netty;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.util.concurrent.ScheduledFuture;
+
+import com.github.wolf480pl.ircd.Message;
+import com.github.wolf480pl.ircd.Session;
+import com.github.wolf480pl.ircd.netty.codec.DecodedMessage;
+import com.github.wolf480pl.ircd.netty.codec.MessageEncoder;
+import com.github.wolf480pl.ircd.netty.codec.MessageHandler;
+import com.github.wolf480pl.ircd.util.TokenBucket;
+
+/*
+ * Sits between the decoder and the MessageHandler. Every line costs tokens from two buckets,
+ * one counting lines (weighted by command) and one counting bytes.
+ * When either runs dry, lines are held back and we stop reading from the socket until they refill.
+ * Apart from that, at most maxLinesPerRead lines are handed on at a time, and the rest waits
+ * until the event loop has gone around its other channels, so one busy client can't starve them.
+ */
+public class FloodControlHandler extends ChannelInboundHandlerAdapter {
+    private final FloodControl control;
+    private final ArrayDeque<Message> backlog = new ArrayDeque<>();
+    private final Runnable drainTask;
+    private TokenBucket lines;
+    private TokenBucket bytes;
+    private ChannelHandlerContext ctx;
+    private int passedThisRead = 0;
+    private boolean held = false;
+    private boolean drainScheduled = false;
+    private ScheduledFuture<?> refillTimer;
+
+    public FloodControlHandler(FloodControl control) {
+        this.control = control;
+        this.drainTask = this::drain;
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) {
+        this.ctx = ctx;
+        long now = System.nanoTime();
+        this.lines = new TokenBucket(control.getLinesPerSecond(), control.getLineBurst(), now);
+        this.bytes = new TokenBucket(control.getBytesPerSecond(), control.getByteBurst(), now);
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        if (!(msg instanceof Message)) {
+            ctx.fireChannelRead(msg);
+            return;
+        }
+        Message message = (Message) msg;
+        if (backlog.isEmpty() && admit(message)) {
+            ctx.fireChannelRead(message);
+            return;
+        }
+        backlog.add(message);
+        control.delayed();
+        hold();
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) {
+        passedThisRead = 0;
+        ctx.fireChannelReadComplete();
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) {
+        release();
+        backlog.clear();
+        ctx.fireChannelInactive();
+    }
+
+    // Whatever we held back is passed on, so it's not lost when flood control is turned off for a session
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) {
+        release();
+        if (backlog.isEmpty()) {
+            return;
+        }
+        Message message;
+        while ((message = backlog.poll()) != null) {
+            ctx.fireChannelRead(message);
+        }
+        ctx.fireChannelReadComplete();
+    }
+
+    private boolean admit(Message message) {
+        if (passedThisRead >= control.getMaxLinesPerRead()) {
+            return false;
+        }
+        long now = System.nanoTime();
+        lines.refill(now);
+        bytes.refill(now);
+        if (!lines.hasTokens() || !bytes.hasTokens()) {
+            return false;
+        }
+        lines.consume(control.costOf(message.getCommand()));
+        bytes.consume(sizeOf(message));
+        ++passedThisRead;
+        return true;
+    }
+
+    private void drain() {
+        drainScheduled = false;
+        refillTimer = null;
+        if (!ctx.channel().isActive()) {
+            return;
+        }
+        passedThisRead = 0;
+        boolean passed = false;
+        Message message;
+        while ((message = backlog.peek()) != null && admit(message)) {
+            backlog.poll();
+            ctx.fireChannelRead(message);
+            passed = true;
+        }
+        if (passed) {
+            // Lets the MessageHandler flush the replies
+            ctx.fireChannelReadComplete();
+        }
+        passedThisRead = 0;
+        if (backlog.isEmpty()) {
+            release();
+        } else {
+            scheduleDrain();
+        }
+    }
+
+    private void hold() {
+        if (!held) {
+            held = true;
+            control.sessionThrottled();
+            // No point reading more, we couldn't pass it on anyway
+            NettySession session = session();
+            if (session != null) {
+                session.pauseReading(NettySession.PAUSE_FLOOD);
+            }
+        }
+        scheduleDrain();
+    }
+
+    private void release() {
+        if (refillTimer != null) {
+            refillTimer.cancel(false);
+            refillTimer = null;
+        }
+        if (held) {
+            held = false;
+            control.sessionReleased();
+            NettySession session = session();
+            if (session != null) {
+                session.resumeReading(NettySession.PAUSE_FLOOD);
+            }
+        }
+    }
+
+    private void scheduleDrain() {
+        if (drainScheduled) {
+            return;
+        }
+        drainScheduled = true;
+        if (lines.hasTokens() && bytes.hasTokens()) {
+            // Out of turn rather than out of tokens, come back once the others got theirs
+            control.deferred();
+            ctx.executor().execute(drainTask);
+        } else {
+            control.throttled();
+            long delay = Math.max(lines.nanosUntilTokens(), bytes.nanosUntilTokens());
+            refillTimer = ctx.executor().schedule(drainTask, delay, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private NettySession session() {
+        Session session = ctx.channel().attr(MessageHandler.ATTR_SESSION).get();
+        return session instanceof NettySession ? (NettySession) session : null;
+    }
+
+    private static int sizeOf(Message message) {
+        if (message instanceof DecodedMessage) {
+            return ((DecodedMessage) message).getLineLength();
+        }
+        return MessageEncoder.estimateSize(message);
+    }
+}
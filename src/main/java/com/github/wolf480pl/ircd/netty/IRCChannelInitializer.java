@@ -20,47 +20,102 @@
 package com.github.wolf480pl.ircd.netty;
 
 import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
 
+import io.netty.channel.ChannelConfig;
 import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelPipeline;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.handler.codec.LineBasedFrameDecoder;
-import io.netty.handler.codec.string.StringDecoder;
-import io.netty.handler.codec.string.StringEncoder;
-import io.netty.handler.timeout.IdleStateHandler;
+import io.netty.handler.codec.compression.JdkZlibEncoder;
+import io.netty.handler.codec.compression.ZlibWrapper;
 
 import com.github.wolf480pl.ircd.SessionHandler;
 import com.github.wolf480pl.ircd.netty.codec.MessageDecoder;
 import com.github.wolf480pl.ircd.netty.codec.MessageEncoder;
 import com.github.wolf480pl.ircd.netty.codec.MessageHandler;
+import com.github.wolf480pl.ircd.util.StringCache;
 
 public class IRCChannelInitializer extends ChannelInitializer<SocketChannel> {
     public static final int MAX_LINE_LENGTH = 512;
+    // The default, in seconds
     public static final int IDLE_TIMEOUT = 30;
+    // Commands, nicks and channel names fit, message text usually doesn't
+    public static final int MAX_CACHED_STRING_LENGTH = 32;
     public static final Charset CHARSET = Charset.forName("UTF-8");
+    public static final String COMPRESSOR = "compressor";
 
     private final SessionHandler handler;
+    private final NettyServerConfig config;
+    private final FloodControl floodControl;
+    private final IdleTimer idleTimer;
+    private final StringCache stringCache;
 
     public IRCChannelInitializer(SessionHandler handler) {
+        this(handler, NettyServerConfig.defaults());
+    }
+
+    public IRCChannelInitializer(SessionHandler handler, NettyServerConfig config) {
         this.handler = handler;
+        this.config = config;
+        this.floodControl = config.isFloodControl() ? new FloodControl(config, handler.getMetrics()) : null;
+        this.stringCache = config.getStringCacheSize() > 0 ? new StringCache(config.getStringCacheSize(), MAX_CACHED_STRING_LENGTH) : null;
+        this.idleTimer = config.getIdleTimeoutMillis() > 0 ? new IdleTimer(config.getIdleTimeoutMillis(), TimeUnit.MILLISECONDS) : null;
+    }
+
+    // null if it's turned off
+    public FloodControl getFloodControl() {
+        return floodControl;
+    }
+
+    // null if it's turned off
+    public IdleTimer getIdleTimer() {
+        return idleTimer;
     }
 
     @Override
     protected void initChannel(SocketChannel ch) throws Exception {
-        LineBasedFrameDecoder lineDecoder = new LineBasedFrameDecoder(MAX_LINE_LENGTH);
-        StringDecoder stringDecoder = new StringDecoder(CHARSET); //FIXME: Should only split on CRLF, not on LF alone
-        MessageDecoder messageDecoder = new MessageDecoder();
-        MessageHandler messageHandler = new MessageHandler(handler);
+        setWaterMarks(ch.config());
 
-        StringEncoder stringEncoder = new StringEncoder(CHARSET);
-        MessageEncoder messageEncoder = new MessageEncoder();
+        MessageDecoder messageDecoder = new MessageDecoder(MAX_LINE_LENGTH, CHARSET, config.isStrictDecoding(), stringCache); //FIXME: Should only split on CRLF, not on LF alone
+        MessageHandler messageHandler = new MessageHandler(handler, config);
 
-        IdleStateHandler idleHandler = new IdleStateHandler(IDLE_TIMEOUT, 0, 0);
+        MessageEncoder messageEncoder = new MessageEncoder(config.isPreferDirectBuffers());
 
         // Inbound goes from first to last, outbound goes from last to first.
         // i.e. the outside is on the left/top, the inside is on the right/bottom
-        ch.pipeline().addLast(lineDecoder).addLast(stringDecoder).addLast(messageDecoder).addLast(idleHandler).addLast(messageHandler)
-                .addLast(stringEncoder).addLast(messageEncoder);
+        ch.pipeline().addLast(messageDecoder);
+        if (floodControl != null) {
+            ch.pipeline().addLast(floodControl.newHandler());
+        }
+        if (idleTimer != null) {
+            ch.pipeline().addLast(idleTimer.newHandler());
+        }
+        ch.pipeline().addLast(messageHandler).addLast(messageEncoder);
+
+    }
+
+    /*
+     * For compressed server links. It goes first, so it sees the bytes the encoder made of the lines.
+     * Inbound, the MessageDecoder inflates by itself, as it's the one who knows where the stream starts.
+     */
+    public static void addCompressor(ChannelPipeline pipeline, int level) {
+        pipeline.addFirst(COMPRESSOR, new JdkZlibEncoder(ZlibWrapper.ZLIB, level));
+    }
 
+    // Netty refuses a high mark below the current low one (and the other way round), so the order matters
+    protected void setWaterMarks(ChannelConfig chConfig) {
+        final int low = config.getWriteBufferLowWaterMark();
+        final int high = config.getWriteBufferHighWaterMark();
+        if (high == 0) {
+            return;
+        }
+        if (high < chConfig.getWriteBufferLowWaterMark()) {
+            chConfig.setWriteBufferLowWaterMark(low);
+            chConfig.setWriteBufferHighWaterMark(high);
+        } else {
+            chConfig.setWriteBufferHighWaterMark(high);
+            chConfig.setWriteBufferLowWaterMark(low);
+        }
     }
 
 }
@@ -0,0 +1,139 @@
+/*
+ * This file is part of IRCd4j.
+ *
+ * Copyright (c) 2014 Wolf480pl <wolf480@interia.pl>
+ * IRCd4j is licensed under the GNU Lesser General Public License.
+ *
+ * IRCd4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * IRCd4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.wolf480pl.ircd.netty;
+
+import java.util.concurrent.TimeUnit;
+
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.TimerTask;
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+/*
+ * Fires the same READER_IDLE events IdleStateHandler would, without scheduling on the event loops.
+ * A read only stamps the time. Each session has one timeout on a server-wide wheel, and when it expires
+ * we either fire the event or move the timeout to when the session would become idle.
+ * So a busy session costs a timeout per idle period, not one per read.
+ */
+public class IdleTimer {
+    private static final long MIN_TICK = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long MAX_TICK = TimeUnit.SECONDS.toNanos(1);
+    private static final int TICKS_PER_WHEEL = 512;
+
+    private final long timeoutNanos;
+    private final HashedWheelTimer timer;
+
+    public IdleTimer(long timeout, TimeUnit unit) {
+        this.timeoutNanos = unit.toNanos(timeout);
+        if (timeoutNanos <= 0) {
+            throw new IllegalArgumentException("Idle timeout must be positive");
+        }
+        // Good enough for pings, and there's no point in waking up more often
+        long tick = Math.max(MIN_TICK, Math.min(MAX_TICK, timeoutNanos / 16));
+        this.timer = new HashedWheelTimer(new DefaultThreadFactory("ircd-idle", true), tick, TimeUnit.NANOSECONDS, TICKS_PER_WHEEL);
+    }
+
+    public long getTimeout(TimeUnit unit) {
+        return unit.convert(timeoutNanos, TimeUnit.NANOSECONDS);
+    }
+
+    // One per channel
+    public ChannelHandler newHandler() {
+        return new Handler();
+    }
+
+    public void stop() {
+        timer.stop();
+    }
+
+    private class Handler extends ChannelInboundHandlerAdapter implements TimerTask {
+        private volatile long lastRead;
+        private volatile boolean closed = false;
+        private volatile Timeout timeout;
+        private volatile ChannelHandlerContext ctx;
+        // Only touched from the timer thread
+        private long readAtLastFire;
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) throws Exception {
+            this.ctx = ctx;
+            lastRead = System.nanoTime();
+            readAtLastFire = lastRead - 1;
+            schedule(timeoutNanos);
+            ctx.fireChannelActive();
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+            lastRead = System.nanoTime();
+            ctx.fireChannelRead(msg);
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            closed = true;
+            Timeout t = timeout;
+            if (t != null) {
+                t.cancel();
+            }
+            ctx.fireChannelInactive();
+        }
+
+        @Override
+        public void run(Timeout t) {
+            if (closed) {
+                return;
+            }
+            long last = lastRead;
+            long remaining = timeoutNanos - (System.nanoTime() - last);
+            if (remaining > 0) {
+                // Read something in the meantime
+                schedule(remaining);
+                return;
+            }
+            // Like IdleStateHandler, keep firing every timeout until something is read
+            schedule(timeoutNanos);
+            boolean first = last != readAtLastFire;
+            readAtLastFire = last;
+            fire(first ? IdleStateEvent.FIRST_READER_IDLE_STATE_EVENT : IdleStateEvent.READER_IDLE_STATE_EVENT);
+        }
+
+        private void fire(IdleStateEvent event) {
+            ChannelHandlerContext ctx = this.ctx;
+            ctx.executor().execute(() -> {
+                if (!closed) {
+                    ctx.fireUserEventTriggered(event);
+                }
+            });
+        }
+
+        private void schedule(long delay) {
+            try {
+                timeout = timer.newTimeout(this, delay, TimeUnit.NANOSECONDS);
+            } catch (IllegalStateException e) {
+                // The timer was stopped, the server is going down
+            }
+        }
+    }
+}
@@ -20,31 +20,66 @@
 package com.github.wolf480pl.ircd.netty;
 
 import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import io.netty.bootstrap.Bootstrap;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelOption;
+import io.netty.channel.ChannelPromise;
 import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.util.internal.PlatformDependent;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.wolf480pl.ircd.Session;
 import com.github.wolf480pl.ircd.SessionHandler;
+import com.github.wolf480pl.ircd.netty.NettyServerConfig.Transport;
+import com.github.wolf480pl.ircd.netty.codec.MessageHandler;
 
 public class NettyServer {
+    private static final Logger logger = LoggerFactory.getLogger(NettyServer.class);
+
     private SocketAddress bindAddress;
     private EventLoopGroup bossGroup;
     private EventLoopGroup workerGroup;
     private SessionHandler handler;
+    private final NettyServerConfig config;
     private final AtomicBoolean started = new AtomicBoolean(false);
     private final AtomicBoolean stopped = new AtomicBoolean(false);
-    private Channel channel;
+    private List<Channel> channels;
+    private IRCChannelInitializer initializer;
+    private Class<? extends Channel> clientChannelClass;
+    // Only if we started it ourselves
+    private ForkJoinPool commandPool;
 
     public NettyServer(SocketAddress bindAddress, SessionHandler handler) {
+        this(bindAddress, handler, NettyServerConfig.defaults());
+    }
+
+    public NettyServer(SocketAddress bindAddress, SessionHandler handler, NettyServerConfig config) {
         this.bindAddress = bindAddress;
         this.handler = handler;
+        this.config = config;
     }
 
     public ChannelFuture start() {
@@ -52,21 +87,82 @@ public class NettyServer {
             return null;
         }
 
+        Transport transport = config.getTransport();
+        if (transport == Transport.EPOLL && !Epoll.isAvailable()) {
+            logger.warn("Native epoll transport is not available, falling back to NIO", Epoll.unavailabilityCause());
+            transport = Transport.NIO;
+        } else if (transport == Transport.EPOLL && !PlatformDependent.hasUnsafe()) {
+            // The native transport needs raw buffer addresses, it loads fine without them but fails on the first read
+            logger.warn("Native epoll transport needs sun.misc.Unsafe which isn't usable, falling back to NIO");
+            transport = Transport.NIO;
+        }
+
         ServerBootstrap bootstrap = new ServerBootstrap();
-        bossGroup = new NioEventLoopGroup(1);
-        workerGroup = new NioEventLoopGroup();
+        Class<? extends ServerChannel> channelClass;
+        int acceptors = 1;
+        if (transport == Transport.EPOLL) {
+            acceptors = config.getAcceptors();
+            bossGroup = new EpollEventLoopGroup(acceptors);
+            workerGroup = new EpollEventLoopGroup(config.getWorkerThreads());
+            channelClass = EpollServerSocketChannel.class;
+            clientChannelClass = EpollSocketChannel.class;
+            if (acceptors > 1) {
+                bootstrap.option(EpollChannelOption.SO_REUSEPORT, true);
+            }
+        } else {
+            bossGroup = new NioEventLoopGroup(1);
+            workerGroup = new NioEventLoopGroup(config.getWorkerThreads());
+            channelClass = NioServerSocketChannel.class;
+            clientChannelClass = NioSocketChannel.class;
+        }
 
-        IRCChannelInitializer initializer = new IRCChannelInitializer(handler);
+        NettyServerConfig channelConfig = config;
+        if (config.getCommandExecutor() == null && config.getCommandThreads() > 0) {
+            commandPool = newCommandPool(config.getCommandThreads());
+            channelConfig = config.toBuilder().commandExecutor(commandPool).build();
+        }
+        initializer = new IRCChannelInitializer(handler, channelConfig);
 
         bootstrap.group(bossGroup, workerGroup)
-                .channel(NioServerSocketChannel.class)
+                .channel(channelClass)
                 .childHandler(initializer)
-                .childOption(ChannelOption.TCP_NODELAY, true)
-                .childOption(ChannelOption.SO_KEEPALIVE, true);
+                .childOption(ChannelOption.TCP_NODELAY, config.isTcpNoDelay())
+                .childOption(ChannelOption.SO_KEEPALIVE, config.isKeepAlive());
+
+        if (config.getBacklog() > 0) {
+            bootstrap.option(ChannelOption.SO_BACKLOG, config.getBacklog());
+        }
+        if (config.getReceiveBufferSize() > 0) {
+            bootstrap.childOption(ChannelOption.SO_RCVBUF, config.getReceiveBufferSize());
+        }
+        if (config.getSendBufferSize() > 0) {
+            bootstrap.childOption(ChannelOption.SO_SNDBUF, config.getSendBufferSize());
+        }
+        if (config.getMaxMessagesPerRead() > 0) {
+            bootstrap.childOption(ChannelOption.MAX_MESSAGES_PER_READ, config.getMaxMessagesPerRead());
+        }
+        if (config.getAllocator() != null) {
+            bootstrap.option(ChannelOption.ALLOCATOR, config.getAllocator());
+            bootstrap.childOption(ChannelOption.ALLOCATOR, config.getAllocator());
+        }
 
-        ChannelFuture future =  bootstrap.bind(bindAddress);
-        this.channel = future.channel();
-        return future;
+        if (acceptors == 1) {
+            ChannelFuture future = bootstrap.bind(bindAddress);
+            this.channels = Collections.singletonList(future.channel());
+            return future;
+        }
+
+        // With SO_REUSEPORT every acceptor gets its own socket, the kernel spreads connections between them
+        List<ChannelFuture> futures = new ArrayList<>(acceptors);
+        for (int i = 0; i < acceptors; ++i) {
+            futures.add(bootstrap.bind(bindAddress));
+        }
+        List<Channel> chs = new ArrayList<>(acceptors);
+        for (ChannelFuture f : futures) {
+            chs.add(f.channel());
+        }
+        this.channels = Collections.unmodifiableList(chs);
+        return aggregate(futures);
     }
 
     public ChannelFuture stop() {
@@ -76,13 +172,105 @@ public class NettyServer {
         if (!stopped.compareAndSet(false, true)) {
             return null; //TODO: Failed future?
         }
-        return channel.close().addListener(new ChannelFutureListener() {
+        List<ChannelFuture> futures = new ArrayList<>(channels.size());
+        for (Channel channel : channels) {
+            futures.add(channel.close());
+        }
+        return aggregate(futures).addListener(new ChannelFutureListener() {
             @Override
             public void operationComplete(ChannelFuture future) throws Exception {
-                workerGroup.shutdownGracefully();
+                io.netty.util.concurrent.Future<?> workersDone = workerGroup.shutdownGracefully();
                 bossGroup.shutdownGracefully();
+                if (commandPool != null) {
+                    // Closing the connections still hands their QUITs to the pool
+                    workersDone.addListener((f) -> commandPool.shutdown());
+                }
+                if (initializer.getIdleTimer() != null) {
+                    initializer.getIdleTimer().stop();
+                }
             }
         });
     }
 
+    /*
+     * Opens a connection to someone else, e.g. a server to link with. It gets the same pipeline
+     * and SessionHandler as the connections we accept.
+     */
+    public CompletableFuture<Session> connect(SocketAddress remoteAddress) {
+        if (!started.get() || stopped.get()) {
+            throw new IllegalStateException("Not running");
+        }
+        Bootstrap bootstrap = new Bootstrap();
+        bootstrap.group(workerGroup)
+                .channel(clientChannelClass)
+                .handler(initializer)
+                .option(ChannelOption.TCP_NODELAY, config.isTcpNoDelay())
+                .option(ChannelOption.SO_KEEPALIVE, config.isKeepAlive());
+        if (config.getAllocator() != null) {
+            bootstrap.option(ChannelOption.ALLOCATOR, config.getAllocator());
+        }
+        final CompletableFuture<Session> result = new CompletableFuture<>();
+        bootstrap.connect(remoteAddress).addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) throws Exception {
+                if (!future.isSuccess()) {
+                    result.completeExceptionally(future.cause());
+                    return;
+                }
+                // The session is made in channelActive, which only comes after the connect promise is done
+                final Channel ch = future.channel();
+                ch.eventLoop().execute(() -> {
+                    Session session = ch.attr(MessageHandler.ATTR_SESSION).get();
+                    if (session == null) {
+                        result.completeExceptionally(new IllegalStateException("Closed before it became active"));
+                    } else {
+                        result.complete(session);
+                    }
+                });
+            }
+        });
+        return result;
+    }
+
+    public List<Channel> getChannels() {
+        return channels;
+    }
+
+    // null until started, or if flood control is turned off
+    public FloodControl getFloodControl() {
+        return initializer == null ? null : initializer.getFloodControl();
+    }
+
+    // FIFO, so that a busy session doesn't starve the ones that queued up before it
+    private static ForkJoinPool newCommandPool(int threads) {
+        final AtomicInteger nextId = new AtomicInteger(0);
+        return new ForkJoinPool(threads, (pool) -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName("ircd-command-" + nextId.incrementAndGet());
+            return thread;
+        }, null, true);
+    }
+
+    // Completes when all of the futures do, on behalf of the first one's channel
+    private static ChannelFuture aggregate(List<ChannelFuture> futures) {
+        if (futures.size() == 1) {
+            return futures.get(0);
+        }
+        final ChannelPromise promise = futures.get(0).channel().newPromise();
+        final AtomicInteger remaining = new AtomicInteger(futures.size());
+        ChannelFutureListener listener = new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) throws Exception {
+                if (!future.isSuccess()) {
+                    promise.tryFailure(future.cause());
+                } else if (remaining.decrementAndGet() == 0) {
+                    promise.trySuccess();
+                }
+            }
+        };
+        for (ChannelFuture future : futures) {
+            future.addListener(listener);
+        }
+        return promise;
+    }
 }
@@ -0,0 +1,500 @@
+/*
+ * This file is part of IRCd4j.
+ *
+ * Copyright (c) 2014 Wolf480pl <wolf480@interia.pl>
+ * IRCd4j is licensed under the GNU Lesser General Public License.
+ *
+ * IRCd4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * IRCd4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.wolf480pl.ircd.netty;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import io.netty.buffer.ByteBufAllocator;
+
+public class NettyServerConfig {
+    public static enum Transport {
+        NIO,
+        // Linux only, falls back to NIO if the native library can't be loaded
+        EPOLL
+    }
+
+    // What happens to droppable traffic (channel chatter) when a client doesn't keep up
+    public static enum SendQPolicy {
+        // Dropped while the write buffer is above its high water mark or the SendQ is full
+        DROP,
+        // Queued until the SendQ is full, then the client is disconnected
+        DISCONNECT
+    }
+
+    private final Transport transport;
+    private final int acceptors;
+    private final int workerThreads;
+    private final ByteBufAllocator allocator;
+    private final int backlog;
+    private final int receiveBufferSize;
+    private final int sendBufferSize;
+    private final int writeBufferLowWaterMark;
+    private final int writeBufferHighWaterMark;
+    private final boolean tcpNoDelay;
+    private final boolean keepAlive;
+    private final boolean strictDecoding;
+    private final boolean preferDirectBuffers;
+    private final boolean batchWrites;
+    private final int maxMessagesPerRead;
+    private final boolean floodControl;
+    private final double linesPerSecond;
+    private final int lineBurst;
+    private final double bytesPerSecond;
+    private final int byteBurst;
+    private final Map<String, Integer> commandCosts;
+    private final int maxLinesPerRead;
+    private final int sendQ;
+    private final SendQPolicy sendQPolicy;
+    private final long idleTimeoutMillis;
+    private final int stringCacheSize;
+    private final int commandThreads;
+    private final Executor commandExecutor;
+    private final int linkCompressionLevel;
+    private final int linkSendQ;
+
+    protected NettyServerConfig(Builder builder) {
+        this.transport = builder.transport;
+        this.acceptors = builder.acceptors;
+        this.workerThreads = builder.workerThreads;
+        this.allocator = builder.allocator;
+        this.backlog = builder.backlog;
+        this.receiveBufferSize = builder.receiveBufferSize;
+        this.sendBufferSize = builder.sendBufferSize;
+        this.writeBufferLowWaterMark = builder.writeBufferLowWaterMark;
+        this.writeBufferHighWaterMark = builder.writeBufferHighWaterMark;
+        this.tcpNoDelay = builder.tcpNoDelay;
+        this.keepAlive = builder.keepAlive;
+        this.strictDecoding = builder.strictDecoding;
+        this.preferDirectBuffers = builder.preferDirectBuffers;
+        this.batchWrites = builder.batchWrites;
+        this.maxMessagesPerRead = builder.maxMessagesPerRead;
+        this.floodControl = builder.floodControl;
+        this.linesPerSecond = builder.linesPerSecond;
+        this.lineBurst = builder.lineBurst;
+        this.bytesPerSecond = builder.bytesPerSecond;
+        this.byteBurst = builder.byteBurst;
+        this.commandCosts = Collections.unmodifiableMap(new LinkedHashMap<>(builder.commandCosts));
+        this.maxLinesPerRead = builder.maxLinesPerRead;
+        this.sendQ = builder.sendQ;
+        this.sendQPolicy = builder.sendQPolicy;
+        this.idleTimeoutMillis = builder.idleTimeoutMillis;
+        this.stringCacheSize = builder.stringCacheSize;
+        this.commandThreads = builder.commandThreads;
+        this.commandExecutor = builder.commandExecutor;
+        this.linkCompressionLevel = builder.linkCompressionLevel;
+        this.linkSendQ = builder.linkSendQ;
+    }
+
+    public Transport getTransport() {
+        return transport;
+    }
+
+    // Number of listening sockets bound with SO_REUSEPORT, each with its own acceptor thread. Epoll only.
+    public int getAcceptors() {
+        return acceptors;
+    }
+
+    // 0 means Netty's default
+    public int getWorkerThreads() {
+        return workerThreads;
+    }
+
+    // null means Netty's default
+    public ByteBufAllocator getAllocator() {
+        return allocator;
+    }
+
+    // The values below are left at the OS/Netty default when 0
+
+    public int getBacklog() {
+        return backlog;
+    }
+
+    public int getReceiveBufferSize() {
+        return receiveBufferSize;
+    }
+
+    public int getSendBufferSize() {
+        return sendBufferSize;
+    }
+
+    public int getWriteBufferLowWaterMark() {
+        return writeBufferLowWaterMark;
+    }
+
+    public int getWriteBufferHighWaterMark() {
+        return writeBufferHighWaterMark;
+    }
+
+    public boolean isTcpNoDelay() {
+        return tcpNoDelay;
+    }
+
+    public boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+    public boolean isStrictDecoding() {
+        return strictDecoding;
+    }
+
+    public boolean isPreferDirectBuffers() {
+        return preferDirectBuffers;
+    }
+
+    public boolean isBatchWrites() {
+        return batchWrites;
+    }
+
+    // How many times a channel is read from before the event loop moves on to the next one, 0 means Netty's default
+    public int getMaxMessagesPerRead() {
+        return maxMessagesPerRead;
+    }
+
+    public boolean isFloodControl() {
+        return floodControl;
+    }
+
+    public double getLinesPerSecond() {
+        return linesPerSecond;
+    }
+
+    public int getLineBurst() {
+        return lineBurst;
+    }
+
+    public double getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    public int getByteBurst() {
+        return byteBurst;
+    }
+
+    // How many lines' worth of tokens a command takes, the ones not listed take 1
+    public Map<String, Integer> getCommandCosts() {
+        return commandCosts;
+    }
+
+    // Lines handed on from one read before the rest is put off until the event loop has served others
+    public int getMaxLinesPerRead() {
+        return maxLinesPerRead;
+    }
+
+    /*
+     * Most bytes a session may have waiting to be written, 0 means unlimited.
+     * Traffic that can't be dropped (replies, PINGs) may go up to twice that, then the client is disconnected.
+     */
+    public int getSendQ() {
+        return sendQ;
+    }
+
+    public SendQPolicy getSendQPolicy() {
+        return sendQPolicy;
+    }
+
+    // How long a client may stay silent before we PING it, and then again before it times out. 0 means never.
+    public long getIdleTimeoutMillis() {
+        return idleTimeoutMillis;
+    }
+
+    // Slots in the cache of short strings decoded from incoming lines, shared by all connections. 0 turns it off.
+    public int getStringCacheSize() {
+        return stringCacheSize;
+    }
+
+    /*
+     * Threads of the pool the server starts for running commands, separately from the event loops.
+     * 0 means commands run on the event loop of their connection, right after the line is decoded.
+     */
+    public int getCommandThreads() {
+        return commandThreads;
+    }
+
+    // Runs commands instead of the event loops, managed by whoever set it. Takes precedence over commandThreads.
+    public Executor getCommandExecutor() {
+        return commandExecutor;
+    }
+
+    // zlib level server links are compressed with, if the other side wants it too. 0 means we don't offer it
+    public int getLinkCompressionLevel() {
+        return linkCompressionLevel;
+    }
+
+    // Like getSendQ, for server links. Bursts go way past what any client gets queued
+    public int getLinkSendQ() {
+        return linkSendQ;
+    }
+
+    public Builder toBuilder() {
+        return new Builder(this);
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static NettyServerConfig defaults() {
+        return new Builder().build();
+    }
+
+    public static class Builder {
+        private Transport transport = Transport.NIO;
+        private int acceptors = 1;
+        private int workerThreads = 0;
+        private ByteBufAllocator allocator = null;
+        private int backlog = 0;
+        private int receiveBufferSize = 0;
+        private int sendBufferSize = 0;
+        private int writeBufferLowWaterMark = 0;
+        private int writeBufferHighWaterMark = 0;
+        private boolean tcpNoDelay = true;
+        private boolean keepAlive = true;
+        private boolean strictDecoding = false;
+        private boolean preferDirectBuffers = true;
+        private boolean batchWrites = true;
+        private int maxMessagesPerRead = 0;
+        private boolean floodControl = false;
+        private double linesPerSecond = 2;
+        private int lineBurst = 20;
+        private double bytesPerSecond = 1024;
+        private int byteBurst = 8192;
+        private Map<String, Integer> commandCosts = new LinkedHashMap<>();
+        private int maxLinesPerRead = 16;
+        private int sendQ = 512 * 1024;
+        private SendQPolicy sendQPolicy = SendQPolicy.DISCONNECT;
+        private long idleTimeoutMillis = TimeUnit.SECONDS.toMillis(IRCChannelInitializer.IDLE_TIMEOUT);
+        private int stringCacheSize = 4096;
+        private int commandThreads = 0;
+        private Executor commandExecutor = null;
+        private int linkCompressionLevel = 0;
+        private int linkSendQ = 16 * 1024 * 1024;
+
+        protected Builder() {
+            commandCosts.put("PONG", 0);
+        }
+
+        protected Builder(NettyServerConfig config) {
+            this.transport = config.transport;
+            this.acceptors = config.acceptors;
+            this.workerThreads = config.workerThreads;
+            this.allocator = config.allocator;
+            this.backlog = config.backlog;
+            this.receiveBufferSize = config.receiveBufferSize;
+            this.sendBufferSize = config.sendBufferSize;
+            this.writeBufferLowWaterMark = config.writeBufferLowWaterMark;
+            this.writeBufferHighWaterMark = config.writeBufferHighWaterMark;
+            this.tcpNoDelay = config.tcpNoDelay;
+            this.keepAlive = config.keepAlive;
+            this.strictDecoding = config.strictDecoding;
+            this.preferDirectBuffers = config.preferDirectBuffers;
+            this.batchWrites = config.batchWrites;
+            this.maxMessagesPerRead = config.maxMessagesPerRead;
+            this.floodControl = config.floodControl;
+            this.linesPerSecond = config.linesPerSecond;
+            this.lineBurst = config.lineBurst;
+            this.bytesPerSecond = config.bytesPerSecond;
+            this.byteBurst = config.byteBurst;
+            this.commandCosts = new LinkedHashMap<>(config.commandCosts);
+            this.maxLinesPerRead = config.maxLinesPerRead;
+            this.sendQ = config.sendQ;
+            this.sendQPolicy = config.sendQPolicy;
+            this.idleTimeoutMillis = config.idleTimeoutMillis;
+            this.stringCacheSize = config.stringCacheSize;
+            this.commandThreads = config.commandThreads;
+            this.commandExecutor = config.commandExecutor;
+            this.linkCompressionLevel = config.linkCompressionLevel;
+            this.linkSendQ = config.linkSendQ;
+        }
+
+        public Builder transport(Transport transport) {
+            this.transport = transport;
+            return this;
+        }
+
+        public Builder acceptors(int acceptors) {
+            if (acceptors < 1) {
+                throw new IllegalArgumentException("Need at least one acceptor");
+            }
+            this.acceptors = acceptors;
+            return this;
+        }
+
+        public Builder workerThreads(int workerThreads) {
+            this.workerThreads = nonNegative(workerThreads, "workerThreads");
+            return this;
+        }
+
+        public Builder allocator(ByteBufAllocator allocator) {
+            this.allocator = allocator;
+            return this;
+        }
+
+        public Builder backlog(int backlog) {
+            this.backlog = nonNegative(backlog, "backlog");
+            return this;
+        }
+
+        public Builder receiveBufferSize(int receiveBufferSize) {
+            this.receiveBufferSize = nonNegative(receiveBufferSize, "receiveBufferSize");
+            return this;
+        }
+
+        public Builder sendBufferSize(int sendBufferSize) {
+            this.sendBufferSize = nonNegative(sendBufferSize, "sendBufferSize");
+            return this;
+        }
+
+        public Builder writeBufferWaterMarks(int low, int high) {
+            if (low < 0 || high < low) {
+                throw new IllegalArgumentException("Bad write buffer water marks: low " + low + ", high " + high);
+            }
+            this.writeBufferLowWaterMark = low;
+            this.writeBufferHighWaterMark = high;
+            return this;
+        }
+
+        public Builder tcpNoDelay(boolean tcpNoDelay) {
+            this.tcpNoDelay = tcpNoDelay;
+            return this;
+        }
+
+        public Builder keepAlive(boolean keepAlive) {
+            this.keepAlive = keepAlive;
+            return this;
+        }
+
+        public Builder strictDecoding(boolean strictDecoding) {
+            this.strictDecoding = strictDecoding;
+            return this;
+        }
+
+        public Builder preferDirectBuffers(boolean preferDirectBuffers) {
+            this.preferDirectBuffers = preferDirectBuffers;
+            return this;
+        }
+
+        public Builder batchWrites(boolean batchWrites) {
+            this.batchWrites = batchWrites;
+            return this;
+        }
+
+        public Builder maxMessagesPerRead(int maxMessagesPerRead) {
+            this.maxMessagesPerRead = nonNegative(maxMessagesPerRead, "maxMessagesPerRead");
+            return this;
+        }
+
+        public Builder floodControl(boolean floodControl) {
+            this.floodControl = floodControl;
+            return this;
+        }
+
+        public Builder lineRate(double perSecond, int burst) {
+            if (!(perSecond > 0) || burst < 1) {
+                throw new IllegalArgumentException("Bad line rate: " + perSecond + "/s, burst " + burst);
+            }
+            this.linesPerSecond = perSecond;
+            this.lineBurst = burst;
+            return this;
+        }
+
+        public Builder byteRate(double perSecond, int burst) {
+            if (!(perSecond > 0) || burst < 1) {
+                throw new IllegalArgumentException("Bad byte rate: " + perSecond + "/s, burst " + burst);
+            }
+            this.bytesPerSecond = perSecond;
+            this.byteBurst = burst;
+            return this;
+        }
+
+        public Builder commandCost(String command, int cost) {
+            this.commandCosts.put(command, nonNegative(cost, "cost"));
+            return this;
+        }
+
+        public Builder maxLinesPerRead(int maxLinesPerRead) {
+            if (maxLinesPerRead < 1) {
+                throw new IllegalArgumentException("maxLinesPerRead must be positive");
+            }
+            this.maxLinesPerRead = maxLinesPerRead;
+            return this;
+        }
+
+        public Builder sendQ(int sendQ, SendQPolicy policy) {
+            if (policy == null) {
+                throw new NullPointerException("policy");
+            }
+            this.sendQ = nonNegative(sendQ, "sendQ");
+            this.sendQPolicy = policy;
+            return this;
+        }
+
+        public Builder idleTimeout(long timeout, TimeUnit unit) {
+            if (timeout < 0) {
+                throw new IllegalArgumentException("idleTimeout can't be negative");
+            }
+            this.idleTimeoutMillis = unit.toMillis(timeout);
+            return this;
+        }
+
+        public Builder stringCacheSize(int stringCacheSize) {
+            this.stringCacheSize = nonNegative(stringCacheSize, "stringCacheSize");
+            return this;
+        }
+
+        public Builder commandThreads(int commandThreads) {
+            this.commandThreads = nonNegative(commandThreads, "commandThreads");
+            return this;
+        }
+
+        public Builder commandExecutor(Executor commandExecutor) {
+            this.commandExecutor = commandExecutor;
+            return this;
+        }
+
+        public Builder linkCompressionLevel(int linkCompressionLevel) {
+            if (linkCompressionLevel < 0 || linkCompressionLevel > 9) {
+                throw new IllegalArgumentException("Bad zlib level: " + linkCompressionLevel);
+            }
+            this.linkCompressionLevel = linkCompressionLevel;
+            return this;
+        }
+
+        public Builder linkSendQ(int linkSendQ) {
+            this.linkSendQ = nonNegative(linkSendQ, "linkSendQ");
+            return this;
+        }
+
+        public NettyServerConfig build() {
+            return new NettyServerConfig(this);
+        }
+
+        private static int nonNegative(int value, String name) {
+            if (value < 0) {
+                throw new IllegalArgumentException(name + " can't be negative");
+            }
+            return value;
+        }
+    }
+}
@@ -45,50 +45,389 @@
 package com.github.wolf480pl.ircd.netty;
 
 import java.net.SocketAddress;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 
+import io.netty.buffer.ByteBuf;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
-import io.netty.util.concurrent.Future;
-import io.netty.util.concurrent.GenericFutureListener;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelOutboundBuffer;
+import io.netty.channel.ChannelPromise;
 
 import org.slf4j.Logger;
 
+import com.github.wolf480pl.ircd.BroadcastMessage;
 import com.github.wolf480pl.ircd.Message;
 import com.github.wolf480pl.ircd.Session;
 import com.github.wolf480pl.ircd.SessionHandler;
+import com.github.wolf480pl.ircd.metrics.Metrics;
+import com.github.wolf480pl.ircd.netty.NettyServerConfig.SendQPolicy;
+import com.github.wolf480pl.ircd.netty.codec.BinaryFrame;
+import com.github.wolf480pl.ircd.netty.codec.EncodedMessage;
+import com.github.wolf480pl.ircd.netty.codec.MessageDecoder;
+import com.github.wolf480pl.ircd.netty.codec.MessageEncoder;
+import com.github.wolf480pl.ircd.trace.ProtocolTracer;
 
 public class NettySession implements Session {
+    // Reasons for not reading from the channel, it's only read when there's none
+    public static final int PAUSE_BACKLOG = 1;
+    public static final int PAUSE_FLOOD = 2;
+
     private final Channel channel;
     private final SessionHandler handler;
+    private final Function<Message, EncodedMessage> encoder;
+    private final ChannelFutureListener failureListener;
+    private final boolean batchWrites;
+    private final int linkSendQ;
+    // The client one, until the session turns out to be a server link
+    private volatile int sendQ;
+    private final SendQPolicy sendQPolicy;
+    private final Metrics metrics;
+    private final ProtocolTracer tracer;
+    // null if commands run on the event loop
+    private final Executor commandExecutor;
+    // 0 if server links aren't compressed
+    private final int compressionLevel;
+    private final AtomicBoolean sendQExceeded = new AtomicBoolean(false);
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+    private final Runnable flushTask;
+    private final AtomicInteger pauseReasons = new AtomicInteger(0);
+    // Only touched from the event loop
+    private boolean inRead = false;
+    private boolean flushPending = false;
 
     public NettySession(Channel channel, SessionHandler handler) {
+        this(channel, handler, NettyServerConfig.defaults());
+    }
+
+    public NettySession(Channel channel, SessionHandler handler, boolean batchWrites) {
+        this(channel, handler, NettyServerConfig.builder().batchWrites(batchWrites).build());
+    }
+
+    public NettySession(Channel channel, SessionHandler handler, NettyServerConfig config) {
         this.channel = channel;
         this.handler = handler;
+        this.batchWrites = config.isBatchWrites();
+        this.sendQ = config.getSendQ();
+        this.linkSendQ = config.getLinkSendQ();
+        this.sendQPolicy = config.getSendQPolicy();
+        this.metrics = handler.getMetrics();
+        this.tracer = handler.getTracer();
+        this.commandExecutor = config.getCommandExecutor();
+        this.compressionLevel = config.getLinkCompressionLevel();
+        this.encoder = (msg) -> EncodedMessage.encode(msg, channel.alloc());
+        this.failureListener = (future) -> {
+            if (future.cause() != null) {
+                handler.onOutboundThrowable(this, future.cause());
+            }
+        };
+        this.flushTask = () -> {
+            flushScheduled.set(false);
+            /*
+             * A write from another thread that still saw the flag set may have queued up behind us,
+             * so the flush has to go behind it too, or it waits for whoever writes next.
+             */
+            channel.eventLoop().execute(channel::flush);
+        };
     }
 
+    // Failures of these end up in exceptionCaught, as we use the void promise
     @Override
     public void send(Message msg) {
-        sendWithFuture(msg);
+        trace(msg);
+        checkActive();
+        if (admit(msg, false)) {
+            write(msg, channel.voidPromise());
+        }
+    }
+
+    @Override
+    public void sendDroppable(Message msg) {
+        trace(msg);
+        checkActive();
+        if (admit(msg, true)) {
+            write(msg, channel.voidPromise());
+        }
+    }
+
+    @Override
+    public void sendEncoded(BroadcastMessage msg) {
+        trace(msg.getMessage());
+        checkActive();
+        EncodedMessage encoded = msg.getEncoded(encoder);
+        if (admit(encoded.size(), msg.isDroppable())) {
+            // The ByteBuf goes past the MessageEncoder untouched
+            write(encoded.retainedDuplicate(), channel.voidPromise());
+        }
+    }
+
+    // A line that's already encoded, like one replayed from history. Takes over the reference
+    public void sendEncoded(ByteBuf buf) {
+        try {
+            checkActive();
+        } catch (IllegalStateException e) {
+            buf.release();
+            throw e;
+        }
+        if (admit(buf.readableBytes(), false)) {
+            write(buf, channel.voidPromise());
+        } else {
+            buf.release();
+        }
+    }
+
+    @Override
+    public void sendFrame(byte[] payload) {
+        checkActive();
+        if (admit(payload.length, false)) {
+            write(BinaryFrame.encode(payload, channel.alloc()), channel.voidPromise());
+        }
     }
 
     public ChannelFuture sendWithFuture(Message msg) {
-        getLogger().debug("" + getRemoteAddress() + " <- " + msg);
+        trace(msg);
+        checkActive();
+        if (!admit(msg, false)) {
+            return channel.newFailedFuture(new SendQExceededException());
+        }
+        return write(msg, newPromise());
+    }
+
+    public ChannelFuture sendEncodedWithFuture(BroadcastMessage msg) {
+        trace(msg.getMessage());
+        checkActive();
+        EncodedMessage encoded = msg.getEncoded(encoder);
+        if (!admit(encoded.size(), msg.isDroppable())) {
+            return channel.newFailedFuture(new SendQExceededException());
+        }
+        return write(encoded.retainedDuplicate(), newPromise());
+    }
+
+    // Bytes written but not sent yet, including writes still on their way to the event loop
+    public long getPendingBytes() {
+        ChannelOutboundBuffer buffer = channel.unsafe().outboundBuffer();
+        return buffer == null ? 0 : buffer.totalPendingWriteBytes();
+    }
+
+    private boolean admit(Message msg, boolean droppable) {
+        if (sendQ == 0 && metrics == null) {
+            return true;
+        }
+        return admit(MessageEncoder.estimateSize(msg), droppable);
+    }
+
+    private boolean admit(int size, boolean droppable) {
+        if (sendQ == 0 && metrics == null) {
+            return true;
+        }
+        long pending = getPendingBytes();
+        boolean admitted = sendQ == 0 || admitToSendQ(pending + size, droppable);
+        if (metrics != null) {
+            metrics.sendQueueDepth(pending);
+            if (admitted) {
+                metrics.messageSent(size);
+            } else {
+                metrics.messageDropped();
+            }
+        }
+        return admitted;
+    }
+
+    private boolean admitToSendQ(long pending, boolean droppable) {
+        if (sendQExceeded.get()) {
+            // On our way out
+            return false;
+        }
+        if (droppable) {
+            if (sendQPolicy == SendQPolicy.DROP) {
+                return pending <= sendQ && channel.isWritable();
+            }
+            if (pending <= sendQ) {
+                return true;
+            }
+        } else if (pending <= 2L * sendQ) {
+            // Replies and PINGs get some headroom over the chatter
+            return true;
+        }
+        if (sendQExceeded.compareAndSet(false, true)) {
+            handler.onSendQExceeded(this);
+        }
+        return false;
+    }
+
+    public boolean isSendQExceeded() {
+        return sendQExceeded.get();
+    }
+
+    private void trace(Message msg) {
+        if (tracer != null) {
+            tracer.outbound(this, msg);
+        }
+    }
+
+    private void checkActive() {
         if (!channel.isActive()) {
             throw new IllegalStateException("Trying to send a message when a session is inactive!");
         }
-        return channel.writeAndFlush(msg).addListener(new GenericFutureListener<Future<? super Void>>() {
-            @Override
-            public void operationComplete(Future<? super Void> future) throws Exception {
-                if (future.cause() != null) {
-                    handler.onOutboundThrowable(NettySession.this, future.cause());
-                }
+    }
+
+    private ChannelPromise newPromise() {
+        ChannelPromise promise = channel.newPromise();
+        promise.addListener(failureListener);
+        return promise;
+    }
+
+    private ChannelFuture write(Object msg, ChannelPromise promise) {
+        if (!batchWrites) {
+            return channel.writeAndFlush(msg, promise);
+        }
+        channel.write(msg, promise);
+        if (inRead && channel.eventLoop().inEventLoop()) {
+            // We'll flush when the read is complete
+            flushPending = true;
+        } else if (flushScheduled.compareAndSet(false, true)) {
+            // Writes submitted before the flush task runs all get flushed together
+            channel.eventLoop().execute(flushTask);
+        }
+        return promise;
+    }
+
+    // Called from the event loop when a read cycle delivers a message
+    public void readStarted() {
+        inRead = true;
+    }
+
+    // Called from the event loop when the read cycle is over
+    public void readComplete() {
+        inRead = false;
+        if (flushPending) {
+            flushPending = false;
+            channel.flush();
+        }
+    }
+
+    @Override
+    public Executor getExecutor() {
+        return commandExecutor != null ? commandExecutor : channel.eventLoop();
+    }
+
+    @Override
+    public boolean inExecutor() {
+        if (commandExecutor == null) {
+            return channel.eventLoop().inEventLoop();
+        }
+        // We can't tell for any executor, but we can for a ForkJoinPool
+        return commandExecutor instanceof ForkJoinPool && ForkJoinTask.getPool() == commandExecutor;
+    }
+
+    @Override
+    public void pauseReading() {
+        pauseReading(PAUSE_BACKLOG);
+    }
+
+    @Override
+    public void resumeReading() {
+        resumeReading(PAUSE_BACKLOG);
+    }
+
+    public void pauseReading(int reason) {
+        if (pauseReasons.getAndAccumulate(reason, (a, b) -> a | b) == 0) {
+            updateAutoRead();
+        }
+    }
+
+    public void resumeReading(int reason) {
+        int old = pauseReasons.getAndAccumulate(reason, (a, b) -> a & ~b);
+        if (old != 0 && (old & ~reason) == 0) {
+            updateAutoRead();
+        }
+    }
+
+    private void updateAutoRead() {
+        if (channel.eventLoop().inEventLoop()) {
+            channel.config().setAutoRead(pauseReasons.get() == 0);
+        } else {
+            // Pause and resume from different threads could otherwise get applied in the wrong order
+            channel.eventLoop().execute(this::updateAutoRead);
+        }
+    }
+
+    public boolean isReadingPaused() {
+        return pauseReasons.get() != 0;
+    }
+
+    @Override
+    public void exemptFromFloodControl() {
+        if (!channel.eventLoop().inEventLoop()) {
+            channel.eventLoop().execute(this::exemptFromFloodControl);
+            return;
+        }
+        FloodControlHandler floodControl = channel.pipeline().get(FloodControlHandler.class);
+        if (floodControl != null) {
+            channel.pipeline().remove(floodControl);
+        }
+    }
+
+    @Override
+    public void useLinkSendQ() {
+        sendQ = linkSendQ;
+    }
+
+    @Override
+    public boolean acceptFrames() {
+        MessageDecoder decoder = channel.pipeline().get(MessageDecoder.class);
+        if (decoder == null) {
+            return false;
+        }
+        runInEventLoop(() -> decoder.setAcceptFrames(true));
+        return true;
+    }
+
+    @Override
+    public boolean acceptCompression() {
+        MessageDecoder decoder = channel.pipeline().get(MessageDecoder.class);
+        if (compressionLevel == 0 || decoder == null) {
+            return false;
+        }
+        runInEventLoop(() -> decoder.setAcceptCompression(true));
+        return true;
+    }
+
+    @Override
+    public void startCompression() {
+        if (compressionLevel == 0) {
+            throw new IllegalStateException("Link compression is turned off");
+        }
+        runInEventLoop(() -> {
+            if (channel.pipeline().get(IRCChannelInitializer.COMPRESSOR) != null) {
+                return;
             }
+            Message zip = Message.withoutPrefix("ZIP");
+            trace(zip);
+            // Goes out as it is, whatever is written after it passes the compressor
+            write(zip, channel.voidPromise());
+            IRCChannelInitializer.addCompressor(channel.pipeline(), compressionLevel);
         });
+    }
 
+    // Writes from this thread that come after this call are queued behind the task, so they see what it did
+    private void runInEventLoop(Runnable task) {
+        if (channel.eventLoop().inEventLoop()) {
+            task.run();
+        } else {
+            channel.eventLoop().execute(task);
+        }
     }
 
     @Override
     public void disconnect() {
+        // Don't lose whatever is still waiting for a flush
+        channel.flush();
         channel.disconnect();
     };
 
@@ -0,0 +1,95 @@
+/*
+ * This file is part of IRCd4j.
+ *
+ * Copyright (c) 2014 Wolf480pl <wolf480@interia.pl>
+ * IRCd4j is licensed under the GNU Lesser General Public License.
+ *
+ * IRCd4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * IRCd4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.wolf480pl.ircd.netty.codec;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.handler.codec.TooLongFrameException;
+
+/*
+ * Binary data between server links, in between the lines: a NUL (which can't start a line),
+ * the payload's length as a varint, then the payload. The decoder only looks for them on
+ * connections that agreed to it, see MessageDecoder.setAcceptFrames().
+ */
+public class BinaryFrame {
+    public static final int MAX_LENGTH = 64 * 1024;
+    // NUL and up to 3 bytes of length
+    private static final int MAX_HEADER_LENGTH = 4;
+
+    private final byte[] payload;
+
+    public BinaryFrame(byte[] payload) {
+        this.payload = payload;
+    }
+
+    public byte[] getPayload() {
+        return payload;
+    }
+
+    public static ByteBuf encode(byte[] payload, ByteBufAllocator alloc) {
+        if (payload.length > MAX_LENGTH) {
+            throw new IllegalArgumentException("Frame too long: " + payload.length);
+        }
+        ByteBuf buf = alloc.ioBuffer(MAX_HEADER_LENGTH + payload.length);
+        buf.writeByte(0);
+        int length = payload.length;
+        while ((length & ~0x7F) != 0) {
+            buf.writeByte((length & 0x7F) | 0x80);
+            length >>>= 7;
+        }
+        buf.writeByte(length);
+        buf.writeBytes(payload);
+        return buf;
+    }
+
+    /*
+     * Reads a frame that starts at the reader index, which has to be the NUL.
+     * Returns null, leaving the buffer as it was, if it's not all there yet.
+     */
+    static BinaryFrame decode(ByteBuf in) {
+        final int start = in.readerIndex();
+        final int end = in.writerIndex();
+        int i = start + 1;
+        int length = 0;
+        for (int shift = 0; ; shift += 7) {
+            if (i == end) {
+                return null;
+            }
+            if (i - start == MAX_HEADER_LENGTH) {
+                throw new TooLongFrameException("frame length doesn't fit in " + (MAX_HEADER_LENGTH - 1) + " bytes");
+            }
+            final byte b = in.getByte(i++);
+            length |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+        }
+        if (length > MAX_LENGTH) {
+            throw new TooLongFrameException("frame length (" + length + ") exceeds the allowed maximum");
+        }
+        if (end - i < length) {
+            return null;
+        }
+        byte[] payload = new byte[length];
+        in.getBytes(i, payload);
+        in.readerIndex(i + length);
+        return new BinaryFrame(payload);
+    }
+}
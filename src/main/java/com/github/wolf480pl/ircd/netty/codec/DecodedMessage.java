@@ -0,0 +1,161 @@
+/*
+ * This file is part of IRCd4j.
+ *
+ * Copyright (c) 2014 Wolf480pl <wolf480@interia.pl>
+ * IRCd4j is licensed under the GNU Lesser General Public License.
+ *
+ * IRCd4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * IRCd4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.wolf480pl.ircd.netty.codec;
+
+import java.nio.charset.Charset;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.RandomAccess;
+import java.util.Set;
+
+import com.github.wolf480pl.ircd.Message;
+import com.github.wolf480pl.ircd.util.StringCache;
+
+// Keeps the raw line and only turns prefix, command and params into Strings when they're asked for
+public class DecodedMessage extends Message {
+    // Commands whose last param is a password
+    private static final Set<String> SECRET_LAST = new HashSet<>(Arrays.asList("PASS", "IDENTIFY", "REGISTER"));
+
+    private final byte[] line;
+    private final Charset charset;
+    private final int prefixStart;
+    private final int prefixEnd;
+    private final int commandStart;
+    private final int commandEnd;
+    // start and end index of each param, one after another
+    private final int[] paramBounds;
+    // null to always make new Strings
+    private final StringCache cache;
+
+    private String prefix;
+    private boolean prefixSet = false;
+    private String command;
+    private List<String> params;
+
+    public DecodedMessage(byte[] line, Charset charset, int prefixStart, int prefixEnd, int commandStart, int commandEnd, int[] paramBounds) {
+        this(line, charset, prefixStart, prefixEnd, commandStart, commandEnd, paramBounds, null);
+    }
+
+    public DecodedMessage(byte[] line, Charset charset, int prefixStart, int prefixEnd, int commandStart, int commandEnd, int[] paramBounds, StringCache cache) {
+        super(null, null, null);
+        this.line = line;
+        this.charset = charset;
+        this.prefixStart = prefixStart;
+        this.prefixEnd = prefixEnd;
+        this.commandStart = commandStart;
+        this.commandEnd = commandEnd;
+        this.paramBounds = paramBounds;
+        this.cache = cache;
+    }
+
+    // Without the line terminator
+    public int getLineLength() {
+        return line.length;
+    }
+
+    @Override
+    public String getPrefix() {
+        if (!prefixSet) {
+            if (prefixStart >= 0) {
+                prefix = string(prefixStart, prefixEnd);
+            }
+            prefixSet = true;
+        }
+        return prefix;
+    }
+
+    @Override
+    public void setPrefix(String prefix) {
+        this.prefix = prefix;
+        this.prefixSet = true;
+    }
+
+    @Override
+    public String getCommand() {
+        if (command == null) {
+            command = string(commandStart, commandEnd);
+        }
+        return command;
+    }
+
+    @Override
+    public void setCommand(String command) {
+        this.command = command;
+    }
+
+    @Override
+    public List<String> getParams() {
+        if (params == null) {
+            params = new ParamList();
+        }
+        return params;
+    }
+
+    @Override
+    public void setParams(List<String> params) {
+        this.params = Collections.unmodifiableList(params);
+    }
+
+    private String string(int start, int end) {
+        if (cache != null) {
+            return cache.get(line, start, end, charset);
+        }
+        return uncached(start, end);
+    }
+
+    private String uncached(int start, int end) {
+        return new String(line, start, end - start, charset);
+    }
+
+    private class ParamList extends AbstractList<String> implements RandomAccess {
+        private final String[] cache = new String[paramBounds.length / 2];
+
+        @Override
+        public String get(int index) {
+            String param = cache[index];
+            if (param == null) {
+                final int start = paramBounds[2 * index];
+                final int end = paramBounds[2 * index + 1];
+                param = isPrivate(index, start) ? uncached(start, end) : string(start, end);
+                cache[index] = param;
+            }
+            return param;
+        }
+
+        /* Text and passwords would only push the nicks and targets out of the cache, and passwords mustn't sit
+         * in one shared by everyone. Passwords come without the colon often enough, so it's not just the trailing one.
+         */
+        private boolean isPrivate(int index, int start) {
+            if (index != cache.length - 1) {
+                return false;
+            }
+            return line[start - 1] == ':' || SECRET_LAST.contains(getCommand().toUpperCase(Locale.ROOT));
+        }
+
+        @Override
+        public int size() {
+            return cache.length;
+        }
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * This file is part of IRCd4j.
+ *
+ * Copyright (c) 2014 Wolf480pl <wolf480@interia.pl>
+ * IRCd4j is licensed under the GNU Lesser General Public License.
+ *
+ * IRCd4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * IRCd4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.wolf480pl.ircd.netty.codec;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+
+import com.github.wolf480pl.ircd.BroadcastMessage;
+import com.github.wolf480pl.ircd.Message;
+
+public class EncodedMessage implements BroadcastMessage.Encoded {
+    private final ByteBuf buffer;
+
+    public EncodedMessage(ByteBuf buffer) {
+        this.buffer = buffer;
+    }
+
+    public int size() {
+        return buffer.readableBytes();
+    }
+
+    // Each write gets its own indices and reference
+    public ByteBuf retainedDuplicate() {
+        return buffer.duplicate().retain();
+    }
+
+    @Override
+    public void release() {
+        buffer.release();
+    }
+
+    public static EncodedMessage encode(Message msg, ByteBufAllocator alloc) {
+        ByteBuf buf = alloc.ioBuffer(MessageEncoder.estimateSize(msg));
+        try {
+            MessageEncoder.encode(msg, buf);
+        } catch (RuntimeException e) {
+            buf.release();
+            throw e;
+        }
+        return new EncodedMessage(buf);
+    }
+}
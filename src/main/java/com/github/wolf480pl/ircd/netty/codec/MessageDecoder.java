@@ -19,38 +19,313 @@
  */
 package com.github.wolf480pl.ircd.netty.codec;
 
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.regex.Matcher;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufProcessor;
 import io.netty.channel.ChannelHandlerContext;
-import io.netty.handler.codec.MessageToMessageDecoder;
-
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.codec.TooLongFrameException;
+import io.netty.handler.codec.compression.DecompressionException;
 
 import com.github.wolf480pl.ircd.IRCRegexes;
 import com.github.wolf480pl.ircd.Message;
 import com.github.wolf480pl.ircd.Session;
 import com.github.wolf480pl.ircd.SessionHandler;
+import com.github.wolf480pl.ircd.trace.ProtocolTracer;
+import com.github.wolf480pl.ircd.util.StringCache;
+
+public class MessageDecoder extends ByteToMessageDecoder {
+    private static final int INFLATE_STEP = 8192;
+    private final int maxLineLength;
+    private final Charset charset;
+    private final boolean strict;
+    private final StringCache cache;
+
+    private boolean discarding = false;
+    private int discardedBytes = 0;
+    // Reused for every line, only the used part gets copied into the message
+    private int[] paramBounds = new int[32];
+    // Server links only, see setAcceptFrames() and setAcceptCompression()
+    private boolean acceptFrames = false;
+    private boolean acceptCompression = false;
+    // Once they've said ZIP, whatever comes is inflated into the buffer first, and decoded from there
+    private Inflater inflater;
+    private ByteBuf inflated;
+
+    public MessageDecoder(int maxLineLength, Charset charset) {
+        this(maxLineLength, charset, false);
+    }
+
+    /**
+     * @param strict whether to validate every line against {@link IRCRegexes#REGEX_PATTERN_MESSAGE} instead of using the fast parser
+     */
+    public MessageDecoder(int maxLineLength, Charset charset, boolean strict) {
+        this(maxLineLength, charset, strict, null);
+    }
+
+    // The cache can be shared by all the decoders, null means no caching
+    public MessageDecoder(int maxLineLength, Charset charset, boolean strict, StringCache cache) {
+        this.maxLineLength = maxLineLength;
+        this.charset = charset;
+        this.strict = strict;
+        this.cache = cache;
+    }
 
-public class MessageDecoder extends MessageToMessageDecoder<String> {
-    private static Logger logger = LoggerFactory.getLogger(MessageDecoder.class);
+    // Lets the other side send BinaryFrames in between the lines. Only from the event loop
+    public void setAcceptFrames(boolean acceptFrames) {
+        this.acceptFrames = acceptFrames;
+    }
+
+    // Lets the other side switch to a zlib stream with a ZIP line. Only from the event loop
+    public void setAcceptCompression(boolean acceptCompression) {
+        this.acceptCompression = acceptCompression;
+    }
+
+    public boolean isInflating() {
+        return inflater != null;
+    }
 
     @Override
-    protected void decode(ChannelHandlerContext ctx, String msg, List<Object> out) throws Exception {
-        if (msg.isEmpty()) {
+    protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception {
+        if (inflater == null) {
+            decodeOne(ctx, in, out);
+            return;
+        }
+        inflate(ctx, in);
+        while (inflated.isReadable()) {
+            final int before = inflated.readerIndex();
+            decodeOne(ctx, inflated, out);
+            if (inflated.readerIndex() == before) {
+                // Not a whole line or frame yet
+                break;
+            }
+        }
+        inflated.discardSomeReadBytes();
+    }
+
+    private void decodeOne(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) {
+        // decodeLast() hands us whatever's left when the connection closes, which may be nothing
+        if (acceptFrames && !discarding && in.isReadable() && in.getByte(in.readerIndex()) == 0) {
+            BinaryFrame frame;
+            try {
+                frame = BinaryFrame.decode(in);
+            } catch (TooLongFrameException e) {
+                // There's no telling where the next line would start
+                in.skipBytes(in.readableBytes());
+                ctx.fireExceptionCaught(e);
+                ctx.close();
+                return;
+            }
+            if (frame != null) {
+                out.add(frame);
+            }
+            return;
+        }
+        decodeLine(ctx, in, out);
+    }
+
+    private void decodeLine(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) {
+        // We accept a bare LF too, like LineBasedFrameDecoder did
+        final int eol = in.forEachByte(ByteBufProcessor.FIND_LF);
+        if (discarding) {
+            if (eol >= 0) {
+                final int length = discardedBytes + eol - in.readerIndex();
+                in.readerIndex(eol + 1);
+                discardedBytes = 0;
+                discarding = false;
+                fail(ctx, length);
+            } else {
+                discardedBytes += in.readableBytes();
+                in.skipBytes(in.readableBytes());
+            }
+            return;
+        }
+
+        if (eol < 0) {
+            if (in.readableBytes() > maxLineLength) {
+                discardedBytes = in.readableBytes();
+                in.skipBytes(discardedBytes);
+                discarding = true;
+            }
+            return;
+        }
+
+        final int start = in.readerIndex();
+        int length = eol - start;
+        in.readerIndex(eol + 1);
+        if (length > maxLineLength) {
+            fail(ctx, length);
+            return;
+        }
+        if (length > 0 && in.getByte(start + length - 1) == '\r') {
+            --length;
+        }
+        if (length == 0) {
             // Silently ignore empty messages, per RFC 1459 2.3.1
             return;
         }
-        Matcher matcher = IRCRegexes.REGEX_PATTERN_MESSAGE.matcher(msg);
-        if (!matcher.matches()) {
+
+        byte[] line = new byte[length];
+        in.getBytes(start, line);
+
+        Message msg = strict ? decodeStrict(line) : parse(line);
+        if (msg == null) {
             SessionHandler handler = ctx.channel().attr(MessageHandler.ATTR_SESSION_HANDLER).get();
             Session session = ctx.channel().attr(MessageHandler.ATTR_SESSION).get();
-            handler.getLogger(session).debug("Received incorrect message:" + msg);
+            ProtocolTracer tracer = handler.getTracer();
+            if (tracer != null) {
+                tracer.invalid(session, line, charset);
+            }
             //TODO: Throw an exception, so that an upper layer can say "unknown command" ?
             return;
         }
+        if (acceptCompression && isZip(msg)) {
+            // The rest of this read is compressed already, decode() takes it from here
+            inflater = new Inflater();
+            inflated = ctx.alloc().heapBuffer();
+            return;
+        }
+        out.add(msg);
+    }
+
+    private boolean isZip(Message msg) {
+        return inflater == null && msg.getPrefix() == null && msg.getParams().isEmpty() && "ZIP".equals(msg.getCommand());
+    }
+
+    // Takes all of the input, the Inflater mustn't keep a reference to the buffer's array
+    private void inflate(ChannelHandlerContext ctx, ByteBuf in) {
+        final int length = in.readableBytes();
+        if (in.hasArray()) {
+            inflater.setInput(in.array(), in.arrayOffset() + in.readerIndex(), length);
+        } else {
+            byte[] input = new byte[length];
+            in.getBytes(in.readerIndex(), input);
+            inflater.setInput(input);
+        }
+        in.skipBytes(length);
+        try {
+            while (!inflater.needsInput() && !inflater.finished()) {
+                inflated.ensureWritable(INFLATE_STEP);
+                final int n = inflater.inflate(inflated.array(), inflated.arrayOffset() + inflated.writerIndex(), inflated.writableBytes());
+                if (n == 0 && inflater.needsDictionary()) {
+                    throw new DataFormatException("preset dictionaries aren't supported");
+                }
+                inflated.writerIndex(inflated.writerIndex() + n);
+            }
+        } catch (DataFormatException e) {
+            inflated.clear();
+            ctx.fireExceptionCaught(new DecompressionException(e));
+            ctx.close();
+        }
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        super.channelInactive(ctx);
+        stopInflating();
+    }
+
+    @Override
+    protected void handlerRemoved0(ChannelHandlerContext ctx) {
+        stopInflating();
+    }
+
+    private void stopInflating() {
+        if (inflater != null) {
+            inflater.end();
+            inflated.release();
+            inflater = null;
+            inflated = null;
+        }
+    }
+
+    protected DecodedMessage parse(byte[] line) {
+        final int length = line.length;
+        int i = 0;
+
+        int prefixStart = -1;
+        int prefixEnd = -1;
+        if (line[0] == ':') {
+            prefixStart = i = 1;
+            while (i < length && line[i] != ' ') {
+                if (line[i] == 0 || line[i] == '\r') {
+                    return null;
+                }
+                ++i;
+            }
+            prefixEnd = i;
+            if (prefixEnd == prefixStart || i == length) {
+                return null;
+            }
+            while (i < length && line[i] == ' ') {
+                ++i;
+            }
+        }
+
+        final int commandStart = i;
+        boolean letters = true;
+        boolean digits = true;
+        while (i < length && line[i] != ' ') {
+            final byte b = line[i];
+            letters &= (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z');
+            digits &= b >= '0' && b <= '9';
+            ++i;
+        }
+        final int commandEnd = i;
+        if (commandEnd == commandStart || !(letters || (digits && commandEnd - commandStart == 3))) {
+            return null;
+        }
+
+        int[] bounds = this.paramBounds;
+        int n = 0;
+        while (i < length) {
+            while (i < length && line[i] == ' ') {
+                ++i;
+            }
+            if (i == length) {
+                break;
+            }
+            if (n == bounds.length) {
+                bounds = this.paramBounds = Arrays.copyOf(bounds, n * 2);
+            }
+            if (line[i] == ':') {
+                // Trailing parameter, takes the rest of the line
+                bounds[n++] = ++i;
+                while (i < length) {
+                    if (line[i] == 0 || line[i] == '\r') {
+                        return null;
+                    }
+                    ++i;
+                }
+                bounds[n++] = i;
+                break;
+            }
+            bounds[n++] = i;
+            while (i < length && line[i] != ' ') {
+                if (line[i] == 0 || line[i] == '\r') {
+                    return null;
+                }
+                ++i;
+            }
+            bounds[n++] = i;
+        }
+
+        return new DecodedMessage(line, charset, prefixStart, prefixEnd, commandStart, commandEnd, Arrays.copyOf(bounds, n), cache);
+    }
+
+    protected Message decodeStrict(byte[] line) {
+        String msg = new String(line, charset);
+        Matcher matcher = IRCRegexes.REGEX_PATTERN_MESSAGE.matcher(msg);
+        if (!matcher.matches()) {
+            return null;
+        }
 
         String args = matcher.group("args");
         List<String> params = new ArrayList<>();
@@ -63,7 +338,10 @@ public class MessageDecoder extends MessageToMessageDecoder<String> {
             params.add(trailing);
         }
 
-        Message ircmsg = new Message(matcher.group("prefix"), matcher.group("command"), params);
-        out.add(ircmsg);
+        return new Message(matcher.group("prefix"), matcher.group("command"), params);
+    }
+
+    private static void fail(ChannelHandlerContext ctx, int length) {
+        ctx.fireExceptionCaught(new TooLongFrameException("frame length (" + length + ") exceeds the allowed maximum"));
     }
 }
@@ -19,45 +19,123 @@
  */
 package com.github.wolf480pl.ircd.netty.codec;
 
-import java.util.Iterator;
 import java.util.List;
 
+import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
-import io.netty.handler.codec.MessageToMessageEncoder;
+import io.netty.handler.codec.MessageToByteEncoder;
 
 import com.github.wolf480pl.ircd.Message;
 
-public class MessageEncoder extends MessageToMessageEncoder<Message> {
+public class MessageEncoder extends MessageToByteEncoder<Message> {
+
+    public MessageEncoder() {
+        this(true);
+    }
+
+    public MessageEncoder(boolean preferDirect) {
+        super(Message.class, preferDirect);
+    }
 
     @Override
-    protected void encode(ChannelHandlerContext ctx, Message msg, List<Object> out) throws Exception {
-        StringBuilder builder = new StringBuilder();
+    protected ByteBuf allocateBuffer(ChannelHandlerContext ctx, Message msg, boolean preferDirect) throws Exception {
+        final int size = estimateSize(msg);
+        if (preferDirect) {
+            return ctx.alloc().ioBuffer(size);
+        } else {
+            return ctx.alloc().heapBuffer(size);
+        }
+    }
+
+    @Override
+    protected void encode(ChannelHandlerContext ctx, Message msg, ByteBuf out) throws Exception {
+        encode(msg, out);
+    }
+
+    public static void encode(Message msg, ByteBuf out) {
+        String tags = msg.getTags();
+        if (tags != null && !tags.isEmpty()) {
+            out.writeByte('@');
+            writeUtf8(out, tags);
+            out.writeByte(' ');
+        }
         String prefix = msg.getPrefix();
         if (prefix != null && !prefix.isEmpty()) {
-            builder.append(':').append(prefix).append(' ');
+            out.writeByte(':');
+            writeUtf8(out, prefix);
+            out.writeByte(' ');
         }
 
-        builder.append(msg.getCommand());
+        writeUtf8(out, msg.getCommand());
 
-        Iterator<String> it = msg.getParams().iterator();
-        while (it.hasNext()) {
-            String param = it.next();
+        List<String> params = msg.getParams();
+        final int last = params.size() - 1;
+        for (int i = 0; i <= last; ++i) {
+            String param = params.get(i);
             if (param == null) {
                 //TODO: Should this happen at all?
                 continue;
             }
-            if (param.contains(" ") || param.isEmpty()) {
-                if (it.hasNext()) {
+            if (param.isEmpty() || param.indexOf(' ') >= 0) {
+                if (i != last) {
                     throw new IllegalArgumentException("IRC command parameter \"" + param + "\" contains space (or is empty) and isn't the last parameter");
                 } else {
-                    builder.append(" :").append(param);
+                    out.writeByte(' ').writeByte(':');
                 }
             } else {
-                builder.append(' ').append(param);
+                out.writeByte(' ');
             }
+            writeUtf8(out, param);
         }
-        builder.append("\r\n");
-        out.add(builder.toString());
+        out.writeByte('\r').writeByte('\n');
     }
 
+    // Exact for ASCII, the buffer grows if there's anything wider
+    public static int estimateSize(Message msg) {
+        int size = 2;
+        String tags = msg.getTags();
+        if (tags != null) {
+            size += tags.length() + 2;
+        }
+        String prefix = msg.getPrefix();
+        if (prefix != null) {
+            size += prefix.length() + 2;
+        }
+        size += msg.getCommand().length();
+        List<String> params = msg.getParams();
+        for (int i = 0; i < params.size(); ++i) {
+            String param = params.get(i);
+            if (param != null) {
+                size += param.length() + 2;
+            }
+        }
+        return size;
+    }
+
+    public static void writeUtf8(ByteBuf out, CharSequence str) {
+        final int length = str.length();
+        out.ensureWritable(length);
+        for (int i = 0; i < length; ++i) {
+            char c = str.charAt(i);
+            if (c < 0x80) {
+                out.writeByte(c);
+            } else if (c < 0x800) {
+                out.writeByte(0xC0 | (c >> 6));
+                out.writeByte(0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(str.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, str.charAt(++i));
+                out.writeByte(0xF0 | (cp >> 18));
+                out.writeByte(0x80 | ((cp >> 12) & 0x3F));
+                out.writeByte(0x80 | ((cp >> 6) & 0x3F));
+                out.writeByte(0x80 | (cp & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                // Unpaired surrogate, same as what String.getBytes does
+                out.writeByte('?');
+            } else {
+                out.writeByte(0xE0 | (c >> 12));
+                out.writeByte(0x80 | ((c >> 6) & 0x3F));
+                out.writeByte(0x80 | (c & 0x3F));
+            }
+        }
+    }
 }
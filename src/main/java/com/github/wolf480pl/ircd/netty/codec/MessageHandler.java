@@ -31,7 +31,10 @@ import io.netty.util.AttributeKey;
 import com.github.wolf480pl.ircd.Message;
 import com.github.wolf480pl.ircd.Session;
 import com.github.wolf480pl.ircd.SessionHandler;
+import com.github.wolf480pl.ircd.metrics.Metrics;
+import com.github.wolf480pl.ircd.netty.NettyServerConfig;
 import com.github.wolf480pl.ircd.netty.NettySession;
+import com.github.wolf480pl.ircd.trace.ProtocolTracer;
 
 public class MessageHandler extends SimpleChannelInboundHandler<Message> {
     public static final AttributeKey<Session> ATTR_SESSION = AttributeKey.valueOf(MessageHandler.class.getName() + ".SESSION");
@@ -39,24 +42,48 @@ public class MessageHandler extends SimpleChannelInboundHandler<Message> {
 
     private final AtomicReference<NettySession> session = new AtomicReference<>(null);
     private final SessionHandler handler;
+    private final NettyServerConfig config;
+    private final Metrics metrics;
+    private final ProtocolTracer tracer;
 
     public MessageHandler(SessionHandler handler) {
+        this(handler, NettyServerConfig.defaults());
+    }
+
+    public MessageHandler(SessionHandler handler, boolean batchWrites) {
+        this(handler, NettyServerConfig.builder().batchWrites(batchWrites).build());
+    }
+
+    public MessageHandler(SessionHandler handler, NettyServerConfig config) {
         this.handler = handler;
+        this.config = config;
+        this.metrics = handler.getMetrics();
+        this.tracer = handler.getTracer();
     }
 
     @Override
     public void channelActive(ChannelHandlerContext ctx) {
         final Channel ch = ctx.channel();
-        NettySession s = new NettySession(ch, handler);
+        NettySession s = new NettySession(ch, handler, config);
         if (!session.compareAndSet(null, s)) {
             throw new IllegalStateException("Session was set before channel was activated");
         }
         ch.attr(ATTR_SESSION).set(s);
         ch.attr(ATTR_SESSION_HANDLER).set(handler);
+        if (metrics != null) {
+            metrics.sessionOpened();
+        }
+        handler.onConnect(s);
     }
 
     @Override
     public void channelInactive(ChannelHandlerContext ctx) {
+        if (metrics != null) {
+            metrics.sessionClosed();
+        }
+        if (tracer != null) {
+            tracer.sessionClosed(session.get());
+        }
         handler.onDisconnect(session.get());
     }
 
@@ -65,13 +92,50 @@ public class MessageHandler extends SimpleChannelInboundHandler<Message> {
         handler.onInboundThrowable(session.get(), cause);
     }
 
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (msg instanceof BinaryFrame) {
+            frameRead(ctx, (BinaryFrame) msg);
+        } else {
+            super.channelRead(ctx, msg);
+        }
+    }
+
+    private void frameRead(ChannelHandlerContext ctx, BinaryFrame frame) {
+        final NettySession s = session.get();
+        s.validate(ctx.channel());
+        s.readStarted();
+        final byte[] payload = frame.getPayload();
+        if (metrics != null) {
+            metrics.messageReceived(payload.length);
+        }
+        handler.frameReceived(s, payload);
+    }
+
     @Override
     protected void channelRead0(ChannelHandlerContext ctx, Message msg) throws Exception {
         final NettySession s = session.get();
         s.validate(ctx.channel());
+        s.readStarted();
+        if (metrics != null) {
+            // Without the line terminator either way
+            metrics.messageReceived(msg instanceof DecodedMessage ? ((DecodedMessage) msg).getLineLength() : MessageEncoder.estimateSize(msg) - 2);
+        }
+        if (tracer != null) {
+            tracer.inbound(s, msg);
+        }
         handler.messageReceived(s, msg);
     }
 
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) {
+        final NettySession s = session.get();
+        if (s != null) {
+            s.readComplete();
+        }
+        ctx.fireChannelReadComplete();
+    }
+
     @Override
     public void userEventTriggered(ChannelHandlerContext ctx, Object event) {
         if (event instanceof IdleStateEvent) {
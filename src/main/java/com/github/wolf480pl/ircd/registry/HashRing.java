@@ -0,0 +1,91 @@
+/*
+ * This file is part of IRCd4j.
+ *
+ * Copyright (c) 2014 Wolf480pl <wolf480@interia.pl>
+ * IRCd4j is licensed under the GNU Lesser General Public License.
+ *
+ * IRCd4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * IRCd4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.wolf480pl.ircd.registry;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Function;
+
+import com.github.wolf480pl.ircd.util.CaseMapping;
+
+/*
+ * Consistent hashing of casemapped nicks onto nodes. Each node gets a number of points on the ring and owns
+ * the nicks hashing between its points and the ones before, so adding or removing a node only moves
+ * the nicks next to its points, and with enough points the load stays even.
+ * Immutable, a change of membership makes a new ring.
+ */
+public final class HashRing<T> {
+    public static final int DEFAULT_POINTS = 128;
+
+    private final long[] points;
+    private final Object[] owners;
+
+    public HashRing(List<T> nodes, Function<? super T, String> idOf) {
+        this(nodes, idOf, DEFAULT_POINTS);
+    }
+
+    public HashRing(List<T> nodes, Function<? super T, String> idOf, int pointsPerNode) {
+        if (nodes.isEmpty()) {
+            throw new IllegalArgumentException("No nodes");
+        }
+        final int count = nodes.size() * pointsPerNode;
+        // Sort the points together with their owners, packed as (point, index) pairs
+        long[][] pairs = new long[count][];
+        int n = 0;
+        for (int i = 0; i < nodes.size(); ++i) {
+            String id = idOf.apply(nodes.get(i));
+            for (int j = 0; j < pointsPerNode; ++j) {
+                pairs[n++] = new long[] { hash(id + "#" + j), i };
+            }
+        }
+        Arrays.sort(pairs, (a, b) -> Long.compare(a[0], b[0]));
+        this.points = new long[count];
+        this.owners = new Object[count];
+        for (int i = 0; i < count; ++i) {
+            points[i] = pairs[i][0];
+            owners[i] = nodes.get((int) pairs[i][1]);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public T get(CharSequence nick) {
+        int i = Arrays.binarySearch(points, hash(nick));
+        if (i < 0) {
+            i = -i - 1;
+        }
+        return (T) owners[i == points.length ? 0 : i];
+    }
+
+    // 64-bit FNV-1a of the casemapped chars, then MurmurHash3's finalizer so that similar nicks spread out
+    static long hash(CharSequence str) {
+        long h = 0xcbf29ce484222325L;
+        final int length = str.length();
+        for (int i = 0; i < length; ++i) {
+            h ^= CaseMapping.toLowerCase(str.charAt(i));
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
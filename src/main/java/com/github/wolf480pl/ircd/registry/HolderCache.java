@@ -0,0 +1,124 @@
+/*
+ * This file is part of IRCd4j.
+ *
+ * Copyright (c) 2014 Wolf480pl <wolf480@interia.pl>
+ * IRCd4j is licensed under the GNU Lesser General Public License.
+ *
+ * IRCd4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * IRCd4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.wolf480pl.ircd.registry;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.github.wolf480pl.ircd.User;
+
+/*
+ * What PartitionedUserRegistry learned from the partitions: other nodes' holders, and nicks that were free when we asked.
+ * Split into stripes, each an LRU under its own lock, so lookups of different nicks rarely wait for each other.
+ * Entries expire, since other nodes don't tell us when their users change nicks or leave,
+ * and free nicks expire sooner, so someone who just took one elsewhere isn't missed for long.
+ */
+class HolderCache {
+    private final Stripe[] stripes;
+    private final int mask;
+    private final long positiveTtl;
+    private final long negativeTtl;
+
+    // TTLs are in milliseconds, stripeCount must be a power of 2
+    HolderCache(int maxEntries, int stripeCount, long positiveTtl, long negativeTtl) {
+        if (Integer.bitCount(stripeCount) != 1) {
+            throw new IllegalArgumentException("Stripe count must be a power of 2");
+        }
+        this.stripes = new Stripe[stripeCount];
+        for (int i = 0; i < stripeCount; ++i) {
+            stripes[i] = new Stripe(Math.max(1, maxEntries / stripeCount));
+        }
+        this.mask = stripeCount - 1;
+        this.positiveTtl = positiveTtl;
+        this.negativeTtl = negativeTtl;
+    }
+
+    // Keyed by the casemapped nick. null on a miss, an entry without a holder if the nick was free
+    Entry get(String key) {
+        Stripe stripe = stripeFor(key);
+        synchronized (stripe) {
+            Entry entry = stripe.get(key);
+            if (entry != null && entry.expires <= System.currentTimeMillis()) {
+                stripe.remove(key);
+                return null;
+            }
+            return entry;
+        }
+    }
+
+    // user is what the holder was turned into, the one we send to
+    void put(String key, NickHolder holder, User user) {
+        final long ttl = holder == null ? negativeTtl : positiveTtl;
+        Entry entry = new Entry(holder, user, System.currentTimeMillis() + ttl);
+        Stripe stripe = stripeFor(key);
+        synchronized (stripe) {
+            stripe.put(key, entry);
+        }
+    }
+
+    void remove(String key) {
+        Stripe stripe = stripeFor(key);
+        synchronized (stripe) {
+            stripe.remove(key);
+        }
+    }
+
+    int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.size();
+            }
+        }
+        return size;
+    }
+
+    private Stripe stripeFor(String key) {
+        int h = key.hashCode();
+        return stripes[(h ^ (h >>> 16)) & mask];
+    }
+
+    static final class Entry {
+        final NickHolder holder;
+        final User user;
+        final long expires;
+
+        Entry(NickHolder holder, User user, long expires) {
+            this.holder = holder;
+            this.user = user;
+            this.expires = expires;
+        }
+    }
+
+    private static final class Stripe extends LinkedHashMap<String, Entry> {
+        private static final long serialVersionUID = 1L;
+        private final int maxEntries;
+
+        Stripe(int maxEntries) {
+            super(16, 0.75f, true);
+            this.maxEntries = maxEntries;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > maxEntries;
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * This file is part of IRCd4j.
+ *
+ * Copyright (c) 2014 Wolf480pl <wolf480@interia.pl>
+ * IRCd4j is licensed under the GNU Lesser General Public License.
+ *
+ * IRCd4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * IRCd4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.wolf480pl.ircd.registry;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import com.github.wolf480pl.ircd.util.CaseMappedMap;
+import com.github.wolf480pl.ircd.util.SerialExecutor;
+
+/*
+ * Keeps a partition's reservations in the memory of this process.
+ * Handy as a local stand-in for a remote node, e.g. to run a few servers sharing one nick space in one JVM.
+ * Without an executor, batches are applied right away. With one, they're applied there one at a time,
+ * so callers see the same asynchrony they would with a remote node.
+ */
+public class InProcessPartition implements NickPartition {
+    private final String id;
+    private final CaseMappedMap<NickHolder> holders = new CaseMappedMap<>();
+    private final Executor executor;
+
+    public InProcessPartition(String id) {
+        this(id, null);
+    }
+
+    public InProcessPartition(String id, Executor executor) {
+        this.id = id;
+        // Batches have to be applied in order, even on a pool
+        this.executor = executor == null ? null : new SerialExecutor(executor, (t) -> { });
+    }
+
+    @Override
+    public String getId() {
+        return id;
+    }
+
+    @Override
+    public CompletableFuture<List<NickHolder>> apply(List<NickOp> ops) {
+        if (executor == null) {
+            return CompletableFuture.completedFuture(applyNow(ops));
+        }
+        CompletableFuture<List<NickHolder>> future = new CompletableFuture<>();
+        try {
+            executor.execute(() -> {
+                try {
+                    future.complete(applyNow(ops));
+                } catch (RuntimeException e) {
+                    future.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    private List<NickHolder> applyNow(List<NickOp> ops) {
+        List<NickHolder> result = new ArrayList<>(ops.size());
+        for (NickOp op : ops) {
+            String nick = op.getNick();
+            switch (op.getType()) {
+                case RESERVE:
+                    NickHolder existing = holders.putIfAbsent(nick, op.getHolder());
+                    result.add(existing == null ? op.getHolder() : existing);
+                    break;
+                case RELEASE:
+                    // An equal holder, it may not be the same object if it came from elsewhere
+                    NickHolder current = holders.get(nick);
+                    if (op.getHolder().equals(current)) {
+                        holders.remove(nick, current);
+                    }
+                    result.add(holders.get(nick));
+                    break;
+                case LOOKUP:
+                    result.add(holders.get(nick));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown operation: " + op);
+            }
+        }
+        return result;
+    }
+
+    public NickHolder getHolder(String nick) {
+        return holders.get(nick);
+    }
+
+    public int size() {
+        return holders.size();
+    }
+}
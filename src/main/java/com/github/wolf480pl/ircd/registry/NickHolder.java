@@ -0,0 +1,95 @@
+/*
+ * This file is part of IRCd4j.
+ *
+ * Copyright (c) 2014 Wolf480pl <wolf480@interia.pl>
+ * IRCd4j is licensed under the GNU Lesser General Public License.
+ *
+ * IRCd4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * IRCd4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.wolf480pl.ircd.registry;
+
+import java.io.Serializable;
+
+/*
+ * Who holds a nick: the node they're on, and enough about them to talk to them through that node.
+ * It's what partitions keep and hand out, so it's plain data that can go to another process.
+ * Reservations of the same nick are told apart by their node, id and timestamp, see equals().
+ */
+public final class NickHolder implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final String nick;
+    private final String node;
+    // Unique among the reservations made through that node
+    private final long id;
+    // When it was reserved, in milliseconds
+    private final long timestamp;
+    private final String username;
+    private final String hostname;
+
+    public NickHolder(String nick, String node, long id, long timestamp, String username, String hostname) {
+        this.nick = nick;
+        this.node = node;
+        this.id = id;
+        this.timestamp = timestamp;
+        this.username = username;
+        this.hostname = hostname;
+    }
+
+    public String getNick() {
+        return nick;
+    }
+
+    public String getNode() {
+        return node;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public String getHostname() {
+        return hostname;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof NickHolder)) {
+            return false;
+        }
+        NickHolder other = (NickHolder) obj;
+        return id == other.id && timestamp == other.timestamp && node.equals(other.node);
+    }
+
+    @Override
+    public int hashCode() {
+        return (node.hashCode() * 31 + Long.hashCode(id)) * 31 + Long.hashCode(timestamp);
+    }
+
+    @Override
+    public String toString() {
+        return nick + " on " + node;
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * This file is part of IRCd4j.
+ *
+ * Copyright (c) 2014 Wolf480pl <wolf480@interia.pl>
+ * IRCd4j is licensed under the GNU Lesser General Public License.
+ *
+ * IRCd4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * IRCd4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.wolf480pl.ircd.registry;
+
+// One operation on a nick's reservation, see NickPartition
+public final class NickOp {
+    public enum Type {
+        RESERVE, RELEASE, LOOKUP
+    }
+
+    private final Type type;
+    private final String nick;
+    private final NickHolder holder;
+
+    private NickOp(Type type, String nick, NickHolder holder) {
+        this.type = type;
+        this.nick = nick;
+        this.holder = holder;
+    }
+
+    // Takes the nick for the holder, unless someone else holds it
+    public static NickOp reserve(NickHolder holder) {
+        return new NickOp(Type.RESERVE, holder.getNick(), holder);
+    }
+
+    // Frees the nick, if it's still held by that reservation
+    public static NickOp release(NickHolder holder) {
+        return new NickOp(Type.RELEASE, holder.getNick(), holder);
+    }
+
+    public static NickOp lookup(String nick) {
+        return new NickOp(Type.LOOKUP, nick, null);
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public String getNick() {
+        return nick;
+    }
+
+    public NickHolder getHolder() {
+        return holder;
+    }
+
+    @Override
+    public String toString() {
+        return type + " " + nick;
+    }
+}
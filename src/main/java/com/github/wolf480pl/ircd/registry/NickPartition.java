@@ -0,0 +1,40 @@
+/*
+ * This file is part of IRCd4j.
+ *
+ * Copyright (c) 2014 Wolf480pl <wolf480@interia.pl>
+ * IRCd4j is licensed under the GNU Lesser General Public License.
+ *
+ * IRCd4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * IRCd4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.wolf480pl.ircd.registry;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/*
+ * The node holding the reservations of a share of the nick space, see PartitionedUserRegistry.
+ * It's usually another process, so everything goes in batches.
+ */
+public interface NickPartition {
+
+    // Where the partition lands on the hash ring, so it has to be the same on every node
+    String getId();
+
+    /*
+     * Applies the operations in order, and completes with the holder of each one's nick right after it,
+     * or null where the nick is free. So a reservation went through if its nick ends up held by an equal holder.
+     * Batches must be applied in the order they're passed in, even if earlier ones haven't completed yet.
+     */
+    CompletableFuture<List<NickHolder>> apply(List<NickOp> ops);
+}
@@ -0,0 +1,120 @@
+/*
+ * This file is part of IRCd4j.
+ *
+ * Copyright (c) 2014 Wolf480pl <wolf480@interia.pl>
+ * IRCd4j is licensed under the GNU Lesser General Public License.
+ *
+ * IRCd4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * IRCd4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.wolf480pl.ircd.registry;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Queues up operations for one partition and sends them in batches.
+ * A batch goes out as soon as there's room in the pipeline, without waiting for the ones before it to complete,
+ * and whatever queues up in the meantime goes in the next one. So batches get bigger as the partition gets slower.
+ */
+class PartitionBatcher {
+    private final NickPartition partition;
+    private final int maxBatch;
+    private final int maxInFlight;
+    private final Queue<Pending> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger inFlight = new AtomicInteger(0);
+    // Only one thread sends at a time, or batches could reach the partition out of order
+    private final AtomicBoolean sending = new AtomicBoolean(false);
+
+    PartitionBatcher(NickPartition partition, int maxBatch, int maxInFlight) {
+        this.partition = partition;
+        this.maxBatch = maxBatch;
+        this.maxInFlight = maxInFlight;
+    }
+
+    NickPartition getPartition() {
+        return partition;
+    }
+
+    // Completes with the holder of the nick right after the operation, see NickPartition.apply
+    CompletableFuture<NickHolder> submit(NickOp op) {
+        Pending pending = new Pending(op);
+        queue.add(pending);
+        send();
+        return pending.result;
+    }
+
+    private void send() {
+        while (sending.compareAndSet(false, true)) {
+            try {
+                while (!queue.isEmpty() && inFlight.get() < maxInFlight) {
+                    sendBatch();
+                }
+            } finally {
+                sending.set(false);
+            }
+            // Something may have been queued or completed after we last looked, but before we let go
+            if (queue.isEmpty() || inFlight.get() >= maxInFlight) {
+                return;
+            }
+        }
+    }
+
+    private void sendBatch() {
+        List<Pending> batch = new ArrayList<>(Math.min(maxBatch, 16));
+        Pending pending;
+        while (batch.size() < maxBatch && (pending = queue.poll()) != null) {
+            batch.add(pending);
+        }
+        List<NickOp> ops = new ArrayList<>(batch.size());
+        for (Pending p : batch) {
+            ops.add(p.op);
+        }
+        inFlight.incrementAndGet();
+        CompletableFuture<List<NickHolder>> future;
+        try {
+            future = partition.apply(ops);
+        } catch (RuntimeException e) {
+            future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+        }
+        future.whenComplete((holders, t) -> {
+            inFlight.decrementAndGet();
+            for (int i = 0; i < batch.size(); ++i) {
+                CompletableFuture<NickHolder> result = batch.get(i).result;
+                if (t != null) {
+                    result.completeExceptionally(t);
+                } else if (holders.size() <= i) {
+                    result.completeExceptionally(new IllegalStateException("Partition " + partition.getId() + " returned " + holders.size() + " results for " + batch.size() + " operations"));
+                } else {
+                    result.complete(holders.get(i));
+                }
+            }
+            send();
+        });
+    }
+
+    private static class Pending {
+        final NickOp op;
+        final CompletableFuture<NickHolder> result = new CompletableFuture<>();
+
+        Pending(NickOp op) {
+            this.op = op;
+        }
+    }
+}
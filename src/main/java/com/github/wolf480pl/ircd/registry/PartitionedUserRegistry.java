@@ -0,0 +1,290 @@
+/*
+ * This file is part of IRCd4j.
+ *
+ * Copyright (c) 2014 Wolf480pl <wolf480@interia.pl>
+ * IRCd4j is licensed under the GNU Lesser General Public License.
+ *
+ * IRCd4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * IRCd4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.wolf480pl.ircd.registry;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.wolf480pl.ircd.NicknameInUseException;
+import com.github.wolf480pl.ircd.User;
+import com.github.wolf480pl.ircd.UserRegistry;
+import com.github.wolf480pl.ircd.util.AttributeKey;
+import com.github.wolf480pl.ircd.util.CaseMappedMap;
+import com.github.wolf480pl.ircd.util.CaseMapping;
+
+/*
+ * Shares one nick space between nodes. Each casemapped nick belongs to one partition, picked by consistent hashing,
+ * and taking the nick means reserving it there. Operations for a partition are pipelined in batches, see PartitionBatcher.
+ * Partitions only keep NickHolders, i.e. which node has the nick, so they can be other processes.
+ *
+ * Users that registered through this node are kept here, so getUser finds them without asking anyone.
+ * For anyone else we ask the nick's partition, and the Router turns the holder it gives us into a user
+ * that's reached through the links to its node. That takes a while, so getUser only answers from the cache
+ * (starting a lookup on a miss), and whoever can wait uses lookup() instead.
+ * Holders and free nicks are cached for a while, see HolderCache.
+ *
+ * Meant for nodes that share their users this way instead of bursting them over server links.
+ */
+public class PartitionedUserRegistry implements UserRegistry {
+    private static final Logger logger = LoggerFactory.getLogger(PartitionedUserRegistry.class);
+    public static final int DEFAULT_MAX_BATCH = 256;
+    public static final int DEFAULT_MAX_IN_FLIGHT = 4;
+    public static final int DEFAULT_CACHE_SIZE = 65536;
+    public static final int DEFAULT_CACHE_STRIPES = 16;
+    public static final long DEFAULT_POSITIVE_TTL = TimeUnit.SECONDS.toMillis(10);
+    public static final long DEFAULT_NEGATIVE_TTL = TimeUnit.SECONDS.toMillis(1);
+    private static final AttributeKey<AtomicReference<NickHolder>> ATTR_HOLDER = AttributeKey.valueOf(PartitionedUserRegistry.class.getCanonicalName() + ".holder");
+    private static final Supplier<AtomicReference<NickHolder>> makeRef = AtomicReference::new;
+
+    private final String node;
+    private final HashRing<PartitionBatcher> ring;
+    private final CaseMappedMap<User> local = new CaseMappedMap<>();
+    private final HolderCache cache;
+    // Keyed by the casemapped nick
+    private final ConcurrentMap<String, CompletableFuture<User>> pending = new ConcurrentHashMap<>();
+    private final AtomicLong ids = new AtomicLong();
+    private volatile Router router;
+
+    // node is what other nodes know us by, e.g. the server name
+    public PartitionedUserRegistry(String node, List<? extends NickPartition> partitions) {
+        this(node, partitions, HashRing.DEFAULT_POINTS, DEFAULT_MAX_BATCH, DEFAULT_MAX_IN_FLIGHT, DEFAULT_CACHE_SIZE, DEFAULT_POSITIVE_TTL, DEFAULT_NEGATIVE_TTL);
+    }
+
+    // maxInFlight is how many batches can be waiting for each partition at once, TTLs are in milliseconds
+    public PartitionedUserRegistry(String node, List<? extends NickPartition> partitions, int pointsPerPartition, int maxBatch, int maxInFlight, int cacheSize,
+            long positiveTtl, long negativeTtl) {
+        List<PartitionBatcher> batchers = new ArrayList<>(partitions.size());
+        for (NickPartition partition : partitions) {
+            batchers.add(new PartitionBatcher(partition, maxBatch, maxInFlight));
+        }
+        this.node = node;
+        this.ring = new HashRing<>(batchers, (b) -> b.getPartition().getId(), pointsPerPartition);
+        this.cache = new HolderCache(cacheSize, DEFAULT_CACHE_STRIPES, positiveTtl, negativeTtl);
+    }
+
+    // Until there's one, users of other nodes can't be found
+    public void setRouter(Router router) {
+        this.router = router;
+    }
+
+    @Override
+    public boolean isShared() {
+        return true;
+    }
+
+    @Override
+    public User getUser(String nick) {
+        User user = local.get(nick);
+        if (user != null) {
+            return user;
+        }
+        final String key = CaseMapping.toLowerCase(nick);
+        HolderCache.Entry entry = cached(key);
+        if (entry != null) {
+            return entry.user;
+        }
+        // So that it's there next time
+        fetch(nick, key);
+        return null;
+    }
+
+    @Override
+    public CompletableFuture<User> lookup(String nick) {
+        User user = local.get(nick);
+        if (user != null) {
+            return CompletableFuture.completedFuture(user);
+        }
+        final String key = CaseMapping.toLowerCase(nick);
+        HolderCache.Entry entry = cached(key);
+        if (entry != null) {
+            return CompletableFuture.completedFuture(entry.user);
+        }
+        return fetch(nick, key);
+    }
+
+    // Drops it if its node can't be reached anymore
+    private HolderCache.Entry cached(String key) {
+        HolderCache.Entry entry = cache.get(key);
+        if (entry == null || entry.user == null) {
+            return entry;
+        }
+        Router r = router;
+        if (r != null && r.isReachable(entry.user)) {
+            return entry;
+        }
+        cache.remove(key);
+        return null;
+    }
+
+    private CompletableFuture<User> fetch(String nick, String key) {
+        // Lookups of the same nick at the same time share one trip
+        CompletableFuture<User> future = new CompletableFuture<>();
+        CompletableFuture<User> existing = pending.putIfAbsent(key, future);
+        if (existing != null) {
+            return existing;
+        }
+        batcherFor(nick).submit(NickOp.lookup(nick)).whenComplete((holder, t) -> {
+            User user = null;
+            if (t == null) {
+                user = userOf(holder);
+                // Ours are in local, and if it's not there, it's on its way in or out
+                if (holder == null || (user != null && !node.equals(holder.getNode()))) {
+                    cache.put(key, holder, user);
+                }
+            }
+            pending.remove(key, future);
+            if (t != null) {
+                future.completeExceptionally(t);
+            } else {
+                future.complete(user);
+            }
+        });
+        return future;
+    }
+
+    private User userOf(NickHolder holder) {
+        if (holder == null) {
+            return null;
+        }
+        if (node.equals(holder.getNode())) {
+            return local.get(holder.getNick());
+        }
+        Router r = router;
+        return r == null ? null : r.userOn(holder);
+    }
+
+    @Override
+    public CompletableFuture<Void> register(User user) {
+        final String nick = user.getNick();
+        final NickHolder holder = newHolder(nick, user);
+        return batcherFor(nick).submit(NickOp.reserve(holder)).thenApply((current) -> {
+            if (!holder.equals(current)) {
+                throw new CompletionException(new NicknameInUseException(nick));
+            }
+            if (user.isQuitted()) {
+                // Left while we were waiting, and unregister didn't find the nick to release yet
+                release(holder);
+            } else {
+                user.attr(ATTR_HOLDER, makeRef).set(holder);
+                local.putIfAbsent(nick, user);
+                invalidate(nick);
+            }
+            return null;
+        });
+    }
+
+    @Override
+    public CompletableFuture<String> changeNick(User user, String newNick) {
+        final String oldNick = user.getNick();
+        if (oldNick != null && CaseMapping.equals(oldNick, newNick)) {
+            // Only the case changes, so it's the same reservation, other nodes keep seeing the old case until it's renewed
+            local.replace(newNick, user, user);
+            return CompletableFuture.completedFuture(newNick);
+        }
+        final NickHolder holder = newHolder(newNick, user);
+        return batcherFor(newNick).submit(NickOp.reserve(holder)).thenApply((current) -> {
+            if (!holder.equals(current)) {
+                return null;
+            }
+            if (user.isQuitted()) {
+                release(holder);
+                return null;
+            }
+            NickHolder old = user.attr(ATTR_HOLDER, makeRef).getAndSet(holder);
+            local.putIfAbsent(newNick, user);
+            invalidate(newNick);
+            if (oldNick != null) {
+                local.remove(oldNick, user);
+                if (old != null) {
+                    release(old);
+                }
+            }
+            return newNick;
+        });
+    }
+
+    @Override
+    public void unregister(User user) {
+        String nick = user.getNick();
+        if (nick != null && local.remove(nick, user)) {
+            AtomicReference<NickHolder> holder = user.attr(ATTR_HOLDER);
+            if (holder != null && holder.get() != null) {
+                release(holder.get());
+            }
+        }
+    }
+
+    private NickHolder newHolder(String nick, User user) {
+        return new NickHolder(nick, node, ids.incrementAndGet(), System.currentTimeMillis(), user.getUsername(), user.getHostname());
+    }
+
+    private void release(NickHolder holder) {
+        batcherFor(holder.getNick()).submit(NickOp.release(holder)).whenComplete((current, t) -> {
+            if (t != null) {
+                // Stays taken until the partition finds out some other way
+                logger.warn("Couldn't release nick " + holder.getNick(), t);
+            }
+        });
+    }
+
+    public void invalidate(String nick) {
+        cache.remove(CaseMapping.toLowerCase(nick));
+    }
+
+    private PartitionBatcher batcherFor(String nick) {
+        return ring.get(nick);
+    }
+
+    public String getNode() {
+        return node;
+    }
+
+    // Users registered through this node
+    public int size() {
+        return local.size();
+    }
+
+    public int cacheSize() {
+        return cache.size();
+    }
+
+    /*
+     * Reaches the users of other nodes, e.g. through server links.
+     * Called from whatever thread a partition answers on.
+     */
+    public static interface Router {
+        // Someone we can send to on behalf of the holder, null if its node can't be reached
+        User userOn(NickHolder holder);
+
+        // Whether a user we got from userOn() still can be
+        boolean isReachable(User user);
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * This file is part of IRCd4j.
+ *
+ * Copyright (c) 2014 Wolf480pl <wolf480@interia.pl>
+ * IRCd4j is licensed under the GNU Lesser General Public License.
+ *
+ * IRCd4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * IRCd4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.wolf480pl.ircd.store;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.wolf480pl.ircd.IRCChannel;
+import com.github.wolf480pl.ircd.util.CaseMapping;
+
+/*
+ * Keeps channel topics in a LogStore under "topic:" and the casemapped channel name,
+ * so a channel gets its topic back when it's created again, even after a restart.
+ */
+public class ChannelTopics {
+    private static final Logger logger = LoggerFactory.getLogger(ChannelTopics.class);
+    private static final String PREFIX = "topic:";
+
+    private final LogStore store;
+
+    public ChannelTopics(LogStore store) {
+        this.store = store;
+    }
+
+    public void restore(IRCChannel channel) {
+        byte[] value = store.get(keyOf(channel.getName()));
+        if (value == null) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(value))) {
+            long setAt = in.readLong();
+            String setBy = in.readUTF();
+            String text = in.readUTF();
+            channel.setTopic(new IRCChannel.Topic(text, setBy, setAt));
+        } catch (IOException e) {
+            logger.warn("Bad stored topic of " + channel.getName(), e);
+        }
+    }
+
+    // Doesn't wait for it to be durable, losing the last few topic changes on a crash is fine
+    public void save(IRCChannel channel) {
+        final String key = keyOf(channel.getName());
+        IRCChannel.Topic topic = channel.getTopic();
+        if (topic == null) {
+            store.remove(key).whenComplete((ignored, t) -> logFailure(channel, t));
+            return;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 + topic.getText().length());
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeLong(topic.getSetAt());
+            out.writeUTF(topic.getSetBy());
+            out.writeUTF(topic.getText());
+        } catch (IOException e) {
+            // Not from a ByteArrayOutputStream
+            throw new IllegalStateException(e);
+        }
+        store.put(key, bytes.toByteArray()).whenComplete((ignored, t) -> logFailure(channel, t));
+    }
+
+    private static void logFailure(IRCChannel channel, Throwable t) {
+        if (t != null) {
+            logger.warn("Couldn't store the topic of " + channel.getName(), t);
+        }
+    }
+
+    private static String keyOf(String channel) {
+        return PREFIX + CaseMapping.toLowerCase(channel);
+    }
+}
@@ -0,0 +1,567 @@
+/*
+ * This file is part of IRCd4j.
+ *
+ * Copyright (c) 2014 Wolf480pl <wolf480@interia.pl>
+ * IRCd4j is licensed under the GNU Lesser General Public License.
+ *
+ * IRCd4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * IRCd4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.wolf480pl.ircd.store;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * A small embedded key-value store. Every put and remove is appended as a checksummed record to a log
+ * of memory-mapped segment files, and the latest value of every key is kept in memory, so reads never touch the disk.
+ *
+ * Record: int length of the body, int CRC32 of the body, then the body: byte op, unsigned short key length,
+ * the key in UTF-8, and the value (the rest). A zero length marks the end of what's been written to a segment.
+ *
+ * Segments are named first-last.log after the range of segment numbers they hold. Once a segment fills up,
+ * a new one is started, and when more than half of the sealed ones is overwritten or removed records,
+ * they're rewritten in the background into one that holds only the latest records, named after the whole range.
+ * On startup all segments are scanned in order, skipping any that a finished compaction already covers,
+ * and a segment's scan stops at the first record that's torn or doesn't match its checksum.
+ *
+ * Writes complete their future once they're durable according to syncInterval: 0 forces the active segment
+ * as soon as possible, with one force for all the writes made in the meantime, more than 0 forces it that often
+ * (in milliseconds), and less than 0 leaves it to the OS and completes right away.
+ */
+public class LogStore implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(LogStore.class);
+    public static final int DEFAULT_SEGMENT_SIZE = 4 << 20;
+    public static final long DEFAULT_SYNC_INTERVAL = 0;
+
+    private static final int HEADER_SIZE = 8;
+    private static final int OP_PUT = 1;
+    private static final int OP_REMOVE = 2;
+    private static final int MAX_KEY_LENGTH = 0xffff;
+    private static final Pattern SEGMENT_NAME = Pattern.compile("(\\d+)-(\\d+)\\.log");
+    private static final CompletableFuture<Void> DONE = CompletableFuture.completedFuture(null);
+
+    private final Path dir;
+    private final int segmentSize;
+    private final long syncInterval;
+    private final Map<String, Entry> index = new ConcurrentHashMap<>();
+    // The rest is guarded by this
+    private final List<Segment> sealed = new ArrayList<>();
+    private Segment active;
+    private long nextSegment;
+    private long appended = 0;
+    private boolean closed = false;
+    private final Queue<PendingSync> pendingSyncs = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean syncScheduled = new AtomicBoolean(false);
+    private final AtomicBoolean compacting = new AtomicBoolean(false);
+    private final ScheduledExecutorService syncer;
+    // Separate, so a compaction doesn't hold up syncs
+    private final ExecutorService compactor;
+    private final Runnable syncTask = this::sync;
+    // Completing the pending syncs from two threads at once could complete one that isn't covered yet
+    private final Object syncLock = new Object();
+
+    private LogStore(Path dir, int segmentSize, long syncInterval) {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.syncInterval = syncInterval;
+        this.syncer = Executors.newSingleThreadScheduledExecutor((r) -> daemon(r, "store-sync"));
+        this.compactor = Executors.newSingleThreadExecutor((r) -> daemon(r, "store-compact"));
+    }
+
+    public static LogStore open(Path dir) throws IOException {
+        return open(dir, DEFAULT_SEGMENT_SIZE, DEFAULT_SYNC_INTERVAL);
+    }
+
+    public static LogStore open(Path dir, int segmentSize, long syncInterval) throws IOException {
+        if (segmentSize < 1024) {
+            throw new IllegalArgumentException("Segment size too small: " + segmentSize);
+        }
+        Files.createDirectories(dir);
+        LogStore store = new LogStore(dir, segmentSize, syncInterval);
+        try {
+            store.recover();
+        } catch (IOException | RuntimeException e) {
+            store.syncer.shutdown();
+            store.compactor.shutdown();
+            throw e;
+        }
+        if (syncInterval > 0) {
+            store.syncer.scheduleWithFixedDelay(store.syncTask, syncInterval, syncInterval, TimeUnit.MILLISECONDS);
+        }
+        store.maybeCompact();
+        return store;
+    }
+
+    // The array is shared, don't modify it
+    public byte[] get(String key) {
+        Entry entry = index.get(key);
+        return entry == null ? null : entry.value;
+    }
+
+    public boolean containsKey(String key) {
+        return index.containsKey(key);
+    }
+
+    // Weakly consistent
+    public void forEach(BiConsumer<String, byte[]> action) {
+        index.forEach((key, entry) -> action.accept(key, entry.value));
+    }
+
+    public int size() {
+        return index.size();
+    }
+
+    // The value is stored as it is, so it mustn't be modified afterwards
+    public CompletableFuture<Void> put(String key, byte[] value) {
+        byte[] record = encode(OP_PUT, key, value);
+        PendingSync pending;
+        synchronized (this) {
+            Segment segment;
+            try {
+                segment = append(record);
+            } catch (IOException | RuntimeException e) {
+                return failed(e);
+            }
+            Entry old = index.put(key, new Entry(value, segment, record.length));
+            if (old != null) {
+                old.segment.live -= old.size;
+            }
+            segment.live += record.length;
+            pending = afterAppend();
+        }
+        return synced(pending);
+    }
+
+    public CompletableFuture<Void> remove(String key) {
+        byte[] record = encode(OP_REMOVE, key, null);
+        PendingSync pending;
+        synchronized (this) {
+            if (!index.containsKey(key)) {
+                return DONE;
+            }
+            try {
+                append(record);
+            } catch (IOException | RuntimeException e) {
+                return failed(e);
+            }
+            Entry old = index.remove(key);
+            old.segment.live -= old.size;
+            pending = afterAppend();
+        }
+        return synced(pending);
+    }
+
+    // Forces whatever's been written so far
+    public void flush() {
+        sync();
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        syncer.shutdown();
+        compactor.shutdown();
+        try {
+            compactor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        sync();
+    }
+
+    private Segment append(byte[] record) throws IOException {
+        if (closed) {
+            throw new IllegalStateException("Store is closed");
+        }
+        if (record.length > segmentSize) {
+            throw new IllegalArgumentException("Record doesn't fit in a segment: " + record.length + " bytes");
+        }
+        if (active.map.remaining() < record.length) {
+            roll();
+        }
+        active.map.put(record);
+        active.size += record.length;
+        return active;
+    }
+
+    private PendingSync afterAppend() {
+        ++appended;
+        if (syncInterval < 0) {
+            return null;
+        }
+        // Added in order of appended, so sync can stop at the first one it hasn't covered
+        PendingSync pending = new PendingSync(appended);
+        pendingSyncs.add(pending);
+        return pending;
+    }
+
+    private CompletableFuture<Void> synced(PendingSync pending) {
+        if (pending == null) {
+            return DONE;
+        }
+        if (syncInterval == 0 && syncScheduled.compareAndSet(false, true)) {
+            try {
+                syncer.execute(syncTask);
+            } catch (RuntimeException e) {
+                // Shut down, close() syncs on its way out
+                syncScheduled.set(false);
+            }
+        }
+        return pending.future;
+    }
+
+    private void sync() {
+        syncScheduled.set(false);
+        synchronized (syncLock) {
+            MappedByteBuffer map;
+            long upTo;
+            synchronized (this) {
+                map = active.map;
+                upTo = appended;
+            }
+            // Anything in earlier segments was forced when they were sealed
+            map.force();
+            PendingSync pending;
+            while ((pending = pendingSyncs.peek()) != null && pending.seq <= upTo) {
+                pendingSyncs.poll();
+                pending.future.complete(null);
+            }
+        }
+    }
+
+    // Seals the active segment and starts a new one. Forces the old one here, which only happens once a segment
+    private void roll() throws IOException {
+        Segment old = active;
+        Segment fresh = create(nextSegment);
+        ++nextSegment;
+        old.map.force();
+        old.map = null;
+        sealed.add(old);
+        active = fresh;
+        maybeCompact();
+    }
+
+    private Segment create(long number) throws IOException {
+        Path path = dir.resolve(nameOf(number, number));
+        Segment segment = new Segment(number, number, path);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // The file grows to the full size, zero-filled, which is what marks the end of the records
+            segment.map = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        }
+        return segment;
+    }
+
+    private void maybeCompact() {
+        long total = 0;
+        long live = 0;
+        synchronized (this) {
+            for (Segment segment : sealed) {
+                total += segment.size;
+                live += segment.live;
+            }
+        }
+        if (total > 0 && (total - live) * 2 > total && compacting.compareAndSet(false, true)) {
+            try {
+                compactor.execute(() -> {
+                    try {
+                        compact();
+                    } catch (IOException | RuntimeException e) {
+                        logger.warn("Compaction failed", e);
+                    } finally {
+                        compacting.set(false);
+                    }
+                });
+            } catch (RuntimeException e) {
+                compacting.set(false);
+            }
+        }
+    }
+
+    /*
+     * Rewrites all the sealed segments into one that holds only the records that are still the latest for their key.
+     * It covers everything before the active segment, so it doesn't need to keep any removals.
+     * Writes that come in meanwhile go to the active segment, which is replayed after it.
+     */
+    private void compact() throws IOException {
+        List<Segment> inputs;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            inputs = new ArrayList<>(sealed);
+        }
+        if (inputs.isEmpty()) {
+            return;
+        }
+        Set<Segment> inputSet = Collections.newSetFromMap(new IdentityHashMap<>());
+        inputSet.addAll(inputs);
+        List<String> keys = new ArrayList<>();
+        List<Entry> entries = new ArrayList<>();
+        int size = 0;
+        for (Map.Entry<String, Entry> e : index.entrySet()) {
+            if (inputSet.contains(e.getValue().segment)) {
+                keys.add(e.getKey());
+                entries.add(e.getValue());
+                size += e.getValue().size;
+            }
+        }
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        for (int i = 0; i < keys.size(); ++i) {
+            buf.put(encode(OP_PUT, keys.get(i), entries.get(i).value));
+        }
+        buf.flip();
+
+        final long first = inputs.get(0).first;
+        final long last = inputs.get(inputs.size() - 1).last;
+        Path target = dir.resolve(nameOf(first, last));
+        Path tmp = dir.resolve(nameOf(first, last) + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while (buf.hasRemaining()) {
+                channel.write(buf);
+            }
+            channel.force(true);
+        }
+        // From here on, recovery prefers it to the segments it covers
+        Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+        Segment output = new Segment(first, last, target);
+        output.size = size;
+        synchronized (this) {
+            for (int i = 0; i < keys.size(); ++i) {
+                Entry entry = entries.get(i);
+                // Those that were overwritten or removed meanwhile are dead in the output too
+                if (index.replace(keys.get(i), entry, new Entry(entry.value, output, entry.size))) {
+                    output.live += entry.size;
+                }
+            }
+            sealed.removeAll(inputs);
+            sealed.add(0, output);
+        }
+        for (Segment segment : inputs) {
+            if (!segment.path.equals(target)) {
+                Files.deleteIfExists(segment.path);
+            }
+        }
+        logger.debug("Compacted {} segments into {}, {} live records", inputs.size(), target.getFileName(), keys.size());
+    }
+
+    private void recover() throws IOException {
+        List<Segment> found = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path path : files) {
+                String name = path.getFileName().toString();
+                if (name.endsWith(".log.tmp")) {
+                    // A compaction that didn't finish
+                    Files.delete(path);
+                    continue;
+                }
+                Matcher m = SEGMENT_NAME.matcher(name);
+                if (m.matches()) {
+                    found.add(new Segment(Long.parseLong(m.group(1)), Long.parseLong(m.group(2)), path));
+                }
+            }
+        }
+        // A compaction that got renamed in place, but didn't get to delete what it covers
+        List<Segment> segments = new ArrayList<>();
+        for (Segment segment : found) {
+            boolean covered = false;
+            for (Segment other : found) {
+                if (other != segment && other.first <= segment.first && other.last >= segment.last
+                        && (other.first < segment.first || other.last > segment.last)) {
+                    covered = true;
+                    break;
+                }
+            }
+            if (covered) {
+                Files.delete(segment.path);
+            } else {
+                segments.add(segment);
+            }
+        }
+        segments.sort((a, b) -> Long.compare(a.first, b.first));
+
+        long next = 0;
+        for (Segment segment : segments) {
+            scan(segment);
+            sealed.add(segment);
+            next = Math.max(next, segment.last + 1);
+        }
+        // Never append to a recovered segment, its tail may be torn
+        active = create(next);
+        nextSegment = next + 1;
+        if (!segments.isEmpty()) {
+            logger.info("Recovered {} keys from {} segments in {}", index.size(), segments.size(), dir);
+        }
+    }
+
+    private void scan(Segment segment) throws IOException {
+        MappedByteBuffer map;
+        try (FileChannel channel = FileChannel.open(segment.path, StandardOpenOption.READ)) {
+            map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        CRC32 crc = new CRC32();
+        int pos = 0;
+        final int limit = map.limit();
+        while (pos + HEADER_SIZE <= limit) {
+            final int length = map.getInt(pos);
+            if (length == 0) {
+                break;
+            }
+            if (length < 3 || length > limit - pos - HEADER_SIZE) {
+                logger.warn("Torn record at {} in {}, ignoring the rest of it", pos, segment.path);
+                break;
+            }
+            ByteBuffer body = map.duplicate();
+            body.position(pos + HEADER_SIZE).limit(pos + HEADER_SIZE + length);
+            crc.reset();
+            crc.update(body.slice());
+            if ((int) crc.getValue() != map.getInt(pos + 4)) {
+                logger.warn("Bad checksum at {} in {}, ignoring the rest of it", pos, segment.path);
+                break;
+            }
+            final int op = body.get();
+            final int keyLength = body.getShort() & 0xffff;
+            if (keyLength > body.remaining()) {
+                logger.warn("Bad key length at {} in {}, ignoring the rest of it", pos, segment.path);
+                break;
+            }
+            byte[] keyBytes = new byte[keyLength];
+            body.get(keyBytes);
+            String key = new String(keyBytes, StandardCharsets.UTF_8);
+            final int size = HEADER_SIZE + length;
+            Entry old;
+            if (op == OP_PUT) {
+                byte[] value = new byte[body.remaining()];
+                body.get(value);
+                old = index.put(key, new Entry(value, segment, size));
+                segment.live += size;
+            } else {
+                old = index.remove(key);
+            }
+            if (old != null) {
+                old.segment.live -= old.size;
+            }
+            pos += size;
+        }
+        segment.size = pos;
+    }
+
+    private static byte[] encode(int op, String key, byte[] value) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        if (keyBytes.length > MAX_KEY_LENGTH) {
+            throw new IllegalArgumentException("Key too long: " + keyBytes.length + " bytes");
+        }
+        final int length = 3 + keyBytes.length + (value == null ? 0 : value.length);
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE + length);
+        buf.putInt(length).putInt(0);
+        buf.put((byte) op).putShort((short) keyBytes.length).put(keyBytes);
+        if (value != null) {
+            buf.put(value);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buf.array(), HEADER_SIZE, length);
+        buf.putInt(4, (int) crc.getValue());
+        return buf.array();
+    }
+
+    private CompletableFuture<Void> failed(Throwable t) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        future.completeExceptionally(t);
+        return future;
+    }
+
+    private static String nameOf(long first, long last) {
+        return String.format("%010d-%010d.log", first, last);
+    }
+
+    private static Thread daemon(Runnable r, String name) {
+        Thread t = new Thread(r, name);
+        t.setDaemon(true);
+        return t;
+    }
+
+    private static final class Segment {
+        final long first;
+        final long last;
+        final Path path;
+        // Only while it's the active one
+        MappedByteBuffer map;
+        int size;
+        // Bytes of the records in here that are still the latest for their key
+        long live;
+
+        Segment(long first, long last, Path path) {
+            this.first = first;
+            this.last = last;
+            this.path = path;
+        }
+    }
+
+    private static final class Entry {
+        final byte[] value;
+        final Segment segment;
+        final int size;
+
+        Entry(byte[] value, Segment segment, int size) {
+            this.value = value;
+            this.segment = segment;
+            this.size = size;
+        }
+    }
+
+    private static final class PendingSync {
+        final long seq;
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        PendingSync(long seq) {
+            this.seq = seq;
+        }
+    }
+}
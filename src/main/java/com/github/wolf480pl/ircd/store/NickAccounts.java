@@ -0,0 +1,252 @@
+/*
+ * This file is part of IRCd4j.
+ *
+ * Copyright (c) 2014 Wolf480pl <wolf480@interia.pl>
+ * IRCd4j is licensed under the GNU Lesser General Public License.
+ *
+ * IRCd4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * IRCd4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.wolf480pl.ircd.store;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+import com.github.wolf480pl.ircd.DropMessageException;
+import com.github.wolf480pl.ircd.NicknameInUseException;
+import com.github.wolf480pl.ircd.User;
+import com.github.wolf480pl.ircd.UserRegistry;
+import com.github.wolf480pl.ircd.util.AttributeKey;
+import com.github.wolf480pl.ircd.util.CaseMapping;
+
+/*
+ * Registered nicks, services-style: a registered nick can only be taken by someone who identified for it.
+ * Kept in a LogStore under "nick:" and the casemapped nick, with a salted PBKDF2 hash of the password.
+ * The hashing is slow on purpose, so it runs on threads of our own, and a nick someone keeps failing
+ * to identify for is locked for a while, longer after every further failure.
+ */
+public class NickAccounts {
+    private static final String PREFIX = "nick:";
+    private static final AttributeKey<AtomicReference<String>> ATTR_IDENTIFIED = AttributeKey.valueOf(NickAccounts.class.getCanonicalName() + ".identified");
+    private static final Supplier<AtomicReference<String>> makeRef = AtomicReference::new;
+
+    private static final int VERSION = 1;
+    private static final int SALT_LENGTH = 16;
+    private static final int HASH_LENGTH = 32;
+    private static final int ITERATIONS = 4096;
+
+    public static final int DEFAULT_THREADS = 2;
+    public static final int FREE_FAILURES = 3;
+    public static final long BASE_LOCKOUT = TimeUnit.SECONDS.toMillis(2);
+    public static final long MAX_LOCKOUT = TimeUnit.MINUTES.toMillis(10);
+
+    private final LogStore store;
+    private final Executor hasher;
+    private final SecureRandom random = new SecureRandom();
+    // Keyed like the store, only registered nicks get here
+    private final ConcurrentMap<String, Failures> failures = new ConcurrentHashMap<>();
+
+    public NickAccounts(LogStore store) {
+        this(store, newExecutor(DEFAULT_THREADS));
+    }
+
+    public NickAccounts(LogStore store, Executor hasher) {
+        this.store = store;
+        this.hasher = hasher;
+    }
+
+    // Only looks at memory, so it's fine on every NICK
+    public boolean isRegistered(CharSequence nick) {
+        return store.containsKey(keyOf(nick));
+    }
+
+    // Completes with false if the nick is registered already, and with true once the registration is durable
+    public CompletableFuture<Boolean> register(String nick, String password) {
+        final String key = keyOf(nick);
+        if (store.containsKey(key)) {
+            return CompletableFuture.completedFuture(false);
+        }
+        return CompletableFuture.supplyAsync(() -> {
+            byte[] salt = new byte[SALT_LENGTH];
+            random.nextBytes(salt);
+            ByteBuffer value = ByteBuffer.allocate(1 + 8 + SALT_LENGTH + HASH_LENGTH);
+            value.put((byte) VERSION).putLong(System.currentTimeMillis() / 1000).put(salt).put(hash(password, salt));
+            return value.array();
+        }, hasher).thenCompose((value) -> {
+            // Someone may have registered it while we were hashing
+            synchronized (this) {
+                if (store.containsKey(key)) {
+                    return CompletableFuture.completedFuture(false);
+                }
+                return store.put(key, value).thenApply((ignored) -> true);
+            }
+        });
+    }
+
+    // Milliseconds until the nick can be tried again, 0 if it can be now
+    public long lockedFor(String nick) {
+        Failures f = failures.get(keyOf(nick));
+        return f == null ? 0 : Math.max(0, f.until - System.currentTimeMillis());
+    }
+
+    // Completes with false when locked too, see lockedFor()
+    public CompletableFuture<Boolean> checkPassword(String nick, String password) {
+        final String key = keyOf(nick);
+        byte[] value = store.get(key);
+        if (value == null || value[0] != VERSION || lockedFor(nick) > 0) {
+            return CompletableFuture.completedFuture(false);
+        }
+        ByteBuffer buf = ByteBuffer.wrap(value, 9, SALT_LENGTH + HASH_LENGTH);
+        byte[] salt = new byte[SALT_LENGTH];
+        byte[] expected = new byte[HASH_LENGTH];
+        buf.get(salt).get(expected);
+        return CompletableFuture.supplyAsync(() -> {
+            // Attempts queued up behind the one that locked it don't get hashed
+            if (lockedFor(nick) > 0) {
+                return false;
+            }
+            boolean ok = MessageDigest.isEqual(expected, hash(password, salt));
+            if (ok) {
+                failures.remove(key);
+            } else {
+                failures.computeIfAbsent(key, (k) -> new Failures()).failed();
+            }
+            return ok;
+        }, hasher);
+    }
+
+    // In seconds, or 0 if it isn't registered
+    public long getRegisteredAt(String nick) {
+        byte[] value = store.get(keyOf(nick));
+        return value == null ? 0 : ByteBuffer.wrap(value).getLong(1);
+    }
+
+    public CompletableFuture<Void> drop(String nick) {
+        failures.remove(keyOf(nick));
+        return store.remove(keyOf(nick));
+    }
+
+    public void setIdentified(User user, String nick) {
+        user.attr(ATTR_IDENTIFIED, makeRef).set(nick);
+    }
+
+    public boolean isIdentified(User user, CharSequence nick) {
+        AtomicReference<String> identified = user.attr(ATTR_IDENTIFIED);
+        String current = identified == null ? null : identified.get();
+        return current != null && CaseMapping.equals(current, nick);
+    }
+
+    // Whether the user may take the nick. Users of other servers are up to their server
+    public boolean mayUse(User user, CharSequence nick) {
+        return !user.isLocal() || !isRegistered(nick) || isIdentified(user, nick);
+    }
+
+    // Wraps a registry so that registered nicks can only be taken by whoever identified for them
+    public UserRegistry protect(UserRegistry users) {
+        return new UserRegistry() {
+            @Override
+            public User getUser(String nick) {
+                return users.getUser(nick);
+            }
+
+            @Override
+            public CompletableFuture<User> lookup(String nick) {
+                return users.lookup(nick);
+            }
+
+            @Override
+            public boolean isShared() {
+                return users.isShared();
+            }
+
+            @Override
+            public CompletableFuture<Void> register(User user) {
+                String nick = user.getNick();
+                if (!mayUse(user, nick)) {
+                    CompletableFuture<Void> future = new CompletableFuture<>();
+                    future.completeExceptionally(new NicknameInUseException(nick));
+                    return future;
+                }
+                return users.register(user);
+            }
+
+            @Override
+            public CompletableFuture<String> changeNick(User user, String newNick) {
+                if (!mayUse(user, newNick)) {
+                    return CompletableFuture.completedFuture(null);
+                }
+                return users.changeNick(user, newNick);
+            }
+
+            @Override
+            public void unregister(User user) throws DropMessageException {
+                users.unregister(user);
+            }
+        };
+    }
+
+    public static ExecutorService newExecutor(int threads) {
+        final AtomicInteger count = new AtomicInteger(0);
+        ThreadFactory factory = (r) -> {
+            Thread t = new Thread(r, "hasher-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+        return Executors.newFixedThreadPool(threads, factory);
+    }
+
+    private static String keyOf(CharSequence nick) {
+        return PREFIX + CaseMapping.toLowerCase(nick.toString());
+    }
+
+    private static byte[] hash(String password, byte[] salt) {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, ITERATIONS, HASH_LENGTH * 8);
+        try {
+            return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            // Every JDK since 8 ships it
+            throw new IllegalStateException(e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+    private static class Failures {
+        private int count = 0;
+        private volatile long until = 0;
+
+        // The first few are free, then each one doubles the lockout
+        synchronized void failed() {
+            if (++count > FREE_FAILURES) {
+                long lockout = BASE_LOCKOUT << Math.min(count - FREE_FAILURES - 1, 20);
+                until = System.currentTimeMillis() + Math.min(lockout, MAX_LOCKOUT);
+            }
+        }
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * This file is part of IRCd4j.
+ *
+ * Copyright (c) 2014 Wolf480pl <wolf480@interia.pl>
+ * IRCd4j is licensed under the GNU Lesser General Public License.
+ *
+ * IRCd4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * IRCd4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.wolf480pl.ircd.trace;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.Charset;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.wolf480pl.ircd.Message;
+import com.github.wolf480pl.ircd.Session;
+import com.github.wolf480pl.ircd.trace.TraceEvent.Direction;
+import com.github.wolf480pl.ircd.util.MpscRingBuffer;
+
+/*
+ * Traces the lines going in and out of chosen sessions: all of them, single sessions, or everyone from an address,
+ * switched on and off at runtime (also over JMX).
+ * Nothing is traced until asked for, and then the check on each message is a single volatile read - no strings get built.
+ * A traced message is turned into text right away, as whoever sends or handles it may still be using it,
+ * but writing it out happens on our own thread, and if that falls behind, events are dropped rather than making the I/O threads wait.
+ */
+public class ProtocolTracer implements ProtocolTracerMXBean {
+    public static final String OBJECT_NAME = "com.github.wolf480pl.ircd:type=ProtocolTracer";
+    public static final int DEFAULT_CAPACITY = 8192;
+    private static final Logger logger = LoggerFactory.getLogger(ProtocolTracer.class);
+    private static final long DRAIN_INTERVAL_MILLIS = 10;
+
+    private final MpscRingBuffer<TraceEvent> buffer;
+    private final TraceSink sink;
+    private final ConcurrentMap<Session, Boolean> sessions = new ConcurrentHashMap<>();
+    private final Set<InetAddress> addresses = ConcurrentHashMap.newKeySet();
+    private final LongAdder dropped = new LongAdder();
+    private volatile boolean traceAll = false;
+    // Whether anything is traced at all
+    private volatile boolean active = false;
+    private ScheduledExecutorService drainer;
+
+    // Logs the events at INFO
+    public ProtocolTracer() {
+        this(DEFAULT_CAPACITY, (event) -> logger.info(event.toString()));
+    }
+
+    public ProtocolTracer(int capacity, TraceSink sink) {
+        this.buffer = new MpscRingBuffer<>(capacity);
+        this.sink = sink;
+    }
+
+    public boolean isTraced(Session session) {
+        if (!active) {
+            return false;
+        }
+        if (traceAll || sessions.containsKey(session)) {
+            return true;
+        }
+        if (addresses.isEmpty()) {
+            return false;
+        }
+        SocketAddress address = session.getRemoteAddress();
+        return address instanceof InetSocketAddress && addresses.contains(((InetSocketAddress) address).getAddress());
+    }
+
+    public void inbound(Session session, Message msg) {
+        if (isTraced(session)) {
+            record(Direction.INBOUND, session, msg.toString(), null);
+        }
+    }
+
+    public void outbound(Session session, Message msg) {
+        if (isTraced(session)) {
+            record(Direction.OUTBOUND, session, msg.toString(), null);
+        }
+    }
+
+    // The line is ours to keep, it's only decoded on our thread
+    public void invalid(Session session, byte[] line, Charset charset) {
+        if (isTraced(session)) {
+            record(Direction.INVALID, session, line, charset);
+        }
+    }
+
+    private void record(Direction direction, Session session, Object payload, Charset charset) {
+        if (!buffer.offer(new TraceEvent(System.currentTimeMillis(), direction, session.getRemoteAddress(), payload, charset))) {
+            dropped.increment();
+        }
+    }
+
+    public void trace(Session session) {
+        sessions.put(session, Boolean.TRUE);
+        updateActive();
+    }
+
+    public void untrace(Session session) {
+        if (sessions.remove(session) != null) {
+            updateActive();
+        }
+    }
+
+    // So that sessions traced one by one don't stay around after they're gone
+    public void sessionClosed(Session session) {
+        untrace(session);
+    }
+
+    public void traceAddress(InetAddress address) {
+        addresses.add(address);
+        updateActive();
+    }
+
+    public void untraceAddress(InetAddress address) {
+        if (addresses.remove(address)) {
+            updateActive();
+        }
+    }
+
+    @Override
+    public void traceAddress(String address) {
+        traceAddress(parseAddress(address));
+    }
+
+    @Override
+    public void untraceAddress(String address) {
+        untraceAddress(parseAddress(address));
+    }
+
+    @Override
+    public Set<String> getTracedAddresses() {
+        Set<String> result = new TreeSet<>();
+        for (InetAddress address : addresses) {
+            result.add(address.getHostAddress());
+        }
+        return result;
+    }
+
+    @Override
+    public int getTracedSessions() {
+        return sessions.size();
+    }
+
+    @Override
+    public boolean isTraceAll() {
+        return traceAll;
+    }
+
+    @Override
+    public void setTraceAll(boolean traceAll) {
+        this.traceAll = traceAll;
+        updateActive();
+    }
+
+    @Override
+    public long getDroppedEvents() {
+        return dropped.sum();
+    }
+
+    public void registerMBean() throws JMException {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+    }
+
+    public void unregisterMBean() throws JMException {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(OBJECT_NAME));
+    }
+
+    private synchronized void updateActive() {
+        active = traceAll || !sessions.isEmpty() || !addresses.isEmpty();
+        if (active && drainer == null) {
+            drainer = Executors.newSingleThreadScheduledExecutor((r) -> {
+                Thread thread = new Thread(r, "ircd-trace");
+                thread.setDaemon(true);
+                return thread;
+            });
+            drainer.scheduleWithFixedDelay(this::drain, DRAIN_INTERVAL_MILLIS, DRAIN_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        } else if (!active && drainer != null) {
+            // One last drain for what was traced before, then the thread goes. Stragglers wait for the next time
+            drainer.execute(this::drain);
+            drainer.shutdown();
+            drainer = null;
+        }
+    }
+
+    private void drain() {
+        TraceEvent event;
+        while ((event = buffer.poll()) != null) {
+            try {
+                sink.write(event);
+            } catch (RuntimeException e) {
+                // Otherwise we'd never be run again
+                logger.warn("Trace sink failed", e);
+            }
+        }
+    }
+
+    private static InetAddress parseAddress(String address) {
+        try {
+            return InetAddress.getByName(address);
+        } catch (UnknownHostException e) {
+            throw new IllegalArgumentException("Unknown address: " + address, e);
+        }
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * This file is part of IRCd4j.
+ *
+ * Copyright (c) 2014 Wolf480pl <wolf480@interia.pl>
+ * IRCd4j is licensed under the GNU Lesser General Public License.
+ *
+ * IRCd4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * IRCd4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.wolf480pl.ircd.trace;
+
+import java.util.Set;
+
+public interface ProtocolTracerMXBean {
+    boolean isTraceAll();
+
+    void setTraceAll(boolean traceAll);
+
+    // Sessions from that address are traced, including ones already connected
+    void traceAddress(String address);
+
+    void untraceAddress(String address);
+
+    Set<String> getTracedAddresses();
+
+    int getTracedSessions();
+
+    // Events that didn't fit in the buffer
+    long getDroppedEvents();
+}
@@ -0,0 +1,90 @@
+/*
+ * This file is part of IRCd4j.
+ *
+ * Copyright (c) 2014 Wolf480pl <wolf480@interia.pl>
+ * IRCd4j is licensed under the GNU Lesser General Public License.
+ *
+ * IRCd4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * IRCd4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.wolf480pl.ircd.trace;
+
+import java.net.SocketAddress;
+import java.nio.charset.Charset;
+
+/*
+ * One traced line, as text, or as the raw bytes of a line that couldn't be parsed.
+ * Decoding those is left to the sink, which runs on the tracer's own thread.
+ */
+public class TraceEvent {
+    public static enum Direction {
+        INBOUND("->"),
+        OUTBOUND("<-"),
+        // A line that couldn't be parsed
+        INVALID("-x");
+
+        private final String arrow;
+
+        private Direction(String arrow) {
+            this.arrow = arrow;
+        }
+
+        public String getArrow() {
+            return arrow;
+        }
+    }
+
+    private final long time;
+    private final Direction direction;
+    private final SocketAddress remoteAddress;
+    private final Object payload;
+    private final Charset charset;
+
+    TraceEvent(long time, Direction direction, SocketAddress remoteAddress, Object payload, Charset charset) {
+        this.time = time;
+        this.direction = direction;
+        this.remoteAddress = remoteAddress;
+        this.payload = payload;
+        this.charset = charset;
+    }
+
+    // Milliseconds since the epoch
+    public long getTime() {
+        return time;
+    }
+
+    public Direction getDirection() {
+        return direction;
+    }
+
+    public SocketAddress getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    // The text of the message, or the raw bytes of an invalid line
+    public Object getPayload() {
+        return payload;
+    }
+
+    public String getText() {
+        if (payload instanceof byte[]) {
+            return new String((byte[]) payload, charset);
+        }
+        return String.valueOf(payload);
+    }
+
+    @Override
+    public String toString() {
+        return remoteAddress + " " + direction.getArrow() + " " + getText();
+    }
+}
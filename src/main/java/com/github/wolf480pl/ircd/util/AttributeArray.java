@@ -0,0 +1,103 @@
+/*
+ * This file is part of IRCd4j.
+ *
+ * Copyright (c) 2014 Wolf480pl <wolf480@interia.pl>
+ * IRCd4j is licensed under the GNU Lesser General Public License.
+ *
+ * IRCd4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * IRCd4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.wolf480pl.ircd.util;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.function.Supplier;
+
+/*
+ * Attribute values indexed by AttributeKey.index, a lot smaller than a ConcurrentHashMap for the few keys we have.
+ * Slots live in fixed-size chunks that are only ever added, never copied, so growing the chunk table
+ * can't lose a value someone else has just set. Once set, a value stays there.
+ */
+public class AttributeArray {
+    private static final int CHUNK_SHIFT = 3;
+    private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+    private static final Chunk[] NO_CHUNKS = new Chunk[0];
+    private static final AtomicReferenceFieldUpdater<AttributeArray, Chunk[]> CHUNKS = AtomicReferenceFieldUpdater.newUpdater(AttributeArray.class, Chunk[].class, "chunks");
+
+    private volatile Chunk[] chunks = NO_CHUNKS;
+
+    @SuppressWarnings("unchecked")
+    public <T> T get(AttributeKey<T> key) {
+        Chunk[] chunks = this.chunks;
+        int c = key.index >>> CHUNK_SHIFT;
+        if (c >= chunks.length || chunks[c] == null) {
+            return null;
+        }
+        return (T) chunks[c].get(key.index & CHUNK_MASK);
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T> T putIfAbsent(AttributeKey<T> key, T value) {
+        if (value == null) {
+            throw new NullPointerException("value");
+        }
+        Chunk chunk = chunk(key.index >>> CHUNK_SHIFT);
+        int i = key.index & CHUNK_MASK;
+        if (chunk.compareAndSet(i, null, value)) {
+            return null;
+        }
+        return (T) chunk.get(i);
+    }
+
+    /*
+     * Unlike ConcurrentHashMap.computeIfAbsent, the factory may be called more than once when racing,
+     * but only one of the results is ever visible.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T computeIfAbsent(AttributeKey<T> key, Supplier<T> factory) {
+        T value = get(key);
+        if (value != null) {
+            return value;
+        }
+        value = factory.get();
+        if (value == null) {
+            return null;
+        }
+        T old = putIfAbsent(key, value);
+        return old != null ? old : value;
+    }
+
+    private Chunk chunk(int c) {
+        for (;;) {
+            Chunk[] chunks = this.chunks;
+            if (c < chunks.length && chunks[c] != null) {
+                return chunks[c];
+            }
+            Chunk[] grown = Arrays.copyOf(chunks, Math.max(chunks.length, c + 1));
+            grown[c] = new Chunk();
+            if (CHUNKS.compareAndSet(this, chunks, grown)) {
+                return grown[c];
+            }
+        }
+    }
+
+    private static final class Chunk extends AtomicReferenceArray<Object> {
+        private static final long serialVersionUID = 1L;
+
+        Chunk() {
+            super(CHUNK_SIZE);
+        }
+    }
+}
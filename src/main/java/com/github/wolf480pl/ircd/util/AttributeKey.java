@@ -19,11 +19,18 @@
  */
 package com.github.wolf480pl.ircd.util;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 public class AttributeKey<T> {
+    private static final AtomicInteger nextIndex = new AtomicInteger(0);
+
     public final String name;
+    // Dense, so attribute holders can keep values in an array indexed by it
+    public final int index;
 
     protected AttributeKey(String name) {
         this.name = name;
+        this.index = nextIndex.getAndIncrement();
     }
 
     public static <T> AttributeKey<T> valueOf(String name) {
@@ -0,0 +1,277 @@
+/*
+ * This file is part of IRCd4j.
+ *
+ * Copyright (c) 2014 Wolf480pl <wolf480@interia.pl>
+ * IRCd4j is licensed under the GNU Lesser General Public License.
+ *
+ * IRCd4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * IRCd4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.wolf480pl.ircd.util;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+
+/*
+ * Concurrent map keyed on casemapped strings (see CaseMapping).
+ * Lookups take any CharSequence, don't lock and don't allocate, so they don't need a lowercased copy of the key.
+ * Writes lock only one of the segments, picked by the high bits of the hash.
+ * Nodes are immutable, so readers always see a consistent chain.
+ */
+public class CaseMappedMap<V> {
+    public static final int DEFAULT_SEGMENTS = 64;
+    public static final int DEFAULT_CAPACITY = 1024;
+    private static final int MAX_SEGMENT_CAPACITY = 1 << 30;
+
+    private final Segment<V>[] segments;
+    private final int segmentShift;
+
+    public CaseMappedMap() {
+        this(DEFAULT_CAPACITY, DEFAULT_SEGMENTS);
+    }
+
+    @SuppressWarnings("unchecked")
+    public CaseMappedMap(int initialCapacity, int concurrency) {
+        if (initialCapacity < 0 || concurrency <= 0) {
+            throw new IllegalArgumentException("Capacity must be non-negative and concurrency positive");
+        }
+        int count = 1;
+        int bits = 0;
+        while (count < concurrency && count < (1 << 16)) {
+            count <<= 1;
+            ++bits;
+        }
+        this.segmentShift = 32 - bits;
+        int perSegment = 2;
+        while (perSegment * count < initialCapacity && perSegment < MAX_SEGMENT_CAPACITY) {
+            perSegment <<= 1;
+        }
+        this.segments = (Segment<V>[]) new Segment<?>[count];
+        for (int i = 0; i < count; ++i) {
+            segments[i] = new Segment<>(perSegment);
+        }
+    }
+
+    public V get(CharSequence key) {
+        int hash = hash(key);
+        return segmentFor(hash).get(key, hash);
+    }
+
+    public boolean containsKey(CharSequence key) {
+        return get(key) != null;
+    }
+
+    // Returns the value already mapped to an equivalent key, or null if the new mapping was added
+    public V putIfAbsent(String key, V value) {
+        if (value == null) {
+            throw new NullPointerException("value");
+        }
+        int hash = hash(key);
+        return segmentFor(hash).putIfAbsent(key, hash, value);
+    }
+
+    public V remove(CharSequence key) {
+        int hash = hash(key);
+        return segmentFor(hash).remove(key, hash, null);
+    }
+
+    public boolean remove(CharSequence key, V value) {
+        if (value == null) {
+            return false;
+        }
+        int hash = hash(key);
+        return segmentFor(hash).remove(key, hash, value) != null;
+    }
+
+    // Also replaces the stored key, so a case-only change (Foo -> FOO) is reflected in it
+    public boolean replace(String key, V expected, V value) {
+        if (expected == null || value == null) {
+            throw new NullPointerException();
+        }
+        int hash = hash(key);
+        return segmentFor(hash).replace(key, hash, expected, value);
+    }
+
+    public String getKey(CharSequence key) {
+        int hash = hash(key);
+        Node<V> node = segmentFor(hash).find(key, hash);
+        return node == null ? null : node.key;
+    }
+
+    public int size() {
+        long size = 0;
+        for (Segment<V> segment : segments) {
+            size += segment.count;
+        }
+        return (int) Math.min(size, Integer.MAX_VALUE);
+    }
+
+    public boolean isEmpty() {
+        for (Segment<V> segment : segments) {
+            if (segment.count != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Weakly consistent, like ConcurrentHashMap iterators
+    public void forEach(BiConsumer<? super String, ? super V> action) {
+        for (Segment<V> segment : segments) {
+            AtomicReferenceArray<Node<V>> table = segment.table;
+            for (int i = 0; i < table.length(); ++i) {
+                for (Node<V> node = table.get(i); node != null; node = node.next) {
+                    action.accept(node.key, node.value);
+                }
+            }
+        }
+    }
+
+    private Segment<V> segmentFor(int hash) {
+        return segmentShift == 32 ? segments[0] : segments[hash >>> segmentShift];
+    }
+
+    private static int hash(CharSequence key) {
+        int h = CaseMapping.hashCode(key);
+        return h ^ (h >>> 16);
+    }
+
+    private static final class Node<V> {
+        final String key;
+        final int hash;
+        final V value;
+        final Node<V> next;
+
+        Node(String key, int hash, V value, Node<V> next) {
+            this.key = key;
+            this.hash = hash;
+            this.value = value;
+            this.next = next;
+        }
+    }
+
+    private static final class Segment<V> extends ReentrantLock {
+        private static final long serialVersionUID = 3470137469416521862L;
+
+        volatile AtomicReferenceArray<Node<V>> table;
+        volatile int count;
+
+        Segment(int capacity) {
+            this.table = new AtomicReferenceArray<>(capacity);
+        }
+
+        Node<V> find(CharSequence key, int hash) {
+            AtomicReferenceArray<Node<V>> tab = table;
+            for (Node<V> node = tab.get(hash & (tab.length() - 1)); node != null; node = node.next) {
+                if (node.hash == hash && CaseMapping.equals(node.key, key)) {
+                    return node;
+                }
+            }
+            return null;
+        }
+
+        V get(CharSequence key, int hash) {
+            Node<V> node = find(key, hash);
+            return node == null ? null : node.value;
+        }
+
+        V putIfAbsent(String key, int hash, V value) {
+            lock();
+            try {
+                Node<V> existing = find(key, hash);
+                if (existing != null) {
+                    return existing.value;
+                }
+                if (count + 1 > table.length() - (table.length() >>> 2)) {
+                    rehash();
+                }
+                AtomicReferenceArray<Node<V>> tab = table;
+                int index = hash & (tab.length() - 1);
+                tab.set(index, new Node<>(key, hash, value, tab.get(index)));
+                count = count + 1;
+                return null;
+            } finally {
+                unlock();
+            }
+        }
+
+        // Removes the mapping if value is null or matches by identity
+        V remove(CharSequence key, int hash, V value) {
+            lock();
+            try {
+                AtomicReferenceArray<Node<V>> tab = table;
+                int index = hash & (tab.length() - 1);
+                Node<V> first = tab.get(index);
+                Node<V> node = first;
+                while (node != null && (node.hash != hash || !CaseMapping.equals(node.key, key))) {
+                    node = node.next;
+                }
+                if (node == null || (value != null && node.value != value)) {
+                    return null;
+                }
+                tab.set(index, copyWithout(first, node, node.next));
+                count = count - 1;
+                return node.value;
+            } finally {
+                unlock();
+            }
+        }
+
+        boolean replace(String key, int hash, V expected, V value) {
+            lock();
+            try {
+                AtomicReferenceArray<Node<V>> tab = table;
+                int index = hash & (tab.length() - 1);
+                Node<V> first = tab.get(index);
+                Node<V> node = first;
+                while (node != null && (node.hash != hash || !CaseMapping.equals(node.key, key))) {
+                    node = node.next;
+                }
+                if (node == null || node.value != expected) {
+                    return false;
+                }
+                tab.set(index, copyWithout(first, node, new Node<>(key, hash, value, node.next)));
+                return true;
+            } finally {
+                unlock();
+            }
+        }
+
+        // Copies the nodes in front of the removed one, since they can't be modified in place
+        private static <V> Node<V> copyWithout(Node<V> first, Node<V> removed, Node<V> tail) {
+            Node<V> head = tail;
+            for (Node<V> node = first; node != removed; node = node.next) {
+                head = new Node<>(node.key, node.hash, node.value, head);
+            }
+            return head;
+        }
+
+        private void rehash() {
+            AtomicReferenceArray<Node<V>> oldTable = table;
+            int oldCapacity = oldTable.length();
+            if (oldCapacity >= MAX_SEGMENT_CAPACITY) {
+                return;
+            }
+            AtomicReferenceArray<Node<V>> newTable = new AtomicReferenceArray<>(oldCapacity << 1);
+            int mask = newTable.length() - 1;
+            for (int i = 0; i < oldCapacity; ++i) {
+                for (Node<V> node = oldTable.get(i); node != null; node = node.next) {
+                    int index = node.hash & mask;
+                    newTable.set(index, new Node<>(node.key, node.hash, node.value, newTable.get(index)));
+                }
+            }
+            table = newTable;
+        }
+    }
+}
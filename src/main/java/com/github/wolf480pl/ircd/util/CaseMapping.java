@@ -0,0 +1,80 @@
+/*
+ * This file is part of IRCd4j.
+ *
+ * Copyright (c) 2014 Wolf480pl <wolf480@interia.pl>
+ * IRCd4j is licensed under the GNU Lesser General Public License.
+ *
+ * IRCd4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * IRCd4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.wolf480pl.ircd.util;
+
+/*
+ * RFC 1459 casemapping: besides ASCII letters, {}|~ are the lowercase versions of []\^
+ * None of these allocate, so they can be used straight on the hot path.
+ */
+public final class CaseMapping {
+
+    private CaseMapping() {
+    }
+
+    public static char toLowerCase(char c) {
+        // A-Z [ \ ] ^ map to a-z { | } ~
+        if (c >= 'A' && c <= '^') {
+            return (char) (c + ('a' - 'A'));
+        }
+        return c;
+    }
+
+    public static String toLowerCase(String str) {
+        final int length = str.length();
+        for (int i = 0; i < length; ++i) {
+            char c = str.charAt(i);
+            if (toLowerCase(c) != c) {
+                char[] chars = str.toCharArray();
+                for (int j = i; j < length; ++j) {
+                    chars[j] = toLowerCase(chars[j]);
+                }
+                return new String(chars);
+            }
+        }
+        return str;
+    }
+
+    public static int hashCode(CharSequence str) {
+        int h = 0;
+        final int length = str.length();
+        for (int i = 0; i < length; ++i) {
+            h = 31 * h + toLowerCase(str.charAt(i));
+        }
+        return h;
+    }
+
+    public static boolean equals(CharSequence a, CharSequence b) {
+        if (a == b) {
+            return true;
+        }
+        final int length = a.length();
+        if (length != b.length()) {
+            return false;
+        }
+        for (int i = 0; i < length; ++i) {
+            char ca = a.charAt(i);
+            char cb = b.charAt(i);
+            if (ca != cb && toLowerCase(ca) != toLowerCase(cb)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * This file is part of IRCd4j.
+ *
+ * Copyright (c) 2014 Wolf480pl <wolf480@interia.pl>
+ * IRCd4j is licensed under the GNU Lesser General Public License.
+ *
+ * IRCd4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * IRCd4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.wolf480pl.ircd.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/*
+ * Bounded queue for many producers and a single consumer, after Dmitry Vyukov's bounded MPMC queue.
+ * offer() never blocks and never allocates, it just fails when the buffer is full.
+ * Each slot has a sequence number telling whose turn it is: the producer of lap n, or the consumer of lap n.
+ */
+public class MpscRingBuffer<T> {
+    private final int mask;
+    private final AtomicReferenceArray<T> items;
+    private final AtomicLongArray sequences;
+    private final AtomicLong producerPosition = new AtomicLong(0);
+    // Only touched by the consumer
+    private long consumerPosition = 0;
+
+    public MpscRingBuffer(int capacity) {
+        if (capacity < 2) {
+            throw new IllegalArgumentException("Capacity must be at least 2");
+        }
+        int size = Integer.highestOneBit(capacity - 1) << 1;
+        this.mask = size - 1;
+        this.items = new AtomicReferenceArray<>(size);
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; ++i) {
+            sequences.set(i, i);
+        }
+    }
+
+    public boolean offer(T item) {
+        if (item == null) {
+            throw new NullPointerException("item");
+        }
+        long pos = producerPosition.get();
+        for (;;) {
+            int index = (int) pos & mask;
+            long diff = sequences.get(index) - pos;
+            if (diff == 0) {
+                if (producerPosition.compareAndSet(pos, pos + 1)) {
+                    items.lazySet(index, item);
+                    // Publishes the item to the consumer
+                    sequences.set(index, pos + 1);
+                    return true;
+                }
+                pos = producerPosition.get();
+            } else if (diff < 0) {
+                // The consumer hasn't freed this slot yet
+                return false;
+            } else {
+                // Another producer took it
+                pos = producerPosition.get();
+            }
+        }
+    }
+
+    // Only one thread may call this at a time
+    public T poll() {
+        long pos = consumerPosition;
+        int index = (int) pos & mask;
+        if (sequences.get(index) != pos + 1) {
+            // Empty, or the producer hasn't finished writing
+            return null;
+        }
+        T item = items.get(index);
+        items.lazySet(index, null);
+        sequences.set(index, pos + mask + 1);
+        consumerPosition = pos + 1;
+        return item;
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+}
@@ -0,0 +1,260 @@
+/*
+ * This file is part of IRCd4j.
+ *
+ * Copyright (c) 2014 Wolf480pl <wolf480@interia.pl>
+ * IRCd4j is licensed under the GNU Lesser General Public License.
+ *
+ * IRCd4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * IRCd4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.wolf480pl.ircd.util;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+/*
+ * Runs tasks one at a time, in submission order, on a shared executor - the "same thread" from Threading.md.
+ * Anyone can submit, but only one thread drains the mailbox at any given time, so there's no thread per user.
+ * If we're already on the backing executor's thread and nothing else is queued, the task runs right away.
+ *
+ * The mailbox is bounded: past half the capacity the listener is told to stop feeding us
+ * (e.g. stop reading from the socket), and it's told to resume once the backlog is down to a quarter.
+ * Submitting to a full mailbox fails with RejectedExecutionException.
+ *
+ * A running task can suspend the executor while it waits for something asynchronous (e.g. registration),
+ * tasks submitted meanwhile stay in the mailbox until resume(), which runs its own task before them.
+ *
+ * There's one of these per user, so all the state lives in fields of this object,
+ * and the queue is only made when the first task is submitted.
+ */
+public class SerialExecutor implements Executor {
+    public static final int DEFAULT_CAPACITY = 1024;
+    // How many tasks we run before giving the backing executor's thread to someone else
+    private static final int BATCH_SIZE = 64;
+
+    // Flags packed into state
+    private static final int RUNNING = 1;
+    private static final int SATURATED = 2;
+    private static final int SUSPENDED = 4;
+    private static final AtomicIntegerFieldUpdater<SerialExecutor> STATE = AtomicIntegerFieldUpdater.newUpdater(SerialExecutor.class, "state");
+    private static final AtomicIntegerFieldUpdater<SerialExecutor> PENDING = AtomicIntegerFieldUpdater.newUpdater(SerialExecutor.class, "pending");
+    private static final AtomicReferenceFieldUpdater<SerialExecutor, Runnable> FIRST = AtomicReferenceFieldUpdater.newUpdater(SerialExecutor.class, Runnable.class, "first");
+    @SuppressWarnings("unchecked")
+    private static final AtomicReferenceFieldUpdater<SerialExecutor, Queue<Runnable>> MAILBOX =
+            (AtomicReferenceFieldUpdater<SerialExecutor, Queue<Runnable>>) (AtomicReferenceFieldUpdater<?, ?>) AtomicReferenceFieldUpdater.newUpdater(SerialExecutor.class, Queue.class, "mailbox");
+
+    private final Executor backing;
+    private final BooleanSupplier inBackingThread;
+    private final int capacity;
+    private final Listener listener;
+    private final Consumer<Throwable> exceptionHandler;
+    private volatile Queue<Runnable> mailbox;
+    private volatile int pending = 0;
+    private volatile int state = 0;
+    private volatile Runnable first;
+    private final Runnable drainTask = this::drain;
+
+    public SerialExecutor(Executor backing, Consumer<Throwable> exceptionHandler) {
+        this(backing, null, DEFAULT_CAPACITY, null, exceptionHandler);
+    }
+
+    public SerialExecutor(Executor backing, BooleanSupplier inBackingThread, int capacity, Listener listener, Consumer<Throwable> exceptionHandler) {
+        if (capacity < 4) {
+            throw new IllegalArgumentException("Capacity must be at least 4");
+        }
+        this.backing = backing;
+        this.inBackingThread = inBackingThread;
+        this.capacity = capacity;
+        this.listener = listener;
+        this.exceptionHandler = exceptionHandler;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        if (task == null) {
+            throw new NullPointerException("task");
+        }
+        int depth = PENDING.incrementAndGet(this);
+        if (depth > capacity) {
+            PENDING.decrementAndGet(this);
+            throw new RejectedExecutionException("Mailbox full (" + capacity + " tasks)");
+        }
+        mailbox().offer(task);
+        if (depth > capacity / 2 && listener != null && setFlag(SATURATED)) {
+            listener.onSaturated();
+        }
+        if (startRunning()) {
+            startDrain();
+        }
+    }
+
+    /*
+     * Stops running tasks once the current one returns, until resume() is called.
+     * Only meant to be called from a task running on this executor.
+     */
+    public void suspend() {
+        setFlag(SUSPENDED);
+    }
+
+    /*
+     * Runs the given task before anything that was queued while we were suspended, then carries on as usual.
+     */
+    public void resume(Runnable task) {
+        if (task == null) {
+            throw new NullPointerException("task");
+        }
+        if (!FIRST.compareAndSet(this, null, task)) {
+            throw new IllegalStateException("Already resumed");
+        }
+        clearFlag(SUSPENDED);
+        if (startRunning()) {
+            startDrain();
+        }
+    }
+
+    public boolean isSuspended() {
+        return (state & SUSPENDED) != 0;
+    }
+
+    public int getPending() {
+        return pending;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public boolean isSaturated() {
+        return (state & SATURATED) != 0;
+    }
+
+    private Queue<Runnable> mailbox() {
+        Queue<Runnable> queue = mailbox;
+        if (queue == null) {
+            queue = new ConcurrentLinkedQueue<>();
+            if (!MAILBOX.compareAndSet(this, null, queue)) {
+                queue = mailbox;
+            }
+        }
+        return queue;
+    }
+
+    // Takes the RUNNING flag, unless someone else has it or we're suspended
+    private boolean startRunning() {
+        int s;
+        do {
+            s = state;
+            if ((s & (RUNNING | SUSPENDED)) != 0) {
+                return false;
+            }
+        } while (!STATE.compareAndSet(this, s, s | RUNNING));
+        return true;
+    }
+
+    // Returns false if the flag was already set
+    private boolean setFlag(int flag) {
+        int s;
+        do {
+            s = state;
+            if ((s & flag) != 0) {
+                return false;
+            }
+        } while (!STATE.compareAndSet(this, s, s | flag));
+        return true;
+    }
+
+    // Returns false if the flag wasn't set
+    private boolean clearFlag(int flag) {
+        int s;
+        do {
+            s = state;
+            if ((s & flag) == 0) {
+                return false;
+            }
+        } while (!STATE.compareAndSet(this, s, s & ~flag));
+        return true;
+    }
+
+    private void startDrain() {
+        if (inBackingThread != null && inBackingThread.getAsBoolean()) {
+            drain();
+        } else {
+            submitDrain();
+        }
+    }
+
+    private void submitDrain() {
+        try {
+            backing.execute(drainTask);
+        } catch (RejectedExecutionException e) {
+            clearFlag(RUNNING);
+            throw e;
+        }
+    }
+
+    private void drain() {
+        for (int i = 0; i < BATCH_SIZE; ++i) {
+            Runnable task = isSuspended() ? null : poll();
+            if (task == null) {
+                clearFlag(RUNNING);
+                // Someone could have queued something (or resumed us) after our poll, but seen us still running
+                if (!hasRunnable() || !startRunning()) {
+                    return;
+                }
+                continue;
+            }
+            try {
+                task.run();
+            } catch (Throwable t) {
+                exceptionHandler.accept(t);
+            }
+        }
+        // Still running, let others have the thread for a while
+        submitDrain();
+    }
+
+    private Runnable poll() {
+        if (first != null) {
+            Runnable task = FIRST.getAndSet(this, null);
+            if (task != null) {
+                return task;
+            }
+        }
+        Queue<Runnable> queue = mailbox;
+        Runnable task = queue == null ? null : queue.poll();
+        if (task != null) {
+            int depth = PENDING.decrementAndGet(this);
+            if (depth <= capacity / 4 && listener != null && clearFlag(SATURATED)) {
+                listener.onDrained();
+            }
+        }
+        return task;
+    }
+
+    private boolean hasRunnable() {
+        Queue<Runnable> queue = mailbox;
+        return !isSuspended() && (first != null || (queue != null && !queue.isEmpty()));
+    }
+
+    public static interface Listener {
+        void onSaturated();
+
+        void onDrained();
+    }
+}
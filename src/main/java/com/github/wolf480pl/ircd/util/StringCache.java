@@ -0,0 +1,83 @@
+/*
+ * This file is part of IRCd4j.
+ *
+ * Copyright (c) 2014 Wolf480pl <wolf480@interia.pl>
+ * IRCd4j is licensed under the GNU Lesser General Public License.
+ *
+ * IRCd4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * IRCd4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.wolf480pl.ircd.util;
+
+import java.nio.charset.Charset;
+
+/*
+ * Canonical copies of the short strings every line repeats (commands, prefixes, targets),
+ * looked up straight from the bytes, so a hit doesn't allocate anything.
+ * It's direct-mapped: a string can only live in the slot its hash picks, and a miss takes the slot over,
+ * so the size is fixed and nothing is locked. Only ASCII is cached, anything else is decoded as usual.
+ *
+ * The slots are a plain array on purpose. Strings are immutable, so a racy read sees either null,
+ * an older string or the newer one, and at worst we decode something we could've reused.
+ */
+public class StringCache {
+    private final String[] slots;
+    private final int mask;
+    private final int maxLength;
+
+    public StringCache(int capacity, int maxLength) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        int size = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+        this.slots = new String[size];
+        this.mask = size - 1;
+        this.maxLength = maxLength;
+    }
+
+    public String get(byte[] bytes, int start, int end, Charset charset) {
+        final int length = end - start;
+        if (length > maxLength) {
+            return new String(bytes, start, length, charset);
+        }
+        int hash = 0;
+        for (int i = start; i < end; ++i) {
+            byte b = bytes[i];
+            if (b < 0) {
+                return new String(bytes, start, length, charset);
+            }
+            // Same as String.hashCode, as it's ASCII
+            hash = 31 * hash + b;
+        }
+        final int slot = (hash ^ (hash >>> 16)) & mask;
+        String cached = slots[slot];
+        if (cached != null && matches(cached, bytes, start, length)) {
+            return cached;
+        }
+        String str = new String(bytes, start, length, charset);
+        slots[slot] = str;
+        return str;
+    }
+
+    private static boolean matches(String str, byte[] bytes, int start, int length) {
+        if (str.length() != length) {
+            return false;
+        }
+        for (int i = 0; i < length; ++i) {
+            if (str.charAt(i) != bytes[start + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
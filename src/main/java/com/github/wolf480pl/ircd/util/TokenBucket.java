@@ -0,0 +1,82 @@
+/*
+ * This file is part of IRCd4j.
+ *
+ * Copyright (c) 2014 Wolf480pl <wolf480@interia.pl>
+ * IRCd4j is licensed under the GNU Lesser General Public License.
+ *
+ * IRCd4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * IRCd4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.wolf480pl.ircd.util;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Classic token bucket. Not thread-safe, meant to be owned by a single event loop.
+ * Tokens can go negative: a big expense is let through and then paid off before anything else is.
+ */
+public class TokenBucket {
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final double ratePerNano;
+    private final double capacity;
+    private double tokens;
+    private long lastRefill;
+
+    public TokenBucket(double ratePerSecond, double capacity) {
+        this(ratePerSecond, capacity, System.nanoTime());
+    }
+
+    public TokenBucket(double ratePerSecond, double capacity, long nanoTime) {
+        if (ratePerSecond <= 0 || capacity <= 0) {
+            throw new IllegalArgumentException("Rate and capacity must be positive");
+        }
+        this.ratePerNano = ratePerSecond / NANOS_PER_SECOND;
+        this.capacity = capacity;
+        this.tokens = capacity;
+        this.lastRefill = nanoTime;
+    }
+
+    public void refill(long nanoTime) {
+        long elapsed = nanoTime - lastRefill;
+        if (elapsed > 0) {
+            tokens = Math.min(capacity, tokens + elapsed * ratePerNano);
+            lastRefill = nanoTime;
+        }
+    }
+
+    public boolean hasTokens() {
+        return tokens > 0;
+    }
+
+    public void consume(double cost) {
+        tokens -= cost;
+    }
+
+    public double getTokens() {
+        return tokens;
+    }
+
+    public double getCapacity() {
+        return capacity;
+    }
+
+    // How long until hasTokens() turns true, as of the last refill
+    public long nanosUntilTokens() {
+        if (tokens > 0) {
+            return 0;
+        }
+        // Just a bit past zero, so that we don't wake up to an empty bucket
+        return (long) Math.ceil((-tokens) / ratePerNano) + 1;
+    }
+}
@@ -19,6 +19,8 @@
  */
 package com.github.wolf480pl.ircd.util;
 
+import java.util.concurrent.CompletionException;
+
 public class Util {
 
     private Util() {
@@ -33,4 +35,12 @@ public class Util {
         }
         return new IllegalStateException("Unexpected checked exception", t);
     }
+
+    // Dependent stages of a CompletableFuture get the original exception wrapped in a CompletionException
+    public static Throwable unwrapCompletion(Throwable t) {
+        while (t instanceof CompletionException && t.getCause() != null) {
+            t = t.getCause();
+        }
+        return t;
+    }
 }
@@ -0,0 +1,81 @@
+/*
+ * This file is part of IRCd4j.
+ *
+ * Copyright (c) 2014 Wolf480pl <wolf480@interia.pl>
+ * IRCd4j is licensed under the GNU Lesser General Public License.
+ *
+ * IRCd4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * IRCd4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.wolf480pl.ircd;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.wolf480pl.ircd.dns.CachingHostnameResolver;
+import com.github.wolf480pl.ircd.dns.JdkDnsBackend;
+import com.github.wolf480pl.ircd.impl.IRCSessionHandler;
+import com.github.wolf480pl.ircd.netty.NettyServer;
+import com.github.wolf480pl.ircd.registry.InProcessPartition;
+import com.github.wolf480pl.ircd.registry.NickPartition;
+import com.github.wolf480pl.ircd.registry.PartitionedUserRegistry;
+import com.github.wolf480pl.ircd.trace.ProtocolTracer;
+
+/*
+ * Runs a few servers in one JVM, on consecutive ports from 6667, sharing one nick space
+ * through a partitioned registry, with each server holding one of the partitions.
+ * The servers are linked in a chain, which is how messages get to users held on another one.
+ * -Dircd.asyncPartitions=true applies the partitions' batches on another thread, like a remote node would.
+ */
+public class ClusteredIRCd {
+    private static final String PASSWORD = "cluster";
+
+    public static void main(String[] args) throws Exception {
+        Logger logger = LoggerFactory.getLogger(ClusteredIRCd.class);
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        ExecutorService pool = Boolean.getBoolean("ircd.asyncPartitions") ? Executors.newCachedThreadPool() : null;
+        List<NickPartition> partitions = new ArrayList<>(count);
+        for (int i = 0; i < count; ++i) {
+            partitions.add(new InProcessPartition(nameOf(i), pool));
+        }
+        NettyServer[] servers = new NettyServer[count];
+        IRCSessionHandler[] handlers = new IRCSessionHandler[count];
+        for (int i = 0; i < count; ++i) {
+            handlers[i] = new IRCSessionHandler(nameOf(i), new PartitionedUserRegistry(nameOf(i), partitions), new CachingHostnameResolver(new JdkDnsBackend()), null,
+                    new ProtocolTracer());
+            servers[i] = new NettyServer(new InetSocketAddress("127.0.0.1", 6667 + i), handlers[i]);
+            servers[i].start().sync();
+            for (int j = 0; j < i; ++j) {
+                handlers[i].getLinks().allow(nameOf(j), PASSWORD);
+                handlers[j].getLinks().allow(nameOf(i), PASSWORD);
+            }
+        }
+        for (int i = 1; i < count; ++i) {
+            Session session = servers[i].connect(new InetSocketAddress("127.0.0.1", 6667 + i - 1)).get();
+            handlers[i].link(session, nameOf(i - 1));
+        }
+        logger.info("{} clustered servers started", count);
+
+        servers[0].getChannels().get(0).closeFuture().sync();
+    }
+
+    private static String nameOf(int i) {
+        return "irc" + (i + 1) + ".test";
+    }
+}
@@ -20,20 +20,53 @@
 package com.github.wolf480pl.ircd;
 
 import java.net.InetSocketAddress;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
 
 import io.netty.channel.ChannelFuture;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.github.wolf480pl.ircd.dns.CachingHostnameResolver;
+import com.github.wolf480pl.ircd.dns.JdkDnsBackend;
 import com.github.wolf480pl.ircd.impl.IRCSessionHandler;
+import com.github.wolf480pl.ircd.impl.LocalUserRegistry;
+import com.github.wolf480pl.ircd.metrics.LoggingReporter;
+import com.github.wolf480pl.ircd.metrics.Metrics;
+import com.github.wolf480pl.ircd.netty.DirectChannelHistory;
 import com.github.wolf480pl.ircd.netty.NettyServer;
+import com.github.wolf480pl.ircd.netty.NettyServerConfig;
+import com.github.wolf480pl.ircd.store.LogStore;
+import com.github.wolf480pl.ircd.trace.ProtocolTracer;
 
 public class IRCd {
-    public static void main(String[] args) throws InterruptedException {
+    public static void main(String[] args) throws Exception {
         Logger logger = LoggerFactory.getLogger(IRCd.class);
         logger.info("Starting IRCd");
-        ChannelFuture f = new NettyServer(new InetSocketAddress(6667), new IRCSessionHandler()).start();
+        // -Dircd.store=dir keeps registered nicks and topics there
+        String storeDir = System.getProperty("ircd.store");
+        // -Dircd.history=MiB keeps that much of recent channel messages for CHATHISTORY
+        int historyMiB = Integer.getInteger("ircd.history", 0);
+        IRCSessionHandler handler;
+        if (storeDir == null && historyMiB == 0) {
+            handler = new IRCSessionHandler();
+        } else {
+            LogStore store = storeDir == null ? null : LogStore.open(Paths.get(storeDir));
+            ChannelHistory history = historyMiB == 0 ? null : new DirectChannelHistory(historyMiB * 1024L * 1024);
+            handler = new IRCSessionHandler("localhost", new LocalUserRegistry(), store, history, new CachingHostnameResolver(new JdkDnsBackend()), new Metrics(),
+                    new ProtocolTracer());
+        }
+        Metrics metrics = handler.getMetrics();
+        metrics.registerMBean();
+        metrics.startReporting(new LoggingReporter(), 60, TimeUnit.SECONDS);
+        handler.getTracer().registerMBean();
+        // -Dircd.trace=true traces every session, otherwise turn it on over JMX
+        handler.getTracer().setTraceAll(Boolean.getBoolean("ircd.trace"));
+        // -Dircd.commandThreads=N runs commands on a pool of their own, -Dircd.floodControl=true throttles clients
+        NettyServerConfig config = NettyServerConfig.builder().commandThreads(Integer.getInteger("ircd.commandThreads", 0))
+                .floodControl(Boolean.getBoolean("ircd.floodControl")).build();
+        ChannelFuture f = new NettyServer(new InetSocketAddress(6667), handler, config).start();
         f.sync(); // Wait for it to bind
         logger.info("IRCd started");
 
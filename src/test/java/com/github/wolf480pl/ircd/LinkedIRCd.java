@@ -0,0 +1,360 @@
+/*
+ * This file is part of IRCd4j.
+ *
+ * Copyright (c) 2014 Wolf480pl <wolf480@interia.pl>
+ * IRCd4j is licensed under the GNU Lesser General Public License.
+ *
+ * IRCd4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * IRCd4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.wolf480pl.ircd;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.function.Predicate;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.wolf480pl.ircd.dns.CachingHostnameResolver;
+import com.github.wolf480pl.ircd.dns.JdkDnsBackend;
+import com.github.wolf480pl.ircd.impl.IRCSessionHandler;
+import com.github.wolf480pl.ircd.link.RemoteServer;
+import com.github.wolf480pl.ircd.netty.NettyServer;
+import com.github.wolf480pl.ircd.netty.NettyServerConfig;
+import com.github.wolf480pl.ircd.trace.ProtocolTracer;
+import com.github.wolf480pl.ircd.trace.TraceEvent.Direction;
+
+/*
+ * Runs a few servers in one JVM, on consecutive ports from 6667, linked over loopback, and checks that linking works:
+ * channel messages cross each link once and only where there are members behind it, a server linked late gets everyone
+ * in its burst, nick collisions go to the older nick, and a split takes the users behind it away. Exits with 1 if anything's off.
+ * With -Dircd.serve=true it just starts a chain of them (args[0] servers, 3 by default) and keeps running:
+ * irc1.test - irc2.test - irc3.test
+ */
+public class LinkedIRCd {
+    private static final Logger logger = LoggerFactory.getLogger(LinkedIRCd.class);
+    private static final String PASSWORD = "linkpass";
+    private static final long TIMEOUT_MILLIS = 10000;
+
+    private final NettyServerConfig config;
+    private final List<NettyServer> servers = new ArrayList<>();
+    private final List<IRCSessionHandler> handlers = new ArrayList<>();
+    // PRIVMSGs that came in on the link each server opened
+    private final List<AtomicInteger> relayed = new ArrayList<>();
+    private final List<Session> links = new ArrayList<>();
+    private final List<Client> clients = new ArrayList<>();
+
+    public LinkedIRCd(NettyServerConfig config) {
+        this.config = config;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        // e.g. -Dircd.linkCompression=6
+        LinkedIRCd ircd = new LinkedIRCd(NettyServerConfig.builder().linkCompressionLevel(Integer.getInteger("ircd.linkCompression", 0)).build());
+        if (Boolean.getBoolean("ircd.serve")) {
+            ircd.startChain(count);
+            logger.info("{} linked servers started", count);
+            ircd.servers.get(0).getChannels().get(0).closeFuture().sync();
+            return;
+        }
+        int status = 0;
+        try {
+            ircd.check();
+            logger.info("Linking works");
+        } catch (Throwable t) {
+            logger.error("Linking check failed", t);
+            status = 1;
+        } finally {
+            ircd.stop();
+        }
+        System.exit(status);
+    }
+
+    private void startChain(int count) throws Exception {
+        for (int i = 0; i < count; ++i) {
+            start();
+        }
+        for (int i = 1; i < count; ++i) {
+            link(i, i - 1);
+        }
+    }
+
+    private void check() throws Exception {
+        startChain(3);
+        await("the chain to link up", () -> handlers.get(0).getLinks().getServerCount() == 2 && handlers.get(2).getLinks().getServerCount() == 2);
+
+        Client alice = connect(0, "alice");
+        Client bob = connect(1, "bob");
+        Client carol = connect(2, "carol");
+        Client dave = connect(2, "dave");
+        // alice first, so that she sees the others join
+        alice.send("JOIN #test");
+        alice.await(line -> line.contains(" 366 "));
+        for (Client c : new Client[] { bob, carol, dave }) {
+            c.send("JOIN #test");
+        }
+        for (String nick : new String[] { "bob", "carol", "dave" }) {
+            alice.await(line -> line.startsWith(":" + nick + "!") && line.contains(" JOIN "));
+        }
+
+        // irc1 -> irc2 -> irc3, with two members on irc3 it still crosses that link once
+        alice.send("PRIVMSG #test :hello");
+        for (Client c : new Client[] { bob, carol, dave }) {
+            c.await(line -> isChannelMessage(line, "hello"));
+        }
+        awaitRelayed(1, 1);
+        assertOnce(bob, carol, dave, "hello");
+
+        // A server linked late gets everyone and everything in its burst
+        start();
+        link(3, 2);
+        await("irc4 to get the burst", () -> hasUser(handlers.get(3).getLinks().getServer(nameOf(0)), "alice")
+                && hasUser(handlers.get(3).getLinks().getServer(nameOf(1)), "bob") && hasUser(handlers.get(3).getLinks().getServer(nameOf(2)), "dave"));
+        check(handlers.get(3).getLinks().getServerCount() == 3, "irc4 knows " + handlers.get(3).getLinks().getServerCount() + " servers, not 3");
+        Client eve = connect(3, "eve");
+        eve.send("NAMES #test");
+        String names = eve.await(line -> line.contains(" 353 "));
+        for (String nick : new String[] { "alice", "bob", "carol", "dave" }) {
+            check(names.matches(".*[ :@+]" + nick + "( .*|$)"), "irc4 has " + nick + " on #test from its burst: " + names);
+        }
+
+        // Nobody on #test behind irc4, so nothing goes there
+        alice.send("PRIVMSG #test :again");
+        carol.await(line -> isChannelMessage(line, "again"));
+        awaitRelayed(2, 2);
+        eve.sync();
+        check(relayed.get(3).get() == 0, "a link with no members behind it got " + relayed.get(3).get() + " channel messages");
+
+        // The same nick on two servers that don't know each other yet, the older one has to stay
+        start();
+        Client oldZed = connect(4, "zed");
+        // Nick timestamps are in seconds
+        Thread.sleep(1100);
+        Client newZed = connect(0, "zed");
+        link(4, 3);
+        await("irc5 to link", () -> handlers.get(0).getLinks().getServerCount() == 4);
+        newZed.await(line -> line.contains(" KILL zed "));
+        await("the newer zed to be gone", () -> hasUser(handlers.get(0).getLinks().getServer(nameOf(4)), "zed"));
+        oldZed.sync();
+        check(oldZed.count(line -> line.contains(" KILL ")) == 0, "the older zed got killed");
+        for (int i = 1; i < 4; ++i) {
+            check(hasUser(handlers.get(i).getLinks().getServer(nameOf(4)), "zed"), nameOf(i) + " knows zed as the one from irc5");
+        }
+
+        // Dropping irc3's link takes irc3 and everything behind it away from the others
+        links.get(2).disconnect();
+        for (String nick : new String[] { "carol", "dave" }) {
+            alice.await(line -> line.startsWith(":" + nick + "!") && line.contains(" QUIT "));
+            bob.await(line -> line.startsWith(":" + nick + "!") && line.contains(" QUIT "));
+        }
+        await("the split", () -> handlers.get(0).getLinks().getServerCount() == 1 && handlers.get(2).getLinks().getServerCount() == 2);
+        for (int i = 2; i < 5; ++i) {
+            check(handlers.get(0).getLinks().getServer(nameOf(i)) == null, "irc1 still knows " + nameOf(i));
+        }
+        check(hasUser(handlers.get(2).getLinks().getServer(nameOf(4)), "zed"), "irc3 lost zed, who was on its side of the split");
+        check(handlers.get(2).getLinks().getServer(nameOf(0)) == null, "irc3 still knows irc1");
+    }
+
+    private void start() throws Exception {
+        int i = servers.size();
+        AtomicInteger counter = new AtomicInteger();
+        ProtocolTracer tracer = new ProtocolTracer(ProtocolTracer.DEFAULT_CAPACITY, (event) -> {
+            if (event.getDirection() == Direction.INBOUND && event.getText().contains("command=PRIVMSG,params=[#")) {
+                counter.incrementAndGet();
+            }
+        });
+        IRCSessionHandler handler = new IRCSessionHandler(nameOf(i), new CachingHostnameResolver(new JdkDnsBackend()), null, tracer);
+        NettyServer server = new NettyServer(new InetSocketAddress("127.0.0.1", 6667 + i), handler, config);
+        server.start().sync();
+        for (int j = 0; j < servers.size(); ++j) {
+            handler.getLinks().allow(nameOf(j), PASSWORD);
+            handlers.get(j).getLinks().allow(nameOf(i), PASSWORD);
+        }
+        servers.add(server);
+        handlers.add(handler);
+        relayed.add(counter);
+        links.add(null);
+    }
+
+    // The one with the higher number opens the link
+    private void link(int from, int to) throws Exception {
+        Session session = servers.get(from).connect(new InetSocketAddress("127.0.0.1", 6667 + to)).get();
+        handlers.get(from).getTracer().trace(session);
+        handlers.get(from).link(session, nameOf(to));
+        links.set(from, session);
+    }
+
+    private Client connect(int server, String nick) throws IOException, InterruptedException {
+        Client client = new Client(6667 + server);
+        clients.add(client);
+        client.send("NICK " + nick);
+        client.send("USER " + nick + " 0 * :" + nick);
+        client.await(line -> line.contains(" 001 "));
+        return client;
+    }
+
+    // The counts get there through the tracer's thread, so wait for them and then a bit more in case there's too many
+    private void awaitRelayed(int toIrc2, int toIrc3) throws InterruptedException {
+        await("channel messages to reach irc2 and irc3", () -> relayed.get(1).get() >= toIrc2 && relayed.get(2).get() >= toIrc3);
+        Thread.sleep(200);
+        check(relayed.get(1).get() == toIrc2, "irc1 -> irc2 carried " + relayed.get(1).get() + " channel messages, not " + toIrc2);
+        check(relayed.get(2).get() == toIrc3, "irc2 -> irc3 carried " + relayed.get(2).get() + " channel messages, not " + toIrc3);
+    }
+
+    private static void assertOnce(Client a, Client b, Client c, String text) throws InterruptedException {
+        for (Client client : new Client[] { a, b, c }) {
+            client.sync();
+            int n = client.count(line -> isChannelMessage(line, text));
+            check(n == 1, client + " got " + n + " copies of " + text);
+        }
+    }
+
+    // A one-word text may come without the colon
+    private static boolean isChannelMessage(String line, String text) {
+        return line.contains(" PRIVMSG #test ") && (line.endsWith(" " + text) || line.endsWith(" :" + text));
+    }
+
+    private static boolean hasUser(RemoteServer server, String nick) {
+        return server != null && server.getUsers().stream().anyMatch((user) -> nick.equals(user.getNick()));
+    }
+
+    private void stop() {
+        for (Client client : clients) {
+            client.close();
+        }
+        for (NettyServer server : servers) {
+            server.stop().syncUninterruptibly();
+        }
+    }
+
+    private static void await(String what, BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new AssertionError("Timed out waiting for " + what);
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    private static void check(boolean condition, String what) {
+        if (!condition) {
+            throw new AssertionError(what);
+        }
+    }
+
+    private static String nameOf(int i) {
+        return "irc" + (i + 1) + ".test";
+    }
+
+    // A plain blocking client that keeps everything it got
+    private static class Client {
+        private final Socket socket;
+        private final OutputStream out;
+        private final List<String> lines = Collections.synchronizedList(new ArrayList<>());
+        private int syncs = 0;
+
+        Client(int port) throws IOException {
+            socket = new Socket("127.0.0.1", port);
+            out = socket.getOutputStream();
+            Thread reader = new Thread(this::read, "client-" + port);
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        private void read() {
+            try (BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (line.startsWith("PING ")) {
+                        send("PONG " + line.substring(5));
+                    }
+                    synchronized (lines) {
+                        lines.add(line);
+                        lines.notifyAll();
+                    }
+                }
+            } catch (IOException e) {
+                // Closed
+            }
+        }
+
+        synchronized void send(String line) {
+            try {
+                out.write((line + "\r\n").getBytes(StandardCharsets.UTF_8));
+                out.flush();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        // The first line so far that matches
+        String await(Predicate<String> matcher) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+            synchronized (lines) {
+                while (true) {
+                    for (String line : lines) {
+                        if (matcher.test(line)) {
+                            return line;
+                        }
+                    }
+                    long left = deadline - System.currentTimeMillis();
+                    if (left <= 0) {
+                        throw new AssertionError(this + " timed out, got " + lines);
+                    }
+                    lines.wait(left);
+                }
+            }
+        }
+
+        int count(Predicate<String> matcher) {
+            synchronized (lines) {
+                return (int) lines.stream().filter(matcher).count();
+            }
+        }
+
+        // Once the server answers this, it has sent us whatever it had for us before
+        void sync() throws InterruptedException {
+            String token = "sync" + (++syncs);
+            send("PING " + token);
+            await(line -> line.contains(" PONG ") && line.endsWith(token));
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Don't care
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "client on " + socket.getPort();
+        }
+    }
+}